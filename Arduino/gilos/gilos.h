@@ -9,6 +9,11 @@ typedef struct {
   int dv;
   int dw;
   unsigned char endSpeed;
+#if ARC_MOVES
+  int arcX; // arc moves: start relative to the center
+  int arcY;
+  int arcSteps; // arc moves: number of iterations, negative going clockwise; 0 for lines
+#endif
 } move_t;
 
 // type for serial protocol state
@@ -59,6 +64,11 @@ typedef enum {
   S_MOVE_PRIO_W1,
   S_MOVE_PRIO_SPEED,
 
+  S_CMOVE_MASK,
+  S_CMOVE_DELTA,
+  S_CMOVE_SPEED,
+  S_AMOVE_FLAGS,
+
   S_ZERO,
 
   S_CONFIG,
@@ -76,6 +86,10 @@ typedef enum {
 
   S_SPINDLE_SPEED,
 
+  S_BAUD,
+  S_ECHO_LENGTH,
+  S_ECHO,
+
   S_TEST_LIMITS,
 
 } serial_t;
@@ -1,9 +1,4 @@
 
-#include "gilos.h"
-
-const byte firmwareVersion = 7;
-
-
 
 /// Settings ///////////////////////////////////////////////////////////////////////////////////////
 
@@ -12,6 +7,18 @@ const byte firmwareVersion = 7;
 
 #define BOARD BOARD_MEGA_1
 
+// circular interpolation ("a" move frames) takes 6 more bytes per buffered move,
+// about 400 B of RAM in total, which does not fit into the 2 kB of Uno
+#define ARC_MOVES (BOARD != BOARD_UNO_1)
+
+#include "gilos.h"
+
+#if ARC_MOVES
+const byte firmwareVersion = 10;
+#else
+const byte firmwareVersion = 9; // version 10 without arc moves, host software does not send them then
+#endif
+
 // speed etc. constants
 
 #define LOW_SPEED 32u
@@ -204,6 +211,10 @@ bool ignoreBoundaries = false;
 // state of current move
 unsigned int bresenhamIter = 0;
 unsigned int lastStepCount = 0;
+#if ARC_MOVES
+long arcPosX = 0; // position in an arc move relative to its center
+long arcPosY = 0;
+#endif
 
 // move buffer etc.
 const unsigned int bufferLength = 64;
@@ -217,6 +228,31 @@ bool doPriorityMove = false;
 // state of serial protocol
 serial_t serialPhase = S_READY;
 
+// state of compact move parsing
+unsigned int compactMask = 0; // axes whose deltas are still to be read, bits 6-8 are arc data
+byte compactAxis = 0; // axis whose delta is being read
+unsigned int compactValue = 0; // zig-zag encoded delta
+byte compactShift = 0;
+bool compactIgnore = false; // no space in buffer
+#if ARC_MOVES
+bool compactClockwise = false; // arc move direction
+#endif
+
+// serial line speeds, the first one is used after power-up
+const unsigned long baudRates[] = {115200UL, 250000UL, 500000UL, 1000000UL};
+const byte numBaudRates = sizeof(baudRates) / sizeof(baudRates[0]);
+#define BAUD_CONFIRM_TIMEOUT 2000 // going back to the first speed if a new one is not confirmed
+bool baudPending = false;
+unsigned long baudSwitchTime = 0;
+byte echoRemaining = 0;
+
+void setBaudRate(unsigned long rate){
+  Serial.flush(); // finishing output at the old speed
+  Serial.end();
+  Serial.begin(rate);
+  while(!Serial)delay(1);
+}
+
 
 // marking position tracking valid/invalid
 void setPositionKnown(bool known){
@@ -334,6 +370,23 @@ void shortStatus(){
   else Serial.write(bufferFull? 'g' : 'f');
 }
 
+// helper for compact move data parsing
+void setCompactDelta(byte axis, int delta){
+  switch(axis){
+    case 0: if(xAxisPresent) buffer[stopMove].dx = delta; break;
+    case 1: if(yAxisPresent) buffer[stopMove].dy = delta; break;
+    case 2: if(zAxisPresent) buffer[stopMove].dz = delta; break;
+    case 3: if(uAxisPresent) buffer[stopMove].du = delta; break;
+    case 4: if(vAxisPresent) buffer[stopMove].dv = delta; break;
+    case 5: if(wAxisPresent) buffer[stopMove].dw = delta; break;
+#if ARC_MOVES
+    case 6: buffer[stopMove].arcX = delta; break;
+    case 7: buffer[stopMove].arcY = delta; break;
+    case 8: buffer[stopMove].arcSteps = compactClockwise? -delta : delta; break;
+#endif
+  }
+}
+
 // helper for move data parsing
 serial_t getNextMovePhase(serial_t currentPhase){
   switch(currentPhase){
@@ -486,6 +539,42 @@ void handleSerial(){
             serialPhase = getNextMovePhase(S_READY);
           }
         }
+        else if(data == 'H'){ // list serial line speeds
+          Serial.write('H');
+          Serial.write(numBaudRates);
+          for(byte i=0; i<numBaudRates; i++){
+            Serial.write((byte)((baudRates[i] >> 24) & 0xFF));
+            Serial.write((byte)((baudRates[i] >> 16) & 0xFF));
+            Serial.write((byte)((baudRates[i] >>  8) & 0xFF));
+            Serial.write((byte)((baudRates[i] >>  0) & 0xFF));
+          }
+        }
+        else if(data == 'h'){ // change serial line speed
+          serialPhase = S_BAUD;
+        }
+        else if(data == 'k'){ // confirm serial line speed
+          baudPending = false;
+          Serial.write('k');
+        }
+        else if(data == 'E'){ // echo test data
+          serialPhase = S_ECHO_LENGTH;
+        }
+        else if(data == 'm'){ // compact move
+          compactIgnore = (stopMove+1) % bufferLength == currentMove;
+          if(!compactIgnore){
+            buffer[stopMove] = {'M', 0, 0, 0, 0, 0, 0, 0};
+          }
+          serialPhase = S_CMOVE_MASK;
+        }
+#if ARC_MOVES
+        else if(data == 'a'){ // arc move
+          compactIgnore = (stopMove+1) % bufferLength == currentMove;
+          if(!compactIgnore){
+            buffer[stopMove] = {'M', 0, 0, 0, 0, 0, 0, 0};
+          }
+          serialPhase = S_AMOVE_FLAGS;
+        }
+#endif
         else if(data == 'N' || data == 'K'){ // numerical move, keyboard move
           serialPhase = getNextMovePhase(S_MOVE_PRIO);
           priorityMove = {(char)data, 0, 0, 0, 0, 0, 0, 0};
@@ -796,6 +885,75 @@ void handleSerial(){
         Serial.write('G');
         break;
 
+      // parsing compact move data
+      case S_CMOVE_MASK:
+        compactMask = data & 0x3F;
+        compactAxis = 0;
+        compactValue = 0;
+        compactShift = 0;
+        serialPhase = compactMask? S_CMOVE_DELTA : S_CMOVE_SPEED;
+        break;
+#if ARC_MOVES
+      case S_AMOVE_FLAGS: // linear axes Z-W like in compact move mask, arc data always follow
+        compactMask = (data & 0x3C) | 0x1C0;
+        compactClockwise = data & 0x80;
+        compactAxis = 0;
+        compactValue = 0;
+        compactShift = 0;
+        serialPhase = S_CMOVE_DELTA;
+        break;
+#endif
+      case S_CMOVE_DELTA:
+        if(compactShift < 16){ // longer values are malformed, extra bits dropped
+          compactValue |= (unsigned int)(data & 0x7F) << compactShift;
+        }
+        compactShift += 7;
+        if(!(data & 0x80)){ // last byte of delta
+          while(!(compactMask & (1u << compactAxis))) compactAxis++;
+          if(!compactIgnore){
+            setCompactDelta(compactAxis, (int)((compactValue >> 1) ^ (0u - (compactValue & 1))));
+          }
+          compactMask &= ~(1u << compactAxis);
+          compactValue = 0;
+          compactShift = 0;
+          if(!compactMask) serialPhase = S_CMOVE_SPEED;
+        }
+        break;
+      case S_CMOVE_SPEED:
+        if(compactIgnore){
+          Serial.write(moving? 'O' : 'o'); // buffer overflow
+        }
+        else{
+          buffer[stopMove].endSpeed = data;
+          stopMove = (stopMove+1) % bufferLength;
+          shortStatus();
+        }
+        serialPhase = S_READY;
+        break;
+
+      // serial line speed and loopback test
+      case S_BAUD:
+        serialPhase = S_READY;
+        if(data < numBaudRates){
+          Serial.write('h');
+          setBaudRate(baudRates[data]);
+          baudPending = (data != 0);
+          baudSwitchTime = millis();
+        }
+        else{
+          Serial.write('?');
+        }
+        break;
+      case S_ECHO_LENGTH:
+        echoRemaining = data;
+        serialPhase = echoRemaining? S_ECHO : S_READY;
+        break;
+      case S_ECHO:
+        Serial.write((byte)data);
+        echoRemaining--;
+        if(!echoRemaining) serialPhase = S_READY;
+        break;
+
       case S_SPINDLE_SPEED:
         setSpindleSpeed(data);
         serialPhase = S_READY;
@@ -1229,6 +1387,147 @@ void lineBy(
   currentSpeed = endSpeed;
 }
 
+#if ARC_MOVES
+
+// squared distance of an arc step candidate from the circle
+long arcError(char x, char y, long r2){
+  long nx = arcPosX + x;
+  long ny = arcPosY + y;
+  return labs(nx*nx + ny*ny - r2);
+}
+
+// circular interpolation in X and Y, other axes linear (helix);
+// each iteration does a step of X, Y, or both, whichever stays closest to the circle
+// (host software models this exactly, keep in sync with ArcStepper.java)
+void arcBy(move_t arc, unsigned int endSpeed){
+  bool clockwise = arc.arcSteps < 0;
+  unsigned int n = abs(arc.arcSteps);
+  long r2 = ((long)arc.arcX)*arc.arcX + ((long)arc.arcY)*arc.arcY;
+
+  int dz = zAxisPresent? arc.dz : 0;
+  int du = uAxisPresent? arc.du : 0;
+  int dv = vAxisPresent? arc.dv : 0;
+  int dw = wAxisPresent? arc.dw : 0;
+  unsigned int absDz = abs(dz);
+  unsigned int absDu = abs(du);
+  unsigned int absDv = abs(dv);
+  unsigned int absDw = abs(dw);
+  int diffZ = 2*absDz - n;
+  int diffU = 2*absDu - n;
+  int diffV = 2*absDv - n;
+  int diffW = 2*absDw - n;
+  int z = 0;
+  int u = 0;
+  int v = 0;
+  int w = 0;
+  char x, y, sx, sy;
+  long error, bestError;
+  bool movement;
+
+  float accel = (((float)endSpeed)*endSpeed-((float)currentSpeed)*currentSpeed)/(2*(float)n); // steps/s/s
+  float speed = currentSpeed; // steps/s
+  float waitTime;
+  unsigned long startTime;
+  unsigned long currentTime;
+  long remainingTime;
+  bool firstIter = true;
+
+  if(bresenhamIter == 0){
+    arcPosX = arc.arcX;
+    arcPosY = arc.arcY;
+  }
+
+  lastStepCount = 0;
+  for(; bresenhamIter<n; ++bresenhamIter){
+    startTime = micros();
+    if(stopping)return;
+
+    // candidate steps along the tangent
+    sx = clockwise? sign(arcPosY) : -sign(arcPosY);
+    sy = clockwise? -sign(arcPosX) : sign(arcPosX);
+    x = 0;
+    y = 0;
+    bestError = 0x7FFFFFFFL;
+    if(sx != 0){
+      bestError = arcError(sx, 0, r2);
+      x = sx;
+    }
+    if(sy != 0){
+      error = arcError(0, sy, r2);
+      if(error < bestError){
+        bestError = error;
+        x = 0;
+        y = sy;
+      }
+    }
+    if(sx != 0 && sy != 0){
+      error = arcError(sx, sy, r2);
+      if(error < bestError){
+        x = sx;
+        y = sy;
+      }
+    }
+    arcPosX += x;
+    arcPosY += y;
+
+    movement = step(
+      xAxisPresent? x : 0, yAxisPresent? y : 0,
+      sign(dz)*z, sign(du)*u, sign(dv)*v, sign(dw)*w
+    );
+
+    if(movement)lastStepCount++;
+    else if(stopAtLimits && !firstIter)break;
+
+    if(diffZ > 0){
+      z = 1;
+      diffZ -= 2*n;
+    }
+    else z = 0;
+    diffZ += 2*absDz;
+    if(diffU > 0){
+      u = 1;
+      diffU -= 2*n;
+    }
+    else u = 0;
+    diffU += 2*absDu;
+    if(diffV > 0){
+      v = 1;
+      diffV -= 2*n;
+    }
+    else v = 0;
+    diffV += 2*absDv;
+    if(diffW > 0){
+      w = 1;
+      diffW -= 2*n;
+    }
+    else w = 0;
+    diffW += 2*absDw;
+
+    firstIter = false;
+
+    if(currentSpeed == endSpeed){
+      remainingTime = 1000000L / endSpeed;
+    }
+    else{
+      waitTime = 2*(sqrt(speed*speed+accel)-speed)/accel;
+      speed += waitTime*accel;
+      remainingTime = (long)max(waitTime*1e6, 0);
+    }
+    currentTime = micros();
+    remainingTime -= (currentTime>startTime)? (currentTime-startTime) : (currentTime+(0xFFFFFFFFL-startTime));
+    if(remainingTime > 65535){
+      delay(remainingTime/1000);
+    }
+    else if(remainingTime > 0){
+      delayMicroseconds(remainingTime);
+    }
+  }
+  bresenhamIter = 0;
+  currentSpeed = endSpeed;
+}
+
+#endif
+
 // debug axis homing
 void printDebugMovingStatus(){
   Serial.write(moving? (stopping? 'S' : 'R') : (stopping? 's' : 'r'));
@@ -1432,6 +1731,10 @@ void setup(){
 }
 
 void loop(){
+  if(baudPending && millis() - baudSwitchTime > BAUD_CONFIRM_TIMEOUT){
+    baudPending = false;
+    setBaudRate(baudRates[0]);
+  }
   if(stopping){
     moving = false;
     stopping = false;
@@ -1477,10 +1780,19 @@ void loop(){
 
   else if(moving && remaining){
     move_t nextMove = peekBuffer();
-    lineBy(
-      nextMove.dx, nextMove.dy, nextMove.dz, nextMove.du, nextMove.dv, nextMove.dw,
-      (remaining == 1)? LOW_SPEED : max(((unsigned int)nextMove.endSpeed) << SPEED_SHIFT, LOW_SPEED)
-    );
+    unsigned int endSpeed = (remaining == 1)? LOW_SPEED : max(((unsigned int)nextMove.endSpeed) << SPEED_SHIFT, LOW_SPEED);
+#if ARC_MOVES
+    if(nextMove.arcSteps != 0){
+      arcBy(nextMove, endSpeed);
+    }
+    else
+#endif
+    {
+      lineBy(
+        nextMove.dx, nextMove.dy, nextMove.dz, nextMove.du, nextMove.dv, nextMove.dw,
+        endSpeed
+      );
+    }
     if(!stopping)popBuffer();
   }
 
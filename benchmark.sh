@@ -0,0 +1,15 @@
+#!/bin/bash
+
+# Compiles and runs one of the micro-benchmarks in java/benchmarks, e.g.
+#   ./benchmark.sh ByteRingBufferBenchmark
+# Further arguments are passed to the benchmark. Nothing is left in the source tree.
+
+cd java
+
+CP="./:../jSerialComm-2.9.1.jar:../gson-2.9.0.jar:../kabeja-0.4.jar"
+OUT=`mktemp -d`
+
+javac -Xlint:unchecked -d $OUT -cp "$CP" -sourcepath "./:benchmarks" benchmarks/$1.java && \
+java -cp "$OUT:$CP" "$@"
+
+rm -r $OUT
@@ -0,0 +1,182 @@
+
+import machines.*;
+
+/**
+ * Finds runs of tool path segments lying on a circular arc in the plane of axes X and Y,
+ * like the polylines of DXF circles and arcs, so that the driver can send a whole run
+ * as a few arc moves instead of a move per segment. Other axes may change linearly
+ * along the arc (a helix). Works in machine steps, so X and Y need the same resolution.
+ *
+ * A run is accepted when all its points are within half a step from the circle going
+ * through its first, middle and last point of the first few segments, it does not
+ * change direction, and its segments are short enough (a hexagon is not a circle).
+ */
+public class ArcFitter {
+
+	public static final int MIN_SEGMENTS = 8;
+	private static final double MAX_SEGMENT_ANGLE = Math.toRadians(15);
+	private static final double MAX_SWEEP = Math.toRadians(270);
+	private static final double MIN_RADIUS = 20; // steps
+	private static final double MAX_RADIUS = 15000; // steps, start point is sent as 16-bit values
+	private static final double MAX_LENGTH = 15000; // steps along the arc, Arduino counts iterations in 16 bits
+	private static final double TOLERANCE = 0.5; // steps
+
+	// result of the last successful fit
+	private int segments;
+	private double centerX;
+	private double centerY;
+	private double radius;
+	private double sweep; // radians, positive
+	private boolean clockwise;
+
+	/**
+	 * Tells whether arc moves can be used with a machine configuration
+	 */
+	public static boolean canUse(MachineConfig mc){
+		return mc.x.exists() && mc.y.exists() && mc.x.stepsPerMm() == mc.y.stepsPerMm();
+	}
+
+	/**
+	 * Converts a coordinate to machine steps
+	 */
+	private static double toSteps(double value, AxisConfig ax){
+		if(!ax.exists())return 0;
+		return (ax.inverted()? -1 : 1) * value * ax.stepsPerMm();
+	}
+
+	/**
+	 * Looks for an arc starting at a point of the path
+	 * @param maxSegments Largest number of segments in the arc
+	 * @return Number of segments on the arc, 0 if the path does not continue with an arc
+	 */
+	public int fit(PathBuffer path, int start, int maxSegments, MachineConfig mc){
+		segments = 0;
+		int n = Math.min(maxSegments, path.size()-1-start);
+		if(n < MIN_SEGMENTS)return 0;
+
+		// circle through three points
+		double x0 = toSteps(path.x(start), mc.x);
+		double y0 = toSteps(path.y(start), mc.y);
+		double x1 = toSteps(path.x(start+MIN_SEGMENTS/2), mc.x) - x0;
+		double y1 = toSteps(path.y(start+MIN_SEGMENTS/2), mc.y) - y0;
+		double x2 = toSteps(path.x(start+MIN_SEGMENTS), mc.x) - x0;
+		double y2 = toSteps(path.y(start+MIN_SEGMENTS), mc.y) - y0;
+		double d = 2 * (x1*y2 - y1*x2);
+		if(Math.abs(d) < 1e-9)return 0; // collinear
+		double cx = (y2*(x1*x1 + y1*y1) - y1*(x2*x2 + y2*y2)) / d;
+		double cy = (x1*(x2*x2 + y2*y2) - x2*(x1*x1 + y1*y1)) / d;
+		double r = Math.sqrt(cx*cx + cy*cy);
+		if(r < MIN_RADIUS || r > MAX_RADIUS)return 0;
+		cx += x0;
+		cy += y0;
+		boolean cw = d < 0;
+
+		// linear axes, in steps per radian of the first segment
+		double z0 = toSteps(path.z(start), mc.z);
+		double u0 = toSteps(path.u(start), mc.u);
+		double v0 = toSteps(path.v(start), mc.v);
+		double w0 = toSteps(path.w(start), mc.w);
+		double rateZ = 0, rateU = 0, rateV = 0, rateW = 0;
+
+		double prevX = x0 - cx;
+		double prevY = y0 - cy;
+		double angle = 0;
+		int k;
+		for(k=1; k<=n; k++){
+			double px = toSteps(path.x(start+k), mc.x) - cx;
+			double py = toSteps(path.y(start+k), mc.y) - cy;
+			if(Math.abs(Math.sqrt(px*px + py*py) - r) > TOLERANCE)break;
+
+			double step = Math.atan2(prevX*py - prevY*px, prevX*px + prevY*py);
+			if(cw)step = -step;
+			if(step <= 0 || step > MAX_SEGMENT_ANGLE)break;
+			if(angle+step > MAX_SWEEP || (angle+step)*r > MAX_LENGTH)break;
+
+			double dz = toSteps(path.z(start+k), mc.z) - z0;
+			double du = toSteps(path.u(start+k), mc.u) - u0;
+			double dv = toSteps(path.v(start+k), mc.v) - v0;
+			double dw = toSteps(path.w(start+k), mc.w) - w0;
+			if(k == 1){
+				rateZ = dz / step;
+				rateU = du / step;
+				rateV = dv / step;
+				rateW = dw / step;
+			}
+			// not faster than about half of Arduino iterations
+			double maxLinear = 0.35 * (angle+step) * r;
+			if(Math.abs(dz - rateZ*(angle+step)) > TOLERANCE || Math.abs(dz) > maxLinear)break;
+			if(Math.abs(du - rateU*(angle+step)) > TOLERANCE || Math.abs(du) > maxLinear)break;
+			if(Math.abs(dv - rateV*(angle+step)) > TOLERANCE || Math.abs(dv) > maxLinear)break;
+			if(Math.abs(dw - rateW*(angle+step)) > TOLERANCE || Math.abs(dw) > maxLinear)break;
+
+			angle += step;
+			prevX = px;
+			prevY = py;
+		}
+		k--;
+		if(k < MIN_SEGMENTS)return 0;
+
+		segments = k;
+		centerX = cx;
+		centerY = cy;
+		radius = r;
+		sweep = angle;
+		clockwise = cw;
+		return k;
+	}
+
+	public int segments(){
+		return segments;
+	}
+
+	/**
+	 * Center of the arc in machine steps
+	 */
+	public double centerX(){
+		return centerX;
+	}
+
+	public double centerY(){
+		return centerY;
+	}
+
+	/**
+	 * Radius in steps
+	 */
+	public double radius(){
+		return radius;
+	}
+
+	/**
+	 * Angle of the arc in radians
+	 */
+	public double sweep(){
+		return sweep;
+	}
+
+	public boolean clockwise(){
+		return clockwise;
+	}
+
+	/**
+	 * Finds the number of Arduino iterations reaching closest to the end of an arc
+	 * @param startX Start relative to the center
+	 * @param endX End relative to the center
+	 * @param maxIterations Upper bound, the search stops there
+	 */
+	public static int iterations(int startX, int startY, int endX, int endY, boolean clockwise, int maxIterations){
+		ArcStepper arc = new ArcStepper(startX, startY, clockwise);
+		int best = 0;
+		long bestDistance = Math.max(Math.abs(endX-startX), Math.abs(endY-startY));
+		for(int i=1; i<=maxIterations; i++){
+			arc.step();
+			long distance = Math.max(Math.abs(endX-arc.x()), Math.abs(endY-arc.y()));
+			if(distance < bestDistance){
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+}
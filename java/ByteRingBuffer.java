@@ -0,0 +1,145 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-capacity circular byte buffer.
+ * Lock-free for a single producer thread (serial port event thread)
+ * and a single consumer thread (driver reading status bytes).
+ */
+public class ByteRingBuffer {
+
+	private final byte[] data;
+	private final int mask;
+
+	// total numbers of bytes ever written and read; indices are taken modulo capacity
+	private final AtomicLong head = new AtomicLong(); // next byte to read
+	private final AtomicLong tail = new AtomicLong(); // next byte to write
+
+	/**
+	 * @param capacity Buffer size, rounded up to a power of two
+	 */
+	public ByteRingBuffer(int capacity){
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		data = new byte[size];
+		mask = size - 1;
+	}
+
+	public int capacity(){
+		return data.length;
+	}
+
+	/**
+	 * Number of bytes ready to be read
+	 */
+	public int available(){
+		return (int)(tail.get() - head.get());
+	}
+
+	/**
+	 * Number of bytes which can be written without overwriting unread data
+	 */
+	public int free(){
+		return data.length - available();
+	}
+
+	/**
+	 * Stores up to len bytes, returns the number of bytes actually stored.
+	 * Producer side only.
+	 */
+	public int write(byte[] src, int offset, int len){
+		long t = tail.get();
+		int n = Math.min(len, data.length - (int)(t - head.get()));
+		for(int i=0; i<n; i++){
+			data[(int)(t + i) & mask] = src[offset + i];
+		}
+		tail.lazySet(t + n); // publishes written data to the consumer
+		return n;
+	}
+
+	/**
+	 * Removes up to len bytes, copying them to dst; returns the number of bytes read.
+	 * Consumer side only.
+	 */
+	public int read(byte[] dst, int offset, int len){
+		long h = head.get();
+		int n = Math.min(len, (int)(tail.get() - h));
+		for(int i=0; i<n; i++){
+			dst[offset + i] = data[(int)(h + i) & mask];
+		}
+		head.lazySet(h + n);
+		return n;
+	}
+
+	/**
+	 * Removes a single byte, returns it as an unsigned value, or -1 if there is no data.
+	 * Consumer side only.
+	 */
+	public int read(){
+		long h = head.get();
+		if(h == tail.get())return -1;
+		int value = data[(int)h & mask] & 0xFF;
+		head.lazySet(h + 1);
+		return value;
+	}
+
+	/**
+	 * Returns an unread byte without removing it (as an unsigned value),
+	 * or -1 if there is not enough data.
+	 * Consumer side only.
+	 * @param index Position relative to the oldest unread byte
+	 */
+	public int peek(int index){
+		long h = head.get();
+		if(index < 0 || index >= tail.get() - h)return -1;
+		return data[(int)(h + index) & mask] & 0xFF;
+	}
+
+	/**
+	 * Copies up to len unread bytes to dst without removing them; returns the number of bytes copied.
+	 * Consumer side only.
+	 */
+	public int peek(byte[] dst, int offset, int len){
+		long h = head.get();
+		int n = Math.min(len, (int)(tail.get() - h));
+		for(int i=0; i<n; i++){
+			dst[offset + i] = data[(int)(h + i) & mask];
+		}
+		return n;
+	}
+
+	/**
+	 * Compares the oldest unread bytes to a string of ASCII characters, without removing them.
+	 * Returns false if there is not enough data.
+	 * Consumer side only.
+	 */
+	public boolean matches(CharSequence expected){
+		long h = head.get();
+		int n = expected.length();
+		if(tail.get() - h < n)return false;
+		for(int i=0; i<n; i++){
+			if(data[(int)(h + i) & mask] != (byte)expected.charAt(i))return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes up to len bytes without copying them; returns the number of bytes removed.
+	 * Consumer side only.
+	 */
+	public int skip(int len){
+		long h = head.get();
+		int n = Math.min(len, (int)(tail.get() - h));
+		head.lazySet(h + n);
+		return n;
+	}
+
+	/**
+	 * Discards all unread data.
+	 * Consumer side only.
+	 */
+	public void clear(){
+		head.set(tail.get());
+	}
+
+}
+
@@ -0,0 +1,134 @@
+
+import com.google.gson.*;
+import filesources.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The last point of a tool path file done by the machine, with the file placement
+ * needed to continue from there. Saved while a file runs, so that an interrupted
+ * job can be resumed mid-path without replaying it.
+ */
+public class Checkpoint {
+
+	public String path;
+	public long fileSize;
+	public long fileModified;
+	public double[] shift; // added to file coordinates before zooming
+	public double zoom;
+	public long pointIndex;
+	public long pathHash; // point order of the file source, see FileSource.pathHash
+
+	// tessellation of DXF curves in file units (depends on zoom), 0 for other files
+	public double chordTolerance;
+	public double minChord;
+
+	/**
+	 * Creates a checkpoint of the next point of a file source
+	 */
+	public Checkpoint(String path, FileSource source, double[] shift, double zoom){
+		File file = new File(path);
+		this.path = file.getAbsolutePath();
+		this.fileSize = file.length();
+		this.fileModified = file.lastModified();
+		this.shift = shift;
+		this.zoom = zoom;
+		this.pointIndex = source.pointIndex();
+		this.pathHash = source.pathHash();
+		if(source instanceof DxfFileSource){
+			this.chordTolerance = ((DxfFileSource)source).chordTolerance();
+			this.minChord = ((DxfFileSource)source).minChord();
+		}
+	}
+
+	private Checkpoint(Checkpoint checkpoint, long pointIndex){
+		this.path = checkpoint.path;
+		this.fileSize = checkpoint.fileSize;
+		this.fileModified = checkpoint.fileModified;
+		this.shift = checkpoint.shift;
+		this.zoom = checkpoint.zoom;
+		this.pointIndex = pointIndex;
+		this.pathHash = checkpoint.pathHash;
+		this.chordTolerance = checkpoint.chordTolerance;
+		this.minChord = checkpoint.minChord;
+	}
+
+	/**
+	 * Creates a checkpoint of another point of the same file
+	 */
+	public Checkpoint at(long pointIndex){
+		return new Checkpoint(this, pointIndex);
+	}
+
+	/**
+	 * Tells whether the checkpoint belongs to a file, not changed since
+	 */
+	public boolean matchesFile(String path){
+		File file = new File(path);
+		return file.getAbsolutePath().equals(this.path)
+		    && file.length() == fileSize
+		    && file.lastModified() == fileModified;
+	}
+
+	/**
+	 * Tells whether the checkpoint belongs to a file, not changed since,
+	 * read by a source giving the same points in the same order
+	 */
+	public boolean matches(String path, FileSource source){
+		if(!matchesFile(path) || source.pathHash() != pathHash)return false;
+		if(source instanceof DxfFileSource){
+			return ((DxfFileSource)source).tessellatedWith(chordTolerance, minChord);
+		}
+		return chordTolerance == 0 && minChord == 0;
+	}
+
+	/**
+	 * Writes the checkpoint to a file, replacing it at once (a crash leaves the old one)
+	 */
+	public void save(String checkpointPath){
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		String json = gson.toJson(this);
+		try{
+			File tmp = new File(checkpointPath+".tmp");
+			var writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			writer.write(json);
+			writer.close();
+			Files.move(tmp.toPath(), Paths.get(checkpointPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads a checkpoint, returns null when there is none
+	 */
+	public static Checkpoint load(String checkpointPath){
+		try{
+			byte[] bytes = Files.readAllBytes(Paths.get(checkpointPath));
+			Checkpoint checkpoint = new Gson().fromJson(new String(bytes, "UTF-8"), Checkpoint.class);
+			if(checkpoint == null || checkpoint.path == null || checkpoint.shift == null || checkpoint.shift.length != 3){
+				return null;
+			}
+			return checkpoint;
+		}
+		catch(Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Removes a saved checkpoint, after the file is done
+	 */
+	public static void delete(String checkpointPath){
+		try{
+			Files.deleteIfExists(Paths.get(checkpointPath));
+		}
+		catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+
+import transports.Transport;
+
+/**
+ * Assembles a whole protocol command in a preallocated buffer,
+ * so that it can be sent to the machine by a single write call.
+ * Keeps simple statistics of the serial line traffic.
+ */
+public class FrameWriter {
+
+	// write calls to attempt before a frame is given up
+	private static final int MAX_WRITES = 100;
+
+	private final byte[] buffer;
+	private int length;
+
+	// statistics
+	private long statsStart;
+	private long bytesWritten;
+	private long writes;
+	private long moveWrites;
+	private long moves;
+
+	public FrameWriter(int capacity){
+		buffer = new byte[capacity];
+		length = 0;
+		resetStats();
+	}
+
+	/**
+	 * Discards frame contents, prepares the writer for a new frame
+	 */
+	public FrameWriter clear(){
+		length = 0;
+		return this;
+	}
+
+	/**
+	 * Appends a single byte
+	 */
+	public FrameWriter put(byte data){
+		buffer[length++] = data;
+		return this;
+	}
+
+	/**
+	 * Appends a single ASCII character (command codes etc.)
+	 */
+	public FrameWriter putChar(char data){
+		buffer[length++] = (byte)data;
+		return this;
+	}
+
+	/**
+	 * Appends a 16-bit int, big endian
+	 */
+	public FrameWriter putInt(int data){
+		buffer[length++] = (byte)((data >> 8) & 0xFF);
+		buffer[length++] = (byte)((data >> 0) & 0xFF);
+		return this;
+	}
+
+	/**
+	 * Appends a 32-bit int, big endian
+	 */
+	public FrameWriter putLong(int data){
+		buffer[length++] = (byte)((data >> 24) & 0xFF);
+		buffer[length++] = (byte)((data >> 16) & 0xFF);
+		buffer[length++] = (byte)((data >>  8) & 0xFF);
+		buffer[length++] = (byte)((data >>  0) & 0xFF);
+		return this;
+	}
+
+	/**
+	 * Appends a signed int as a zig-zag varint:
+	 * 7 bits per byte, least significant first, top bit set on all bytes but the last.
+	 * Values in -64..63 take a single byte, 16-bit move deltas at most three.
+	 */
+	public FrameWriter putVarInt(int data){
+		int zigzag = (data << 1) ^ (data >> 31);
+		while((zigzag & ~0x7F) != 0){
+			buffer[length++] = (byte)((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		buffer[length++] = (byte)zigzag;
+		return this;
+	}
+
+	public int length(){
+		return length;
+	}
+
+	/**
+	 * Returns a single byte of the frame (for debug output)
+	 */
+	public byte get(int index){
+		return buffer[index];
+	}
+
+	/**
+	 * Sends the whole frame to the machine, normally in one write call.
+	 * If the transport accepts only a part of the frame, the rest is written again
+	 * (a few times at most, waiting a little when nothing is accepted).
+	 * @param isMove Whether the frame carries a move (for statistics)
+	 * @return Number of bytes written, or -1 on error
+	 */
+	public int flush(Transport port, boolean isMove){
+		if(statsStart == 0)statsStart = System.nanoTime();
+		int sent = 0;
+		int calls = 0;
+		while(length > 0 && calls < MAX_WRITES){
+			int written = port.write(buffer, length);
+			calls++;
+			if(written < 0){
+				sent = -1;
+				break;
+			}
+			if(written == 0){
+				try{
+					Thread.sleep(1);
+				}
+				catch(InterruptedException e){
+					break;
+				}
+				continue;
+			}
+			bytesWritten += written;
+			sent += written;
+			if(written < length){
+				System.arraycopy(buffer, written, buffer, 0, length - written);
+			}
+			length -= written;
+		}
+		writes += calls;
+		if(isMove){
+			moveWrites += calls;
+			moves++;
+		}
+		if(length > 0)System.err.println("Frame not sent completely, "+length+" bytes dropped");
+		length = 0;
+		return sent;
+	}
+
+	// statistics //////////////////////////////////////////////////////////////
+
+	public void resetStats(){
+		statsStart = 0;
+		bytesWritten = 0;
+		writes = 0;
+		moveWrites = 0;
+		moves = 0;
+	}
+
+	public long bytesWritten(){
+		return bytesWritten;
+	}
+
+	public long moves(){
+		return moves;
+	}
+
+	/**
+	 * Average serial line throughput since the first write after resetStats
+	 */
+	public double bytesPerSecond(){
+		if(statsStart == 0)return 0;
+		double seconds = (System.nanoTime() - statsStart) * 1e-9;
+		return (seconds > 0)? bytesWritten / seconds : 0;
+	}
+
+	/**
+	 * Average number of moves sent per second since the first write after resetStats
+	 */
+	public double movesPerSecond(){
+		if(statsStart == 0)return 0;
+		double seconds = (System.nanoTime() - statsStart) * 1e-9;
+		return (seconds > 0)? moves / seconds : 0;
+	}
+
+	/**
+	 * Average number of write calls needed to send a single move
+	 * (above 1 when the transport accepts frames only in parts)
+	 */
+	public double writesPerMove(){
+		return (moves > 0)? ((double)moveWrites) / moves : 0;
+	}
+
+	public String toString(){
+		return String.format(
+			"%d bytes in %d writes, %.0f B/s, %d moves, %.1f moves/s, %.2f writes/move",
+			bytesWritten, writes, bytesPerSecond(), moves, movesPerSecond(), writesPerMove()
+		);
+	}
+
+}
+
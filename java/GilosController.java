@@ -2,9 +2,11 @@
 import java.awt.event.*;
 import java.lang.Thread;
 import java.lang.Math;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.io.*;
 
 import machines.*;
@@ -95,7 +97,10 @@ public class GilosController implements ActionListener {
 	public void updateRunning(boolean running, String mode){
 		this.running = running;
 		if(running)gui.setRunning(mode);
-		else gui.setStopped();
+		else{
+			gui.setStopped();
+			saveCheckpoint();
+		}
 	}
 	public boolean isRunning(){
 		return running;
@@ -105,6 +110,28 @@ public class GilosController implements ActionListener {
 		gui.setChuck(chuckOpen);
 	}
 
+	/**
+	 * Records serial line speed negotiated by the driver, saves machine config when it changed
+	 */
+	public void updateBaudRate(int baudRate){
+		MachineConfig saved = gui.getLastAxes();
+		boolean changed = (saved != null && saved.baudRate != baudRate);
+		gui.setBaudRate(baudRate);
+		if(machineConf != null)machineConf.baudRate = baudRate;
+		if(changed)config.save(saved, machineName);
+	}
+
+	/**
+	 * Records serial port of the current connection, saves machine config when it changed
+	 */
+	public void updateLastPort(String portName){
+		MachineConfig saved = gui.getLastAxes();
+		boolean changed = (saved != null && !Objects.equals(saved.lastPort, portName));
+		gui.setLastPort(portName);
+		if(machineConf != null)machineConf.lastPort = portName;
+		if(changed)config.save(saved, machineName);
+	}
+
 	/**
 	 * Called when the last move is popped from move buffer.
 	 * Triggers a status update in GUI.
@@ -112,6 +139,7 @@ public class GilosController implements ActionListener {
 	 */
 	public void toolPathFinished(){
 		gui.toolPathFinished();
+		deleteCheckpoint();
 	}
 
 	/**
@@ -276,6 +304,7 @@ public class GilosController implements ActionListener {
 					if(!updateAxes()){
 						break;
 					}
+					gui.updateFileTessellation();
 					updateRunning(true, gui.MODE_RUN);
 					sendPoints();
 					try{Thread.sleep(100);}catch(InterruptedException e){}
@@ -383,102 +412,6 @@ public class GilosController implements ActionListener {
 		}
 	}
 
-	/**
-	 * Finds spots where the machine needs to slow to minimum speed
-	 * (sharp turns, axis direction changes)
-	 */
-	private double[] findZeroSpeedDistances(
-		double[] x, double[] y, double[] z,
-		double[] u, double[] v, double[] w,
-		double startDistance, boolean zeroAtEnd
-	){
-		List<Double> zeroDistances = new ArrayList<Double>();
-		double distance = startDistance;
-		zeroDistances.add(distance);
-
-		var previousSegments = new ArrayList<double[]>();
-		previousSegments.add(new double[]{0, 0, 0, 0, 0, 0, 1});
-
-		double lastNonzeroDx = 0;
-		double lastNonzeroDy = 0;
-		double lastNonzeroDz = 0;
-		double lastNonzeroDu = 0;
-		double lastNonzeroDv = 0;
-		double lastNonzeroDw = 0;
-
-		double dx, dy, dz, du, dv, dw, norm;
-
-		double cos;
-		double minCos = Math.cos(Math.toRadians(20));
-		boolean zero;
-		for(int i=1; i<x.length; i++){
-			dx = x[i] - x[i-1];
-			dy = y[i] - y[i-1];
-			dz = z[i] - z[i-1];
-			du = u[i] - u[i-1];
-			dv = v[i] - v[i-1];
-			dw = w[i] - w[i-1];
-			norm = Math.sqrt(dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw);
-			norm = Math.max(norm, 1e-3);
-
-			zero = false;
-
-			// zero at sharp turns
-			double queueDist = norm;
-			for(double[] prev: previousSegments){
-				cos = (dx*prev[0] + dy*prev[1] + dz*prev[2]
-					 + du*prev[3] + dv*prev[4] + dw*prev[5])
-					/ norm / prev[6];
-				if(cos < minCos){
-					zero = true;
-					queueDist += 2*gilos.ACCEL_DISTANCE; // empty queue
-				}
-			}
-
-			// zero at axis direction change which triggers backlash correction
-			if((dx*lastNonzeroDx < 0 && machineConf.x.backlash() != 0)
-			|| (dy*lastNonzeroDy < 0 && machineConf.y.backlash() != 0)
-			|| (dz*lastNonzeroDz < 0 && machineConf.z.backlash() != 0)
-			|| (du*lastNonzeroDu < 0 && machineConf.u.backlash() != 0)
-			|| (dv*lastNonzeroDv < 0 && machineConf.v.backlash() != 0)
-			|| (dw*lastNonzeroDw < 0 && machineConf.w.backlash() != 0)
-			)zero = true;
-
-			if(zero){
-				zeroDistances.add(distance);
-			}
-
-			previousSegments.add(new double[]{dx, dy, dz, du, dv, dw, norm});
-			for(int j=previousSegments.size()-2; j>=0; j--){
-				if(queueDist > gilos.ACCEL_DISTANCE){
-					previousSegments.remove(j);
-				}
-				else{
-					queueDist += previousSegments.get(j)[6];
-				}
-			}
-
-			if(dx != 0)lastNonzeroDx = dx;
-			if(dy != 0)lastNonzeroDy = dy;
-			if(dz != 0)lastNonzeroDz = dz;
-			if(du != 0)lastNonzeroDu = du;
-			if(dv != 0)lastNonzeroDv = dv;
-			if(dw != 0)lastNonzeroDw = dw;
-
-			distance += norm;
-		}
-		if(zeroAtEnd){
-			zeroDistances.add(distance);
-		}
-		endDistance = distance;
-		Double[] zeroDistances2 = zeroDistances.toArray(new Double[zeroDistances.size()]);
-		double[] zeroDistances3 = new double[zeroDistances2.length];
-		for(int i=zeroDistances2.length-1; i>=0; i--){
-			zeroDistances3[i] = zeroDistances2[i];
-		}
-		return zeroDistances3;
-	}
-
 	/**
 	 * Encodes a motor step rate in steps per second to the format understood by Arduino
 	 */
@@ -657,49 +590,176 @@ public class GilosController implements ActionListener {
 		                     shift[3]*mu, shift[4]*mu, shift[5]*mu };
 	}
 
-	// remembering posistion at the end of a tool path slice
-	// to allow processing tool paths loaded piece by piece from a file
-	private double lastDistance, endDistance;
-	private double[] lastPoint;
+	// slowing down at path start and end and at backlash correction,
+	// remembers the end of a tool path slice to allow processing tool paths loaded piece by piece from a file
+	private final ZeroSpeedDetector zeroSpeedDetector = new ZeroSpeedDetector();
+
+	// removing points which do not change shape of the tool path
+	private final PathSimplifier simplifier = new PathSimplifier(0);
+
+	// reading tool path files in background, so that the driver does not wait for the next batch;
+	// pointsLock orders batches sent to the driver and guards the fields below
+	private final Object pointsLock = new Object();
+	private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "GilosController prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private volatile boolean prefetching = false; // cleared when the batch is in the driver
+	private int pointsGeneration = 0; // batches read before a sequence reset are dropped
+
+	// resuming tool path files: batches sent to driver are remembered with their place in the file,
+	// so that a point confirmed by driver can be saved as a checkpoint
+	private static final String CHECKPOINT_PATH = "cnc.resume";
+	private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+	private static class SentBatch {
+		long driverFirst; // index of the first point among points sent to driver
+		int count;
+		int[] kept; // indices of points kept by simplifier, null if all
+		int prepended; // points sent before the file points (the approach from the current position when resuming)
+		Checkpoint origin; // checkpoint of the first file point
+	}
+
+	private final ArrayDeque<SentBatch> sentBatches = new ArrayDeque<>(); // guarded by itself
+	private long sentPoints = 0;
+	private boolean resumePending = false;
+	private Checkpoint lastCheckpoint = null;
+	private long lastCheckpointSaved = 0;
 
 	/**
-	 * Forgets that there was a partially processed tool path
+	 * Forgets that there was a partially processed tool path.
+	 * Batches being read are dropped, and none is sent to driver while it clears its path.
+	 * @param clearPath Clears the path in driver
 	 */
-	public void sequenceReset(){
-		lastDistance = 0;
+	public void sequenceReset(Runnable clearPath){
+		synchronized(pointsLock){
+			pointsGeneration++;
+			clearPath.run();
+			sentPoints = 0;
+			synchronized(sentBatches){
+				sentBatches.clear();
+			}
+			zeroSpeedDetector.reset();
+			if(simplifier.pointsIn() > 0){
+				System.out.println("path simplification removed "+simplifier.pointsRemoved()+" of "+simplifier.pointsIn()+" points");
+				simplifier.resetStatistics();
+			}
+		}
 	}
 
 	/**
-	 * Obtains next portion of tool path from GUI, sends it to driver
+	 * Obtains next portion of tool path from GUI, sends it to driver.
+	 * Waits for a batch being read in background first, to keep the order.
 	 */
 	public void sendPoints(){
-		double[][] points = gui.getPoints();
+		synchronized(pointsLock){
+			while(prefetching){
+				try{
+					pointsLock.wait();
+				}
+				catch(InterruptedException e){
+					return;
+				}
+			}
+			Checkpoint origin = gui.fileCheckpoint();
+			double[][] points = gui.getPoints();
+			sendPoints(points, !gui.readingPathFromFile(), origin);
+		}
+	}
+
+	/**
+	 * Starts reading next portion of tool path in background, the batch is sent to driver when read.
+	 * Called by the driver when it is running out of points; does nothing while a batch is being read.
+	 * Points drawn on canvas are sent right away.
+	 */
+	public void prefetchPoints(){
+		synchronized(pointsLock){
+			if(prefetching)return;
+			if(!gui.readingPathFromFile()){
+				sendPoints(gui.getPoints(), true, null);
+				return;
+			}
+			prefetching = true;
+			int generation = pointsGeneration;
+			prefetcher.execute(() -> {
+				double[][] points = new double[6][0];
+				boolean pathEnd = true;
+				Checkpoint origin = null;
+				try{
+					origin = gui.fileCheckpoint();
+					points = gui.getPoints();
+					pathEnd = !gui.readingPathFromFile();
+				}
+				finally{
+					synchronized(pointsLock){
+						try{
+							if(generation == pointsGeneration)sendPoints(points, pathEnd, origin);
+						}
+						finally{
+							prefetching = false;
+							pointsLock.notifyAll();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tells whether more tool path points are on the way (a file is open or being read)
+	 */
+	public boolean morePointsExpected(){
+		return prefetching || gui.readingPathFromFile();
+	}
+
+	/**
+	 * Sends a portion of tool path to driver
+	 * @param pathEnd Whether it is the last portion (the machine stops at its end)
+	 * @param origin Checkpoint of the first point when the points come from a file which can be resumed
+	 */
+	private void sendPoints(double[][] points, boolean pathEnd, Checkpoint origin){
 //		points = splitAndLimit(points);
 		if(points[0].length == 0)return;
-		if(lastDistance > 0){
-			lastDistance += Math.sqrt(
-				  (lastPoint[0]-points[0][0])*(lastPoint[0]-points[0][0])
-				+ (lastPoint[1]-points[1][0])*(lastPoint[1]-points[1][0])
-				+ (lastPoint[2]-points[2][0])*(lastPoint[2]-points[2][0])
-				+ (lastPoint[3]-points[3][0])*(lastPoint[3]-points[3][0])
-				+ (lastPoint[4]-points[4][0])*(lastPoint[4]-points[4][0])
-				+ (lastPoint[5]-points[5][0])*(lastPoint[5]-points[5][0])
-			);
+		int prepended = 0;
+		if(resumePending && origin != null){
+			// resumed file continues from where the machine is now, approaching the first point
+			// lifted when the GUI knows which way is up
+			resumePending = false;
+			double[] from = new double[6];
+			double[] to = new double[6];
+			for(int a=0; a<6; a++){
+				to[a] = points[a][0];
+				from[a] = Double.isNaN(position[a])? to[a] : position[a];
+			}
+			double[][] approach = gui.resumeApproach(from, to);
+			prepended = approach[0].length;
+			double[][] resumed = new double[6][points[0].length+prepended];
+			for(int a=0; a<6; a++){
+				System.arraycopy(approach[a], 0, resumed[a], 0, prepended);
+				System.arraycopy(points[a], 0, resumed[a], prepended, points[a].length);
+			}
+			points = resumed;
+		}
+		if(machineConf != null)simplifier.setTolerance(machineConf.simplifyTolerance);
+		points = simplifier.simplify(points);
+		if(origin != null){
+			SentBatch batch = new SentBatch();
+			batch.driverFirst = sentPoints;
+			batch.count = points[0].length;
+			batch.kept = simplifier.keptIndices();
+			batch.prepended = prepended;
+			batch.origin = origin;
+			synchronized(sentBatches){
+				sentBatches.addLast(batch);
+			}
 		}
-		double[] zeroSpeedDistances = findZeroSpeedDistances(
+		sentPoints += points[0].length;
+		double[] zeroSpeedDistances = zeroSpeedDetector.process(
 			points[0], points[1], points[2],
 			points[3], points[4], points[5],
-			lastDistance, !gui.readingPathFromFile()
+			pathEnd, machineConf
 		);
-		lastDistance = endDistance;
-		lastPoint = new double[]{
-			points[0][points[0].length-1],
-			points[1][points[1].length-1],
-			points[2][points[2].length-1],
-			points[3][points[3].length-1],
-			points[4][points[4].length-1],
-			points[5][points[5].length-1]
-		};
 		gilos.setSpeed(encodeStepRate(gui.getStepRate()));
 		gilos.trimSequence();
 		gilos.extendSequence(
@@ -709,6 +769,84 @@ public class GilosController implements ActionListener {
 		);
 	}
 
+	/**
+	 * Makes the next batch start at the current position, for a file continued from a checkpoint.
+	 * @return false when the position is not known
+	 */
+	public boolean prepareResume(){
+		if(machineConf == null)return false;
+		if(machineConf.x.exists() && Double.isNaN(position[0]))return false;
+		if(machineConf.y.exists() && Double.isNaN(position[1]))return false;
+		if(machineConf.z.exists() && Double.isNaN(position[2]))return false;
+		if(machineConf.u.exists() && Double.isNaN(position[3]))return false;
+		if(machineConf.v.exists() && Double.isNaN(position[4]))return false;
+		if(machineConf.w.exists() && Double.isNaN(position[5]))return false;
+		synchronized(pointsLock){
+			resumePending = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the checkpoint left by an interrupted file, null if there is none
+	 */
+	public Checkpoint loadCheckpoint(){
+		return Checkpoint.load(CHECKPOINT_PATH);
+	}
+
+	/**
+	 * Called by driver when a point of the tool path is done by the machine.
+	 * Remembers the corresponding file point, saves it now and then.
+	 * Public to be able to propagate events from driver.
+	 * @param pointIndex Index among points sent to driver since the last sequence reset
+	 */
+	public void pointConfirmed(long pointIndex){
+		Checkpoint checkpoint = null;
+		synchronized(sentBatches){
+			while(!sentBatches.isEmpty()){
+				SentBatch batch = sentBatches.peekFirst();
+				if(pointIndex < batch.driverFirst)return; // not a file point
+				if(pointIndex >= batch.driverFirst + batch.count){
+					sentBatches.removeFirst();
+					continue;
+				}
+				int index = (int)(pointIndex - batch.driverFirst);
+				long filePoint = (batch.kept == null? index : batch.kept[index]) - batch.prepended;
+				if(filePoint < 0)return;
+				checkpoint = batch.origin.at(batch.origin.pointIndex + filePoint);
+				break;
+			}
+			if(checkpoint == null)return;
+			lastCheckpoint = checkpoint;
+			long now = System.currentTimeMillis();
+			if(now - lastCheckpointSaved < CHECKPOINT_INTERVAL_MILLIS)return;
+			lastCheckpointSaved = now;
+		}
+		Checkpoint saved = checkpoint;
+		prefetcher.execute(() -> saved.save(CHECKPOINT_PATH));
+	}
+
+	/**
+	 * Saves the last confirmed point, when the machine stops
+	 */
+	private void saveCheckpoint(){
+		Checkpoint checkpoint;
+		synchronized(sentBatches){
+			checkpoint = lastCheckpoint;
+		}
+		if(checkpoint != null)prefetcher.execute(() -> checkpoint.save(CHECKPOINT_PATH));
+	}
+
+	/**
+	 * Forgets the checkpoint, the file is done (or the machine reset)
+	 */
+	private void deleteCheckpoint(){
+		synchronized(sentBatches){
+			lastCheckpoint = null;
+		}
+		prefetcher.execute(() -> Checkpoint.delete(CHECKPOINT_PATH));
+	}
+
 	// tracking current position
 
 	// where it would be without limits
@@ -1,15 +1,24 @@
 
-import com.fazecast.jSerialComm.SerialPort;
 import java.nio.charset.StandardCharsets;
 import java.lang.Thread;
 import java.lang.Runnable;
 import java.util.Arrays;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.time.LocalDateTime;
 import java.time.DateTimeException;
 import java.time.format.DateTimeFormatter;
 
 import machines.*;
+import transports.*;
 
 /**
  * The Arduino-facing class.
@@ -22,16 +31,32 @@ public class GilosDriver implements Runnable {
 	// compatible versions of Arduino firmware
 	private static final String VERSION = "0.26";
 	private static final int MIN_FIRMWARE = 6;
-	private static final int MAX_FIRMWARE = 7;
+	private static final int MAX_FIRMWARE = 10;
 	private byte firmwareVersion;
 
+	// first firmware version accepting compact "m" move frames
+	private static final int COMPACT_MOVE_FIRMWARE = 8;
+	private boolean compactMoves;
+
+	// first firmware version able to change serial line speed
+	private static final int BAUD_NEGOTIATION_FIRMWARE = 9;
+
+	// first firmware version doing circular interpolation ("a" move frames)
+	private static final int ARC_FIRMWARE = 10;
+	private boolean arcMoves;
+
 	// misc constants
 	private static final byte SPEED_FULL = 100;
 	private static final byte SPEED_LOW = 1;
-	public static final double ACCEL_DISTANCE = 3.0;
+	private static final int SPEED_SHIFT = 5; // speeds are sent in units of 2^SPEED_SHIFT steps/s
+	private static final double ACCELERATION = 8000; // steps/s/s, for axes without configured acceleration
 
 	private static final long TIMEOUT_BLINK = 10000;
 	private static final long TIMEOUT_ZERO = 3600000;
+	private static final long TIMEOUT_READ = 500;
+
+	// longest time the idle command loop sleeps without being woken up (to check timeouts)
+	private static final long IDLE_PARK_NANOS = 50_000_000L;
 
 	private static final double SPINDLE_SPEED_COEF = 5.087;
 	private static final double SPINDLE_SPEED_OFFSET = 2.180;
@@ -39,7 +64,8 @@ public class GilosDriver implements Runnable {
 	// controller instance allowing two-way communication
 	private GilosController controller;
 
-	private Thread commandLoop;
+	private volatile Thread commandLoop;
+	private volatile Thread planningLoop;
 
 	public GilosDriver(GilosController controller, MachineConfig mc){
 		System.out.println("GilosDriver version "+VERSION);
@@ -76,20 +102,23 @@ public class GilosDriver implements Runnable {
 			return "??";
 		}
 	}
-	private synchronized void debugPrint(String msg){
+	// not synchronized on the driver, the planning thread logs too
+	private void debugPrint(String msg){
 		if(debug)System.out.print(msg);
 	}
-	private synchronized void debugPrintln(String msg){
+	private void debugPrintln(String msg){
 		if(debug){
-			System.out.print(msg);
-			for(int i=msg.length(); i<80; i++)System.out.print(" ");
-			System.out.println("@ "+getDebugTimestamp());
+			synchronized(System.out){
+				System.out.print(msg);
+				for(int i=msg.length(); i<80; i++)System.out.print(" ");
+				System.out.println("@ "+getDebugTimestamp());
+			}
 		}
 	}
 
 	// connection //////////////////////////////////////////////////////////////
 
-	private SerialPort port;
+	private Transport port;
 
 	/**
 	 * Indicates whether the application has a connection to a machine
@@ -102,7 +131,9 @@ public class GilosDriver implements Runnable {
 	 * Closes connection to a machine
 	 */
 	public void disconnect(){
-		if(isConnected())port.closePort();
+		if(port != null && eventDriven)port.removeDataListener();
+		eventDriven = false;
+		if(isConnected())port.close();
 		port = null;
 		try{
 			Thread.sleep(1000);
@@ -110,151 +141,510 @@ public class GilosDriver implements Runnable {
 		catch(InterruptedException e){}
 	}
 
+	// serial port probing
+	private static final int MAX_PROBE_THREADS = 4;
+	private static final long STARTUP_TIMEOUT = 10000; // Arduino may be restarting after the port is opened
+	private static final long PROBE_READ_DELAY = 300;
+
+	// port of the last successful connection, tried first
+	private String lastPortName;
+
+	/**
+	 * A serial port which answered as a supported machine
+	 */
+	private static class Probe {
+		final Transport port;
+		final byte firmwareVersion;
+		Probe(Transport port, byte firmwareVersion){
+			this.port = port;
+			this.firmwareVersion = firmwareVersion;
+		}
+	}
+
 	/**
-	 * Iterates over serial ports, connects to the first one which identifies as a supported machine
+	 * Probes serial ports, connects to the first one which identifies as a supported machine.
+	 * The port used last time is tried first, then all ports concurrently.
 	 */
 	public boolean findPort(){
 		disconnect();
 
-		SerialPort[] ports = SerialPort.getCommPorts();
-		for (SerialPort port: ports) {
-			this.port = port;
-			System.out.println("Trying "+port.getSystemPortName());
-			if(
-				   !port.openPort()
-				|| !port.setComPortParameters(
-						115200, // baud rate
-						8, // data bits
-						SerialPort.ONE_STOP_BIT,
-						SerialPort.NO_PARITY
-				)
-				|| !port.setComPortTimeouts(
-						SerialPort.TIMEOUT_READ_SEMI_BLOCKING,
-						500, // read timeout
-						0 // write timeout
-				)
-				|| !port.isOpen()
-			)continue;
-
-			try{
-				Thread.sleep(10000); // Arduino may be restarting
+		Transport[] ports = Transport.getAvailable();
+		Probe found = null;
+
+		// no need to wait for Arduino restart if it does not restart
+		if(lastPortName != null){
+			for(Transport port: ports){
+				if(port.getName().equals(lastPortName)){
+					System.out.println("Trying last used port first");
+					found = probePort(port, true, new AtomicReference<Probe>());
+					break;
+				}
 			}
-			catch(InterruptedException e){}
+		}
 
-			// empty buffer
-			byte[] readBuffer = new byte[port.bytesAvailable()];
-			int numBytesRead = port.readBytes(readBuffer, readBuffer.length);
-			String readChars = new String(readBuffer, 0, numBytesRead, StandardCharsets.UTF_8);
-			System.out.println(String.format("   read %d bytes: %s", numBytesRead, readChars));
+		if(found == null && ports.length > 0){
+			found = probePorts(ports);
+		}
 
-			// send "I", check if the response is "gilos"
-//			byte[] writeBuffer = {'I'};
-//			port.writeBytes(writeBuffer, 1);
-			System.out.println("   sending I");
-			write("I");
-			try{
-				Thread.sleep(300);
-			}
-			catch(InterruptedException e){}
-			readBuffer = new byte[5];
-			numBytesRead = port.readBytes(readBuffer, readBuffer.length);
-			readChars = new String(readBuffer, 0, numBytesRead, StandardCharsets.UTF_8);
-			System.out.println(String.format("   reading %d bytes: %s", numBytesRead, readChars));
-			if(numBytesRead == readBuffer.length){
-				if(readChars.equals("gilos")){
-
-					// checking firmware version
-					write("S");
-					try{
-						Thread.sleep(300);
-					}
-					catch(InterruptedException e){}
-					readBuffer = new byte[8];
-					numBytesRead = port.readBytes(readBuffer, readBuffer.length);
-					debugPrintln("    read "+numBytesRead+" bytes, detected firmware version "+readBuffer[0]);
-					if(numBytesRead == 7 && readBuffer[0] == 1){
-						firmwareVersion = 1;
-					}
-					else if(numBytesRead == 7 && readBuffer[0] >= MIN_FIRMWARE && readBuffer[0] <= MAX_FIRMWARE){
-						firmwareVersion = readBuffer[0];
-					}
-					else{
-						System.out.println("unsupported firmware version: "+readBuffer[0]);
-						continue;
-					}
+		if(found != null && connect(found)){
+			System.out.println("found!");
+			return true;
+		}
 
-					// resetting firmware state
-					write("R");
-					read("R");
+		System.out.println("nothing found");
 
-					commandLoop = new Thread(this);
-					commandLoop.start();
-					System.out.println("found!");
-					return true;
+		disconnect();
+		return false;
+	}
+
+	/**
+	 * Probes all ports on a bounded thread pool, returns the first one answering.
+	 * Other ports are closed.
+	 */
+	private Probe probePorts(Transport[] ports){
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(ports.length, MAX_PROBE_THREADS));
+		CompletionService<Probe> completion = new ExecutorCompletionService<Probe>(executor);
+		AtomicReference<Probe> winner = new AtomicReference<Probe>();
+		for(Transport port: ports){
+			completion.submit(() -> {
+				Probe probe = probePort(port, false, winner);
+				if(probe != null && !winner.compareAndSet(null, probe)){
+					probe.port.close(); // another port was faster
+					return null;
+				}
+				return probe;
+			});
+		}
+		try{
+			for(int i=0; i<ports.length && winner.get() == null; i++){
+				try{
+					completion.take().get();
+				}
+				catch(ExecutionException e){
+					e.printStackTrace();
 				}
 			}
-			else{
-				System.out.println("   not the right response");
+		}
+		catch(InterruptedException e){}
+		executor.shutdownNow(); // interrupting remaining probes, they close their ports
+		try{
+			executor.awaitTermination(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e){}
+		return winner.get();
+	}
+
+	/**
+	 * Opens a port, checks if there is a machine with supported firmware.
+	 * Leaves the port open on success, closes it otherwise.
+	 * Does not touch the state of the driver, can run in parallel.
+	 * @param quick Whether to try identification before waiting for Arduino restart
+	 * @param winner Another port already found, probing can be cancelled
+	 */
+	private Probe probePort(Transport port, boolean quick, AtomicReference<Probe> winner){
+		String name = port.getName();
+		System.out.println("Trying "+name);
+		boolean success = false;
+		try{
+			if(!port.open(DEFAULT_BAUD_RATE, 500))return null;
+
+			// send "I", check if the response is "gilos"
+			boolean identified = quick && probeIdentify(port);
+			if(!identified){
+				if(!waitForStartup(port, winner))return null;
+				identified = probeIdentify(port);
+			}
+			if(!identified){
+				System.out.println("   "+name+": not the right response");
+				return null;
 			}
 
-			port.closePort();
+			// checking firmware version
+			probeWrite(port, "S");
+			byte[] readBuffer = probeRead(port, 8);
+			int numBytesRead = readBuffer.length;
+			byte version = (numBytesRead > 0)? readBuffer[0] : 0;
+			debugPrintln("    "+name+": read "+numBytesRead+" bytes, detected firmware version "+version);
+			if(numBytesRead != 7 || (version != 1 && (version < MIN_FIRMWARE || version > MAX_FIRMWARE))){
+				System.out.println("   "+name+": unsupported firmware version: "+version);
+				return null;
+			}
+			if(winner.get() != null)return null;
+			success = true;
+			return new Probe(port, version);
 		}
+		finally{
+			if(!success)port.close();
+		}
+	}
 
-		System.out.println("nothing found");
+	/**
+	 * Waits until Arduino restarted by opening the port reports being ready, then empties input.
+	 * Returns false if probing was cancelled.
+	 */
+	private boolean waitForStartup(Transport port, AtomicReference<Probe> winner){
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		byte[] readBuffer = new byte[64];
+		boolean ready = false;
+		while(!ready && System.currentTimeMillis() < deadline){
+			if(Thread.currentThread().isInterrupted() || winner.get() != null)return false;
+			int numBytesRead = port.read(readBuffer, readBuffer.length); // blocks up to the read timeout
+			for(int i=0; i<numBytesRead; i++){
+				if(readBuffer[i] == 'R')ready = true;
+			}
+		}
+		System.out.println("   "+port.getName()+(ready? ": ready" : ": no startup signal"));
 
-		disconnect();
-		return false;
+		// empty buffer
+		probeRead(port, port.bytesAvailable());
+		return !Thread.currentThread().isInterrupted() && winner.get() == null;
+	}
+
+	/**
+	 * Sends "I" to a port being probed, checks the answer
+	 */
+	private boolean probeIdentify(Transport port){
+		probeWrite(port, "I");
+		byte[] readBuffer = probeRead(port, 5);
+		String readChars = new String(readBuffer, 0, readBuffer.length, StandardCharsets.UTF_8);
+		System.out.println(String.format("   %s: reading %d bytes: %s", port.getName(), readBuffer.length, readChars));
+		return readChars.equals("gilos");
+	}
+
+	private void probeWrite(Transport port, String data){
+		byte[] writeBuffer = data.getBytes(StandardCharsets.US_ASCII);
+		port.write(writeBuffer, writeBuffer.length);
+	}
+
+	/**
+	 * Waits a moment for an answer, then reads up to maxBytes from a port being probed
+	 */
+	private byte[] probeRead(Transport port, int maxBytes){
+		try{
+			Thread.sleep(PROBE_READ_DELAY);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		byte[] readBuffer = new byte[Math.max(maxBytes, 0)];
+		int numBytesRead = Math.max(port.read(readBuffer, readBuffer.length), 0);
+		return Arrays.copyOf(readBuffer, numBytesRead);
+	}
+
+	/**
+	 * Takes over a probed port, sets up communication and starts the command loop
+	 */
+	private boolean connect(Probe probe){
+		this.port = probe.port;
+		firmwareVersion = probe.firmwareVersion;
+		System.out.println("Connecting to "+port.getName());
+
+		compactMoves = firmwareVersion >= COMPACT_MOVE_FIRMWARE;
+		debugPrintln("    compact move encoding "+(compactMoves? "enabled" : "not supported"));
+		arcMoves = firmwareVersion >= ARC_FIRMWARE;
+		debugPrintln("    arc moves "+(arcMoves? "enabled" : "not supported"));
+
+		// switching to a faster serial line
+		baudRate = DEFAULT_BAUD_RATE;
+		if(firmwareVersion >= BAUD_NEGOTIATION_FIRMWARE && !negotiateBaudRate()){
+			System.out.println("   connection lost during serial line speed negotiation");
+			return false;
+		}
+
+		// switching to event-driven reading
+		listenForData();
+
+		// resetting firmware state
+		write("R");
+		read("R");
+
+		lastPortName = port.getName();
+		controller.updateLastPort(lastPortName);
+
+		frame.resetStats();
+		commandLoop = new Thread(this);
+		commandLoop.start();
+		planningLoop = new Thread(this::plan, "GilosDriver planning");
+		planningLoop.start();
+		return true;
 	}
 
 	/**
 	 * Returns a name to be displayed in GUI
 	 */
 	public String getName(){
-		return isConnected()? port.getSystemPortName() : "";
+		return isConnected()? port.getName() : "";
+	}
+
+	// serial line speed ///////////////////////////////////////////////////////
+
+	// speed after firmware reset
+	private static final int DEFAULT_BAUD_RATE = 115200;
+
+	// firmware goes back to the default speed if a new speed is not confirmed within this time
+	private static final long BAUD_CONFIRM_TIMEOUT = 2000;
+
+	// number of bytes sent and echoed back when testing a new speed
+	private static final int ECHO_TEST_LENGTH = 48;
+
+	// number of consecutive invalid status bytes causing a fall back to the default speed
+	private static final int INVALID_STATUS_LIMIT = 3;
+
+	private int baudRate = DEFAULT_BAUD_RATE;
+	private int maxBaudRate = DEFAULT_BAUD_RATE;
+	private int invalidStatusCount = 0;
+
+	/**
+	 * Returns the current serial line speed
+	 */
+	public int getBaudRate(){
+		return baudRate;
+	}
+
+	/**
+	 * Asks the firmware for supported serial line speeds, switches to the fastest one
+	 * (up to the configured maximum) which passes a loopback test.
+	 * Stays at the default speed when no faster one works.
+	 * Returns false if the machine stops responding.
+	 */
+	private boolean negotiateBaudRate(){
+		if(!port.canChangeBaudRate())return true;
+		receiveBuffer.clear();
+		write("H");
+		if(readByte() != 'H'){
+			System.out.println("   serial line speed list not received");
+			return true;
+		}
+		int numRates = readByte();
+		if(numRates <= 0)return true;
+		byte[] data = readBytes(4*numRates);
+		if(data.length < 4*numRates)return true;
+		int[] rates = new int[numRates];
+		for(int i=0; i<numRates; i++){
+			rates[i] = ((data[4*i  ] & 0xFF) << 24)
+			         | ((data[4*i+1] & 0xFF) << 16)
+			         | ((data[4*i+2] & 0xFF) <<  8)
+			         | ((data[4*i+3] & 0xFF) <<  0);
+		}
+
+		// trying speeds from the fastest one
+		boolean[] tried = new boolean[numRates];
+		while(true){
+			int best = -1;
+			for(int i=1; i<numRates; i++){ // index 0 is the default speed
+				if(!tried[i] && rates[i] > DEFAULT_BAUD_RATE && rates[i] <= maxBaudRate
+				&& (best < 0 || rates[i] > rates[best])){
+					best = i;
+				}
+			}
+			if(best < 0)break;
+			tried[best] = true;
+			if(switchBaudRate(best, rates[best]))break;
+			if(!"gilos".equals(identify()))return false;
+		}
+		System.out.println("   serial line speed "+baudRate+" Bd");
+		controller.updateBaudRate(baudRate);
+		return true;
+	}
+
+	/**
+	 * Switches both ends of the serial line to a new speed, checks it by sending test data
+	 * to be echoed back. Goes back to the default speed when the test fails.
+	 * @param index Index of the speed in the list received from firmware
+	 */
+	private boolean switchBaudRate(int index, int rate){
+		System.out.println("   trying "+rate+" Bd");
+		frame.clear().putChar('h').put((byte)index);
+		writeFrame(false);
+		if(readByte() != 'h')return false; // firmware stays at the current speed
+		if(port.setBaudRate(rate)){
+			discardInput();
+
+			// loopback test, with bytes covering all bit positions
+			frame.clear().putChar('E').put((byte)ECHO_TEST_LENGTH);
+			for(int i=0; i<ECHO_TEST_LENGTH; i++)frame.put(echoTestByte(i));
+			writeFrame(false);
+			byte[] echo = readBytes(ECHO_TEST_LENGTH);
+			boolean valid = echo.length == ECHO_TEST_LENGTH;
+			for(int i=0; valid && i<ECHO_TEST_LENGTH; i++){
+				valid = echo[i] == echoTestByte(i);
+			}
+			if(valid){
+				write("k"); // confirming the new speed
+				if(readByte() == 'k'){
+					baudRate = rate;
+					return true;
+				}
+			}
+		}
+
+		// firmware goes back by itself without confirmation
+		System.out.println("   loopback test failed at "+rate+" Bd");
+		port.setBaudRate(DEFAULT_BAUD_RATE);
+		try{
+			Thread.sleep(BAUD_CONFIRM_TIMEOUT + 500);
+		}
+		catch(InterruptedException e){}
+		discardInput();
+		baudRate = DEFAULT_BAUD_RATE;
+		return false;
+	}
+
+	private static byte echoTestByte(int i){
+		return (byte)(i*97 + 0x5A);
+	}
+
+	/**
+	 * Sends "I", returns the answer (expected to be "gilos")
+	 */
+	private String identify(){
+		write("I");
+		return read(5);
+	}
+
+	/**
+	 * Switches both ends of the serial line back to the default speed after communication errors.
+	 * Faster speeds are not negotiated again until the next configuration update.
+	 */
+	private void fallBackBaudRate(){
+		System.err.println("Serial line errors at "+baudRate+" Bd, falling back to "+DEFAULT_BAUD_RATE+" Bd");
+		invalidStatusCount = 0;
+		frame.clear().putChar('h').put((byte)0);
+		writeFrame(false);
+		try{
+			Thread.sleep(100);
+		}
+		catch(InterruptedException e){}
+		port.setBaudRate(DEFAULT_BAUD_RATE);
+		baudRate = maxBaudRate = DEFAULT_BAUD_RATE;
+		discardInput();
+		pendingAcks = 0; // replies were discarded
+		controller.updateBaudRate(baudRate);
+	}
+
+	/**
+	 * Throws away all data received so far
+	 */
+	private void discardInput(){
+		if(!eventDriven){
+			while(port.bytesAvailable() > 0){
+				pollPort(port.bytesAvailable());
+				receiveBuffer.clear();
+			}
+		}
+		receiveBuffer.clear();
 	}
 
 	// communication ///////////////////////////////////////////////////////////
 
+	// incoming data stored by the serial port event thread
+	private final ByteRingBuffer receiveBuffer = new ByteRingBuffer(65536);
+
+	// whether incoming data arrive via receiveBuffer (true), or are polled from the port (false)
+	private boolean eventDriven = false;
+
+	// thread waiting for incoming data in peekBytes
+	private volatile Thread receiveWaiter;
+
 	/**
-	 * Reads numBytes or the closest immediately available amount of bytes from the machine
+	 * Registers a listener moving incoming data to receiveBuffer as soon as they arrive.
+	 * Falls back to polling when the listener cannot be registered.
 	 */
-	private byte[] readRawBytes(int numBytes){
-		if(this.port == null)return new byte[0];
-		byte[] readBuffer = new byte[numBytes];
-		int actualNumBytes = port.readBytes(readBuffer, numBytes);
-		if(actualNumBytes <= 0)return new byte[0];
-		return Arrays.copyOf(readBuffer, actualNumBytes);
+	private void listenForData(){
+		receiveBuffer.clear();
+		final byte[] chunk = new byte[1024];
+		eventDriven = port.setDataListener(() -> {
+			int numBytes;
+			while((numBytes = Math.min(port.bytesAvailable(), receiveBuffer.free())) > 0){
+				numBytes = port.read(chunk, Math.min(numBytes, chunk.length));
+				if(numBytes <= 0)break;
+				receiveBuffer.write(chunk, 0, numBytes);
+			}
+			if(receiveBuffer.free() == 0){
+				System.err.println("Serial receive buffer full");
+			}
+			Thread waiter = receiveWaiter;
+			if(waiter != null)LockSupport.unpark(waiter);
+			wakeCommandLoop();
+		});
+		debugPrintln("driver: event-driven reading "+(eventDriven? "enabled" : "not available, polling"));
 	}
 
-	private byte[] peekBuffer = new byte[0];
 	/**
-	 * Attempts to read numBytes bytes from the machine within a time limit.
-	 * Stores read bytes in a buffer so they can be read again later.
-	 * Returns incomplete data if the requested number of bytes doesn't appear within the timeout.
+	 * Wakes up the command loop when it is waiting for something to do
+	 */
+	private void wakeCommandLoop(){
+		Thread loop = commandLoop;
+		if(loop != null)LockSupport.unpark(loop);
+	}
+
+	private final byte[] pollChunk = new byte[1024];
+	/**
+	 * Moves up to numBytes immediately available bytes from the port to receiveBuffer.
+	 * Only needed when the data listener is not active.
+	 */
+	private void pollPort(int numBytes){
+		if(eventDriven || this.port == null)return;
+		int len = Math.min(Math.min(numBytes, pollChunk.length), receiveBuffer.free());
+		if(len <= 0)return;
+		int actualNumBytes = port.read(pollChunk, len);
+		if(actualNumBytes > 0)receiveBuffer.write(pollChunk, 0, actualNumBytes);
+	}
+
+	/**
+	 * Waits until numBytes bytes from the machine are buffered, or until a time limit.
+	 * Returns the number of buffered bytes, which is lower than numBytes on timeout.
 	 * Manual waiting for bytes is implemented because this functionality of the Fazecast library
 	 * does not seem to work on some systems.
 	 */
-	public byte[] peekBytes(int numBytes){
+	private int waitForBytes(int numBytes){
 		// waiting for full number of bytes does not seem to work on Windows => waiting manually
-		debugPrintln("  gilos.peekBytes");
-		for(int i=0; i<50 && peekBuffer.length<numBytes; i++){
-			byte[] newData = readRawBytes(numBytes-peekBuffer.length);
-			if(newData.length > 0){
-				peekBuffer = Arrays.copyOf(peekBuffer, peekBuffer.length+newData.length);
-				System.arraycopy(newData, 0, peekBuffer, peekBuffer.length-newData.length, newData.length);
+		long deadline = System.nanoTime() + TIMEOUT_READ*1_000_000L;
+		receiveWaiter = Thread.currentThread();
+		for(int i=0; receiveBuffer.available()<numBytes; i++){
+			pollPort(numBytes-receiveBuffer.available());
+			if(receiveBuffer.available() >= numBytes)break;
+			if(eventDriven){
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0)break;
+				LockSupport.parkNanos(this, remaining); // woken up by the data listener
 			}
-			if(peekBuffer.length >= numBytes)break;
-			try{
-				Thread.sleep(10);
+			else{
+				if(i >= 49)break;
+				try{
+					Thread.sleep(10);
+				}
+				catch(InterruptedException e){}
 			}
-			catch(InterruptedException e){}
 		}
-		return Arrays.copyOf(peekBuffer, Math.min(numBytes, peekBuffer.length));
+		receiveWaiter = null;
+		return receiveBuffer.available();
+	}
+
+	/**
+	 * Attempts to read numBytes bytes from the machine within a time limit.
+	 * Keeps read bytes in the receive buffer so they can be read again later.
+	 * Returns incomplete data if the requested number of bytes doesn't appear within the timeout.
+	 */
+	public byte[] peekBytes(int numBytes){
+		debugPrintln("  gilos.peekBytes");
+		byte[] data = new byte[Math.min(numBytes, waitForBytes(numBytes))];
+		receiveBuffer.peek(data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * Attempts to read a single byte from the machine, keeps it in the receive buffer.
+	 * Returns -1 on timeout.
+	 */
+	private int peekByte(){
+		waitForBytes(1);
+		return receiveBuffer.peek(0);
 	}
 
 	/**
 	 * Attempts to read numBytes from the machine, converts them to String.
-	 * Storers read data in a buffer.
+	 * Keeps read data in the receive buffer.
 	 */
 	public String peek(int numBytes){
 		byte[] data = peekBytes(numBytes);
@@ -263,20 +653,33 @@ public class GilosDriver implements Runnable {
 
 	/**
 	 * Attempts to read numBytes bytes from the machine.
-	 * Does not store them in buffer.
+	 * Removes them from the receive buffer.
 	 */
 	public byte[] readBytes(int numBytes){
-		byte[] data = peekBytes(numBytes);
-		debugPrint("  gilos.readBytes [");
-		for(byte b: data)debugPrint(" "+(b & 0xFF));
-		debugPrintln(" ]");
-		peekBuffer = Arrays.copyOfRange(peekBuffer, data.length, peekBuffer.length);
+		byte[] data = new byte[Math.min(numBytes, waitForBytes(numBytes))];
+		receiveBuffer.read(data, 0, data.length);
+		if(debug){
+			debugPrint("  gilos.readBytes [");
+			for(byte b: data)debugPrint(" "+(b & 0xFF));
+			debugPrintln(" ]");
+		}
+		return data;
+	}
+
+	/**
+	 * Attempts to read a single byte from the machine, removes it from the receive buffer.
+	 * Returns -1 on timeout.
+	 */
+	private int readByte(){
+		waitForBytes(1);
+		int data = receiveBuffer.read();
+		if(debug)debugPrintln("  gilos.readByte "+data);
 		return data;
 	}
 
 	/**
 	 * Attempts to read numBytes bytes from the machine, converts them to String.
-	 * Does not store data in buffer.
+	 * Removes read data from the receive buffer.
 	 */
 	public String read(int numBytes){
 		byte[] byteData = readBytes(numBytes);
@@ -286,23 +689,26 @@ public class GilosDriver implements Runnable {
 	}
 
 	/**
-	 * Attempts to read numBytes bytes from the machine, converts them to String,
-	 * compares them to an expected value.
-	 * Does not store data in buffer.
+	 * Attempts to read numBytes bytes from the machine, compares them to an expected value
+	 * in place (without allocating anything).
+	 * Removes read data from the receive buffer.
 	 */
 	public String read(String expectedData){
-		String actualData = read(expectedData.length());
-		debugPrintln("  gilos.read 2 \""+actualData+"\"");
-		check(expectedData.equals(actualData));
-		return actualData;
+		int numBytes = expectedData.length();
+		waitForBytes(numBytes);
+		boolean matches = receiveBuffer.matches(expectedData);
+		if(debug)debugPrintln("  gilos.read 2 \""+expectedData+"\" "+(matches? "ok" : "mismatch"));
+		receiveBuffer.skip(numBytes);
+		check(matches);
+		return expectedData;
 	}
 
 	/**
 	 * Returns the number of immediately available bytes from the machine
-	 * (either from the Fazecast library or from the extra buffer in this class)
+	 * (either from the Fazecast library or from the receive buffer in this class)
 	 */
 	public int bytesAvailable(){
-		return peekBuffer.length + port.bytesAvailable();
+		return receiveBuffer.available() + (eventDriven? 0 : port.bytesAvailable());
 	}
 
 	/**
@@ -314,7 +720,7 @@ public class GilosDriver implements Runnable {
 		for(int i=data.length()-1; i>=0; i--){
 			writeBuffer[i] = (byte)data.charAt(i);
 		}
-		port.writeBytes(writeBuffer, data.length());
+		port.write(writeBuffer, data.length());
 	}
 
 	/**
@@ -322,7 +728,7 @@ public class GilosDriver implements Runnable {
 	 */
 	public void write(byte data){
 		debugPrintln("  gilos.write byte "+Byte.toUnsignedInt(data));
-		port.writeBytes(new byte[]{data}, 1);
+		port.write(new byte[]{data}, 1);
 	}
 
 	/**
@@ -330,8 +736,8 @@ public class GilosDriver implements Runnable {
 	 */
 	public void writeInt(int data){
 		debugPrintln("  gilos.writeInt "+data);
-		write((byte)((data >> 8) & 0xFF));
-		write((byte)((data >> 0) & 0xFF));
+		frame.clear().putInt(data);
+		writeFrame(false);
 	}
 
 	/**
@@ -339,10 +745,34 @@ public class GilosDriver implements Runnable {
 	 */
 	public void writeLong(int data){
 		debugPrintln("  gilos.writeLong "+data);
-		write((byte)((data >> 24) & 0xFF));
-		write((byte)((data >> 16) & 0xFF));
-		write((byte)((data >>  8) & 0xFF));
-		write((byte)((data >>  0) & 0xFF));
+		frame.clear().putLong(data);
+		writeFrame(false);
+	}
+
+	// whole commands are assembled here to be sent by a single write call
+	private final FrameWriter frame = new FrameWriter(64);
+
+	/**
+	 * Sends the frame assembled in the frame writer to the machine
+	 * @param isMove Whether the frame carries a move (for statistics)
+	 */
+	private void writeFrame(boolean isMove){
+		if(debug){
+			debugPrint("  gilos.writeFrame [");
+			for(int i=0; i<frame.length(); i++)debugPrint(" "+(frame.get(i) & 0xFF));
+			debugPrintln(" ]");
+		}
+		frame.flush(port, isMove);
+		if(isMove && frame.moves() % 1000 == 0){
+			debugPrintln("serial line stats: "+frame);
+		}
+	}
+
+	/**
+	 * Returns serial line traffic statistics (bytes per second, writes per move)
+	 */
+	public FrameWriter getLineStats(){
+		return frame;
 	}
 
 	// configuration ///////////////////////////////////////////////////////////
@@ -353,8 +783,14 @@ public class GilosDriver implements Runnable {
 	 * Send configuration of axes to the machine
 	 */
 	public synchronized void setAxes(MachineConfig mc){
+		maxBaudRate = mc.maxBaudRate; // used on next connection
+		lastPortName = mc.lastPort;
 		if(!isConnected())return;
-		machineConf = mc.clone();
+		synchronized(planLock){
+			machineConf = mc.clone();
+			planner.setLookAhead(mc.lookAhead);
+			planner.setJunctionDeviation(mc.junctionDeviation);
+		}
 
 		boolean xZeroUp = mc.x.zeroUp() != mc.x.inverted();
 		boolean yZeroUp = mc.y.zeroUp() != mc.y.inverted();
@@ -372,80 +808,31 @@ public class GilosDriver implements Runnable {
 		mc.w.backlashSteps();
 
 		write("C"); // enter config mode
+		writeAxisConfig('X', mc.x, xZeroUp);
+		writeAxisConfig('Y', mc.y, yZeroUp);
+		writeAxisConfig('Z', mc.z, zZeroUp);
+		writeAxisConfig('U', mc.u, uZeroUp);
+		writeAxisConfig('V', mc.v, vZeroUp);
+		writeAxisConfig('W', mc.w, wZeroUp);
+		write("."); // exit config mode
+	}
 
-		write("X" + (mc.x.exists()? (xZeroUp? "u" : "d") : "0"));
-		if(mc.x.inverted()){
-			writeLong(-mc.x.highLimitSteps());
-			writeLong(-mc.x.lowLimitSteps());
-		}
-		else{
-			writeLong(mc.x.lowLimitSteps());
-			writeLong(mc.x.highLimitSteps());
-		}
-		writeInt(mc.x.backlashSteps());
-		read("c");
-
-		write("Y" + (mc.y.exists()? (yZeroUp? "u" : "d") : "0"));
-		if(mc.y.inverted()){
-			writeLong(-mc.y.highLimitSteps());
-			writeLong(-mc.y.lowLimitSteps());
-		}
-		else{
-			writeLong(mc.y.lowLimitSteps());
-			writeLong(mc.y.highLimitSteps());
-		}
-		writeInt(mc.y.backlashSteps());
-		read("c");
-
-		write("Z" + (mc.z.exists()? (zZeroUp? "u" : "d") : "0"));
-		if(mc.z.inverted()){
-			writeLong(-mc.z.highLimitSteps());
-			writeLong(-mc.z.lowLimitSteps());
-		}
-		else{
-			writeLong(mc.z.lowLimitSteps());
-			writeLong(mc.z.highLimitSteps());
-		}
-		writeInt(mc.z.backlashSteps());
-		read("c");
-
-		write("U" + (mc.u.exists()? (uZeroUp? "u" : "d") : "0"));
-		if(mc.u.inverted()){
-			writeLong(-mc.u.highLimitSteps());
-			writeLong(-mc.u.lowLimitSteps());
-		}
-		else{
-			writeLong(mc.u.lowLimitSteps());
-			writeLong(mc.u.highLimitSteps());
-		}
-		writeInt(mc.u.backlashSteps());
-		read("c");
-
-		write("V" + (mc.v.exists()? (vZeroUp? "u" : "d") : "0"));
-		if(mc.v.inverted()){
-			writeLong(-mc.v.highLimitSteps());
-			writeLong(-mc.v.lowLimitSteps());
-		}
-		else{
-			writeLong(mc.v.lowLimitSteps());
-			writeLong(mc.v.highLimitSteps());
-		}
-		writeInt(mc.v.backlashSteps());
-		read("c");
-
-		write("W" + (mc.w.exists()? (wZeroUp? "u" : "d") : "0"));
-		if(mc.w.inverted()){
-			writeLong(-mc.w.highLimitSteps());
-			writeLong(-mc.w.lowLimitSteps());
+	/**
+	 * Sends configuration block of a single axis as one frame, waits for confirmation
+	 */
+	private void writeAxisConfig(char name, AxisConfig ax, boolean zeroUp){
+		frame.clear().putChar(name).putChar(ax.exists()? (zeroUp? 'u' : 'd') : '0');
+		if(ax.inverted()){
+			frame.putLong(-ax.highLimitSteps());
+			frame.putLong(-ax.lowLimitSteps());
 		}
 		else{
-			writeLong(mc.w.lowLimitSteps());
-			writeLong(mc.w.highLimitSteps());
+			frame.putLong(ax.lowLimitSteps());
+			frame.putLong(ax.highLimitSteps());
 		}
-		writeInt(mc.w.backlashSteps());
+		frame.putInt(ax.backlashSteps());
+		writeFrame(false);
 		read("c");
-
-		write("."); // exit config mode
 	}
 
 	// communication state machine /////////////////////////////////////////////
@@ -474,6 +861,53 @@ public class GilosDriver implements Runnable {
 	// was the last move sent to the machine a manual move?
 	private boolean lastMoveManual;
 
+	// sending tool path moves without waiting for each one's status reply?
+	private boolean pipelining = true;
+
+	// number of moves sent in pipelining mode whose status reply has not been read yet
+	private int pendingAcks;
+
+	// most moves the mirror buffer may hold in pipelining mode
+	// (fullBufferLength in firmware is 60, keeping a margin)
+	private static final int MOVE_CREDITS = 56;
+
+	/**
+	 * Switches between sending moves back-to-back within a credit window (true),
+	 * and waiting for a status reply after each move (false)
+	 */
+	public synchronized void setPipelining(boolean pipelining){
+		this.pipelining = pipelining;
+	}
+
+	public synchronized boolean isPipelining(){
+		return pipelining;
+	}
+
+	/**
+	 * Tells if another tool path move can be sent to the machine
+	 */
+	private synchronized boolean hasMoveCredit(){
+		if(pipelining){
+			// the mirror buffer never holds fewer moves than the machine
+			return machineMoveBuffer.size() < MOVE_CREDITS;
+		}
+		return moveBufferFree;
+	}
+
+	/**
+	 * Reads status replies of all pipelined moves, so that the next command can read its own reply
+	 */
+	private synchronized void drainAcks(){
+		while(pendingAcks > 0){
+			if(waitForBytes(1) < 1){
+				System.err.println("Missing status of "+pendingAcks+" moves");
+				pendingAcks = 0;
+				break;
+			}
+			checkBuffer();
+		}
+	}
+
 	private boolean manualReady;
 	/**
 	 * Tracking if the machine has a free buffer for a manual move
@@ -482,8 +916,6 @@ public class GilosDriver implements Runnable {
 		return manualReady;
 	}
 
-	private static final Move zeroMove = new Move(0, 0, 0, 0, 0, 0, (byte)0, ' ');
-
 	/**
 	 * Sets all internal state to initial values
 	 */
@@ -492,36 +924,49 @@ public class GilosDriver implements Runnable {
 		state = State.READY;
 		timeoutStart = 0;
 		moving = false;
-		commandBuffer = new ArrayList<Command>();
-		moveBuffer = new ArrayList<Move>();
+		commandBuffer.clear();
+		moveBuffer.clear();
+		manualMoveBuffer.clear();
 		moveBufferFree = true;
 		manualReady = true;
 		lastMoveManual = false;
-		numManualMoves = 0;
-		machineMoveBuffer = new ArrayList<Move>();
-		spindleSpeedBuffer = new ArrayList<Byte>();
+		pendingAcks = 0;
+		machineMoveBuffer.clear();
+		machineMicros = 0;
+		sentEndSpeed = finishedEndSpeed = SPEED_LOW;
+		spindleSpeedBuffer.clear();
 		remainingSteps = 0;
-		currentMove = zeroMove;
+		setZeroCurrentMove();
 		resetSequence();
 	}
 
 	/**
-	 * Discards position data waiting to be transformed to moves
+	 * Discards position data waiting to be transformed to moves, and moves planned from it
 	 */
 	private synchronized void resetSequence(){
-		x = new double[0];
-		y = new double[0];
-		z = new double[0];
-		u = new double[0];
-		v = new double[0];
-		w = new double[0];
-		bufDx = bufDy = bufDz = bufDu = bufDv = bufDw = 0;
-		zeroSpeedDistances = new double[0];
-		segmentIndex = 0;
-		sequenceDistance = 0;
-		nextZeroIndex = 0;
-		prevZeroDistance = nextZeroDistance = 0;
-		controller.sequenceReset();
+		// cleared while the controller holds back batches, so that none read before the reset gets into the path
+		controller.sequenceReset(() -> {
+			synchronized(planLock){
+				path.clear();
+				plannedMoves.clear();
+				planOverflow.clear();
+				bufDx = bufDy = bufDz = bufDu = bufDv = bufDw = 0;
+				segmentIndex = 0;
+				trimmedPoints = 0;
+				plannedMoveCount = 0;
+				sequenceDistance = 0;
+				nextZeroIndex = 0;
+				plannedSpeed = MotionPlanner.LOW_SPEED;
+				planner.invalidate();
+				queuedMicros.set(0);
+				plannedEndSpeed = SPEED_LOW;
+				pathPending = false;
+			}
+			finishedMoveCount = 0;
+			synchronized(pointMilestones){
+				pointMilestones.clear();
+			}
+		});
 	}
 
 	// buffer for commands to be sent to the machine
@@ -539,24 +984,40 @@ public class GilosDriver implements Runnable {
 		CHUCK_CLOSE,
 		SET_SPINDLE_SPEED,
 	};
-	private ArrayList<Command> commandBuffer;
-	private ArrayList<Move> moveBuffer;
-	private ArrayList<Byte> spindleSpeedBuffer;
-	private int numManualMoves;
+	private final ArrayDeque<Command> commandBuffer = new ArrayDeque<Command>();
+	private final ArrayDeque<Byte> spindleSpeedBuffer = new ArrayDeque<Byte>();
+	private final MoveQueue moveBuffer = new MoveQueue(64); // moves from the tool path, taken from plannedMoves
+	private final MoveQueue manualMoveBuffer = new MoveQueue(16); // manual moves, sent before tool path moves
+
+	/**
+	 * Takes moves prepared by the planning thread
+	 */
+	private synchronized void pullPlannedMoves(){
+		int pulled = 0;
+		while(moveBuffer.size() < STAGED_MOVES && plannedMoves.pollInto(moveBuffer))pulled++;
+		if(pulled > 0)wakePlanningLoop();
+	}
+
+	/**
+	 * Returns the queue the next move will be sent from
+	 */
+	private MoveQueue nextMoveQueue(){
+		return manualMoveBuffer.isEmpty()? moveBuffer : manualMoveBuffer;
+	}
 
 	/**
 	 * Returns the next command to be sent to the machine.
 	 * Keeps the command in the command buffer.
 	 */
 	private synchronized Command getCommand(){
-		if(moveBuffer.size() > 0 && numManualMoves > 0 && manualReady){
+		if(manualMoveBuffer.size() > 0 && manualReady){
 			return Command.SEND_MOVE;
 		}
-		else if(moveBuffer.size() > 0 && numManualMoves == 0 && moveBufferFree){
+		else if(moveBuffer.size() > 0 && manualMoveBuffer.size() == 0 && hasMoveCredit()){
 			return Command.SEND_MOVE;
 		}
 		else if(commandBuffer.size() > 0){
-			return commandBuffer.get(0);
+			return commandBuffer.peekFirst();
 		}
 		else{
 			return Command.NO_COMMAND;
@@ -568,15 +1029,14 @@ public class GilosDriver implements Runnable {
 	 */
 	private synchronized void popCommand(Command c){
 		if(c == Command.SEND_MOVE){
-			moveBuffer.remove(0);
-			if(numManualMoves > 0)numManualMoves--;
+			nextMoveQueue().removeFirst();
 		}
 		else if(c == Command.SET_SPINDLE_SPEED){
-			spindleSpeedBuffer.remove(0);
-			check(c == commandBuffer.remove(0));
+			spindleSpeedBuffer.pollFirst();
+			check(c == commandBuffer.pollFirst());
 		}
 		else if(c != Command.NO_COMMAND){
-			check(c == commandBuffer.remove(0));
+			check(c == commandBuffer.pollFirst());
 		}
 	}
 
@@ -584,76 +1044,103 @@ public class GilosDriver implements Runnable {
 	 * Reads a status byte from the machine, updates state variables
 	 */
 	private synchronized char checkBuffer(){
-		String response = read(1);
-		debugPrintln("checkBuffer: read "+response);
-		if(response.equals("o")){
+		int data = readByte();
+		char response = (data < 0)? 0 : (char)data;
+		if(debug)debugPrintln("checkBuffer: read "+response);
+		if(pendingAcks > 0 && "fFgGoO".indexOf(response) >= 0){
+			pendingAcks--;
+			if(response == 'o' || response == 'O'){
+				// cannot happen unless the mirror buffer is out of sync
+				System.err.println("Move buffer overflow while pipelining, disabling pipelining");
+				pipelining = false;
+			}
+		}
+		if(response == 'o'){
 			moving = false;
 			moveBufferFree = false;
 		}
-		else if(response.equals("O")){
+		else if(response == 'O'){
 			moving = true;
 			moveBufferFree = false;
 		}
-		else if(response.equals("g")){
+		else if(response == 'g'){
 			moving = false;
 			moveBufferFree = false;
 		}
-		else if(response.equals("G")){
+		else if(response == 'G'){
 			moving = true;
 			moveBufferFree = false;
 		}
-		else if(response.equals("f")){
+		else if(response == 'f'){
 			moving = false;
 			moveBufferFree = true;
-			if(moveBuffer.size() == 0){
-				debugPrintln("machine stopped with free move buffer");
-				controller.updateRunning(false);
-				if(machineMoveBuffer.size() == 0 && !lastMoveManual){
-					debugPrintln("machine stopped after last move");
-					controller.toolPathFinished();
+			boolean pathDone = !pathPending && !controller.morePointsExpected(); // checked before the queues
+			if(moveBuffer.size() == 0 && plannedMoves.isEmpty() && manualMoveBuffer.size() == 0 && pendingAcks == 0){
+				if(!pathDone && controller.isRunning() && !lastMoveManual){
+					// waiting for the rest of the tool path, still running
+					if(machineMoveBuffer.size() == 0)noteUnderrun();
+				}
+				else{
+					debugPrintln("machine stopped with free move buffer");
+					controller.updateRunning(false);
+					if(machineMoveBuffer.size() == 0 && !lastMoveManual){
+						debugPrintln("machine stopped after last move, "+underruns+" move buffer underruns");
+						controller.toolPathFinished();
+					}
 				}
 			}
 		}
-		else if(response.equals("F")){
+		else if(response == 'F'){
 			moving = true;
 			moveBufferFree = true;
 		}
-		else if(response.equals("p")){
+		else if(response == 'p'){
 			moving = false;
 			moveBufferFree = true;
+			boolean toolPathMove = machineMoveBuffer.size() > 0 && machineMoveBuffer.type(0) == 'M';
 			popMachineMove(true);
+			if(toolPathMove && machineMoveBuffer.size() == 0 && controller.isRunning()
+			&& (pathPending || controller.morePointsExpected() || moveBuffer.size() > 0 || !plannedMoves.isEmpty())){
+				noteUnderrun();
+			}
 		}
-		else if(response.equals("P")){
+		else if(response == 'P'){
 			moving = true;
 			moveBufferFree = true;
 			popMachineMove(true);
 		}
-		else if(response.equals("q")){
+		else if(response == 'q'){
 			popMachineMove(false); // ended by "." signal, move not finished
 		}
-		else if(response.equals("Q")){
-			if(machineMoveBuffer.size() <= 1 || machineMoveBuffer.get(0).type() != 'M'){
+		else if(response == 'Q'){
+			if(machineMoveBuffer.size() <= 1 || machineMoveBuffer.type(0) != 'M'){
 				moving = false;
 				controller.updateRunning(false);
 			}
 			popMachineMove(true);
 		}
-		else if(response.equals("W")){
+		else if(response == 'W'){
 			manualReady = true;
 		}
-		else if(response.equals(".")){
+		else if(response == '.'){
 			moving = false;
 			manualReady = true;
 			popAllManualMoves();
 			controller.updateRunning(false);
 		}
-		else if(response.equals("R")){
+		else if(response == 'R'){
 			controller.invalidateConfig();
 		}
 		else{
-			System.err.println("Invalid buffer status received: \""+response+"\"");
+			System.err.println("Invalid buffer status received: \""+((data < 0)? "" : ""+response)+"\"");
+			invalidStatusCount++;
+			if(baudRate != DEFAULT_BAUD_RATE && invalidStatusCount >= INVALID_STATUS_LIMIT){
+				fallBackBaudRate();
+			}
+			return response;
 		}
-		return (response.length() == 0)? 0 : response.charAt(0);
+		invalidStatusCount = 0;
+		return response;
 	}
 
 	/**
@@ -662,18 +1149,20 @@ public class GilosDriver implements Runnable {
 	private void updateRemainingSteps(){
 		write("$");
 		while(checkBuffer() != 'b'){}
-		byte[] response = readBytes(2);
-		if(response.length != 2){
+		int high = readByte();
+		int low = readByte();
+		if(high < 0 || low < 0){
 			System.err.println("Invalid segment part read");
 			return;
 		}
-		int stepsDone = (((int)response[0] & 0xFF) << 8) + ((int)response[1] & 0xFF);
+		int stepsDone = (high << 8) + low;
 		debugPrintln("driver.updateRemainingSteps "+stepsDone);
+		int moveSteps = currentMove.steps(0);
+		int fromStep = Math.max(moveSteps-remainingSteps, 0);
 		remainingSteps = Math.max(remainingSteps-stepsDone, 0);
 
-		int moveSteps = stepsPerMove(currentMove);
 		debugPrintln("stepsDone: "+stepsDone+", moveSteps: "+moveSteps);
-		shiftPositionByMove(currentMove, ((double)stepsDone)/Math.max(moveSteps, 1));
+		shiftPositionByMove(currentMove, 0, fromStep, fromStep+stepsDone);
 	}
 
 	/**
@@ -682,10 +1171,16 @@ public class GilosDriver implements Runnable {
 	public void run(){
 		debugPrintln("driver.commandLoop starting");
 		while(isConnected()){
-			if(!processCommand())try{
-				Thread.sleep(1);
+			if(!processCommand()){
+				if(eventDriven){
+					// parking until the machine sends something or a new command is added
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				else try{
+					Thread.sleep(1);
+				}
+				catch(InterruptedException e){}
 			}
-			catch(InterruptedException e){}
 		}
 		debugPrintln("driver.commandLoop exiting");
 	}
@@ -697,6 +1192,7 @@ public class GilosDriver implements Runnable {
 	 */
 	private synchronized boolean processCommand(){
 		byte[] writeBuffer;
+		pullPlannedMoves();
 		Command command = getCommand();
 		if(command != Command.NO_COMMAND || noCommandCount % 1000 == 0){
 			debugPrintln("processCommand "+command+", state = "+state+", noCommandCount = "+noCommandCount);
@@ -704,13 +1200,17 @@ public class GilosDriver implements Runnable {
 		switch(state){
 
 			case READY:
-				if(moveBufferFree)popSequence();
 				for(int i=0; i<100 && bytesAvailable()>0; i++){
 //					debugPrintln("driver: Reading in READY: \""+read(bytesAvailable())+"\"");
 //					debugPrint("      moveBufferFree = "+moveBufferFree);
 					debugPrintln("driver.processCommand READY: data to read");
 					checkBuffer();
 				}
+				if(pendingAcks > 0 && command != Command.NO_COMMAND &&
+				   (command != Command.SEND_MOVE || manualMoveBuffer.size() > 0)){
+					// other commands read their own replies
+					drainAcks();
+				}
 				switch(command){
 
 					case BLINK_LED:
@@ -740,7 +1240,7 @@ public class GilosDriver implements Runnable {
 //						timeoutStart = System.currentTimeMillis();
 						updateRemainingSteps();
 						popCommand(command);
-						if(currentMove.type() != 'M'){
+						if(currentMove.type(0) != 'M'){
 							updateCurrentMove(); // a manual move might have been popped unfinished by checkBuffer
 						}
 						debugPrintln("processCommand return 3");
@@ -751,28 +1251,31 @@ public class GilosDriver implements Runnable {
 						write("R");
 						popCommand(command);
 						resetSequence();
-						commandBuffer = new ArrayList<Command>();
-						moveBuffer = new ArrayList<Move>();
-						machineMoveBuffer = new ArrayList<Move>();
-						spindleSpeedBuffer = new ArrayList<Byte>();
+						commandBuffer.clear();
+						moveBuffer.clear();
+						manualMoveBuffer.clear();
+						machineMoveBuffer.clear();
+						machineMicros = 0;
+						sentEndSpeed = finishedEndSpeed = SPEED_LOW;
+						spindleSpeedBuffer.clear();
 						remainingSteps = 0;
-						currentMove = zeroMove;
+						setZeroCurrentMove();
 						moving = false;
 						moveBufferFree = true;
 						manualReady = true;
 						lastMoveManual = false;
-						numManualMoves = 0;
+						pendingAcks = 0;
 						read("R");
 						debugPrintln("processCommand return 4");
 						return true;
 
 					case SEND_MOVE:
 						debugPrintln("driver.processCommand READY: SEND_MOVE");
-						if(numManualMoves == 0 && !moveBufferFree){
+						if(manualMoveBuffer.size() == 0 && !hasMoveCredit()){
 							debugPrintln("processCommand return 5");
 							return false;
 						}
-						if(numManualMoves > 0 && !manualReady){
+						if(manualMoveBuffer.size() > 0 && !manualReady){
 							debugPrintln("processCommand return 6");
 							return false;
 						}
@@ -782,11 +1285,23 @@ public class GilosDriver implements Runnable {
 //							checkBuffer();
 //							updateRemainingSteps();
 //						}
-						Move m = moveBuffer.get(0);
-						debugPrintln("send move "+m.dx()+" "+m.dy()+" "+m.dz()+", "+m.du()+" "+m.dv()+" "+m.dw()+", speed "+((int)m.endSpeed() & 0xFF)+", type "+m.type());
-						lastMoveManual = m.type() != 'M';
-						sendMove(m);
-						if(numManualMoves > 0)manualReady = false;
+						MoveQueue q = nextMoveQueue();
+						debugPrintln("send move "+q.dx(0)+" "+q.dy(0)+" "+q.dz(0)+", "+q.du(0)+" "+q.dv(0)+" "+q.dw(0)+", speed "+((int)q.endSpeed(0) & 0xFF)+", type "+q.type(0));
+						lastMoveManual = q.type(0) != 'M';
+						sendMove(q, 0);
+						if(q == manualMoveBuffer)manualReady = false;
+						if(pipelining && q != manualMoveBuffer){
+							// status reply is read later by the READY loop
+							pendingAcks++;
+							popCommand(command);
+							if(!moving && controller.isRunning() &&
+							   (machineMoveBuffer.size() >= MOVE_CREDITS || (moveBuffer.size() == 0 && manualMoveBuffer.size() == 0))){
+								debugPrintln("start from processCommand");
+								start();
+							}
+							debugPrintln("processCommand return 7");
+							return true;
+						}
 						char chb = '?';
 						for(int i=0; i<100; i++){ // that many chances to read the move's return value among other noise
 							chb = checkBuffer();
@@ -796,7 +1311,7 @@ public class GilosDriver implements Runnable {
 						}
 						if(chb != 'o' && chb != 'O'){ // no overflow
 							popCommand(command);
-							if(!moving && controller.isRunning() && (!moveBufferFree || moveBuffer.size() == 0)){
+							if(!moving && controller.isRunning() && (!moveBufferFree || (moveBuffer.size() == 0 && manualMoveBuffer.size() == 0))){
 								// starting machine again when it stops from lack of data
 								debugPrintln("start from processCommand");
 								start();
@@ -814,10 +1329,10 @@ public class GilosDriver implements Runnable {
 
 					case SET_SPINDLE_SPEED:
 						debugPrintln("driver.processCommand READY: SET_SPINDLE_SPEED");
-						byte speed = spindleSpeedBuffer.get(0).byteValue();
+						byte speed = spindleSpeedBuffer.peekFirst().byteValue();
 						debugPrintln("setting speed "+speed);
-						write("r");
-						write(speed);
+						frame.clear().putChar('r').put(speed);
+						writeFrame(false);
 						popCommand(command);
 						return true;
 
@@ -883,9 +1398,9 @@ public class GilosDriver implements Runnable {
 				}
 
 			case BLINKING_LED:
-				if(bytesAvailable() >= 1 && peek(1).equals("l")){
+				if(bytesAvailable() >= 1 && peekByte() == 'l'){
 					debugPrintln("driver.processCommand BLINKING_LED: read \"l\"");
-					read(1);
+					readByte();
 					state = State.READY;
 				}
 				else if(System.currentTimeMillis()-timeoutStart >= TIMEOUT_BLINK){
@@ -907,20 +1422,22 @@ public class GilosDriver implements Runnable {
 						return true;
 					case NO_COMMAND:
 						int ba = bytesAvailable();
-						if(ba >= 1 && peek(1).equals("0")){
+						int next = (ba >= 1)? peekByte() : -1;
+						if(next == '0'){
 							debugPrintln("driver.processCommand GOING_TO_ZERO: read 0");
-							read(1);
+							readByte();
 							state = State.READY;
 							controller.updateRunning(false);
 							controller.zeroPosition();
 						}
-						else if(ba >= 1 && (peek(1).equals("d") || peek(1).equals("D"))){
+						else if(next == 'd' || next == 'D'){
 							debugPrintln("driver.processCommand GOING_TO_ZERO: read debug");
-							read(3);
+							waitForBytes(3);
+							receiveBuffer.skip(3);
 						}
 						else if(ba >= 1){
 							debugPrintln("driver.processCommand GOING_TO_ZERO: read something else");
-							read(1);
+							readByte();
 						}
 						else if(System.currentTimeMillis()-timeoutStart >= TIMEOUT_ZERO){
 							System.err.println("Going to zero timeout elapsed");
@@ -960,53 +1477,61 @@ public class GilosDriver implements Runnable {
 
 	// simple board functions //////////////////////////////////////////////////
 
+	/**
+	 * Adds a command to the command buffer, wakes up the command loop to process it
+	 */
+	private synchronized void pushCommand(Command c){
+		commandBuffer.addLast(c);
+		wakeCommandLoop();
+	}
+
 	public synchronized void blink(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.BLINK_LED);
+		pushCommand(Command.BLINK_LED);
 	}
 
 	public synchronized void start(){
 		if(!isConnected())return;
 		if(moving)return;
-		commandBuffer.add(Command.START);
+		pushCommand(Command.START);
 	}
 
 	public synchronized void stop(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.STOP);
+		pushCommand(Command.STOP);
 	}
 
 	public synchronized void reset(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.RESET);
+		pushCommand(Command.RESET);
 	}
 
 	public synchronized void goToZero(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.GO_TO_ZERO);
+		pushCommand(Command.GO_TO_ZERO);
 	}
 
 	public synchronized void testLimits(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.TEST_LIMITS);
+		pushCommand(Command.TEST_LIMITS);
 	}
 
 	public synchronized void openChuck(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.CHUCK_OPEN);
+		pushCommand(Command.CHUCK_OPEN);
 	}
 
 	public synchronized void closeChuck(){
 		if(!isConnected())return;
-		commandBuffer.add(Command.CHUCK_CLOSE);
+		pushCommand(Command.CHUCK_CLOSE);
 	}
 
 	public synchronized void setSpindleSpeed(double krpm){
 		if(!isConnected())return;
 		double speedValue = krpm*SPINDLE_SPEED_COEF + SPINDLE_SPEED_OFFSET;
 		byte speedCode = (byte)Math.round(Math.min(Math.max(speedValue, 0), 255));
-		spindleSpeedBuffer.add(speedCode);
-		commandBuffer.add(Command.SET_SPINDLE_SPEED);
+		spindleSpeedBuffer.addLast(speedCode);
+		pushCommand(Command.SET_SPINDLE_SPEED);
 	}
 
 	/**
@@ -1028,16 +1553,16 @@ public class GilosDriver implements Runnable {
 		check((dv > -16384) && (dv < 16384));
 		check((dw > -16384) && (dw < 16384));
 		if(type == 'M'){
-			moveBuffer.add(new Move(dx, dy, dz, du, dv, dw, endSpeed, type));
+			moveBuffer.addLast(dx, dy, dz, du, dv, dw, endSpeed, type);
 		}
 		else{
 			if(moving && !lastMoveManual){
 				System.out.println("stopping before manual move");
 				stop();
 			}
-			moveBuffer.add(numManualMoves, new Move(dx, dy, dz, du, dv, dw, endSpeed, type));
-			numManualMoves++;
+			manualMoveBuffer.addLast(dx, dy, dz, du, dv, dw, endSpeed, type);
 		}
+		wakeCommandLoop();
 	}
 
 	// handling move sequences /////////////////////////////////////////////////
@@ -1048,133 +1573,210 @@ public class GilosDriver implements Runnable {
 	 * @param speed Speed in the Arduino format
 	 */
 	public void setSpeed(byte speed){
-		fullSpeed = speed;
+		synchronized(planLock){
+			fullSpeed = speed;
+			planner.setMaxSpeed(Byte.toUnsignedInt(speed) << SPEED_SHIFT);
+		}
 	}
 
-	// arrays if axis coordinates to be converted to Moves
-	private double[] x, y, z, u, v, w;
+	// planning runs in its own thread; tool path, planner state and plannedMoves production
+	// are guarded by planLock, which is never held while waiting for the driver monitor
+	private final Object planLock = new Object();
+
+	// moves planned ahead, taken by the command loop
+	private static final int PLANNED_MOVES = 1024;
+	private final MoveRing plannedMoves = new MoveRing(PLANNED_MOVES);
+
+	// moves not fitting in plannedMoves (a very long segment), sent there first
+	private final MoveQueue planOverflow = new MoveQueue(16);
+
+	// free space in plannedMoves needed to process next segment
+	private static final int PLAN_RESERVE = 8;
+
+	// moves taken from plannedMoves at once
+	private static final int STAGED_MOVES = 16;
+
+	// the path is running out, set when a segment is processed
+	private boolean needPoints = false;
+
+	// more points are also requested when the path is running out and the buffered moves
+	// take less than this, so that a slowly read file batch arrives before the machine stops
+	private static final long PREFETCH_MILLIS = 1000;
+
+	// planning waits for more points near the end of the known path (not to slow down there)
+	// only while the buffered moves take at least this
+	private static final long MIN_BUFFERED_MILLIS = 250;
 
-	// index of the currently processed segment in x, y, z...
+	// axis coordinates to be converted to Moves, and points on the tool path
+	// where speed must be lowered to minimum (parametrized by path length in steps)
+	private final PathBuffer path = new PathBuffer(1 << 14);
+
+	// index of the currently processed segment in path
 	private int segmentIndex;
 
+	// number of points trimmed from the start of path, path index + trimmedPoints is the index
+	// of a point among all points sent by the controller since the last reset
+	private long trimmedPoints;
+
 	// step length of the processed part of tool path (ending at segmentIndex)
 	private double sequenceDistance;
 
-	// points on the tool path where speed must be lowered to minimum (parametrized by path length in steps)
-	private double[] zeroSpeedDistances;
-
-	// index of the next item of zeroSpeedDistances to be processed
+	// index of the next zero-speed distance to be processed
 	private int nextZeroIndex;
 
-	// distances to previous and next zero-speed points (from the point at segmentIndex)
-	private double prevZeroDistance, nextZeroDistance;
+	// speed planning with look-ahead
+	private final MotionPlanner planner = new MotionPlanner(256, 0.02, ACCELERATION);
+
+	// planned speed at the end of the last processed segment, in steps/s
+	private double plannedSpeed = MotionPlanner.LOW_SPEED;
 
 	/**
-	 * Updates two nearest zero-speed points after a segment is processed
+	 * Skips zero-speed points passed after a segment is processed
 	 */
 	private void updateZeroDistances(){
-		while(nextZeroIndex < zeroSpeedDistances.length-1
-		   && zeroSpeedDistances[nextZeroIndex] < sequenceDistance){
+		while(nextZeroIndex < path.zeroCount()
+		   && path.zero(nextZeroIndex) < sequenceDistance){
 			nextZeroIndex++;
 		}
-		prevZeroDistance = (nextZeroIndex==0)? 0 : zeroSpeedDistances[nextZeroIndex-1];
-		nextZeroDistance = Math.max(zeroSpeedDistances[nextZeroIndex], sequenceDistance);
 	}
 
 	/**
-	 * Removes safely processed segments from point arrays
+	 * Removes safely processed segments and zero-speed points from the path
 	 */
-	// ?? trim zeroSpeedDistances
-	public synchronized void trimSequence(){
-		int trimCount = segmentIndex-2;
-		if(trimCount <= 0)return;
-		double[] newX = new double[x.length-trimCount];
-		System.arraycopy(x, trimCount, newX, 0, x.length-trimCount);
-		x = newX;
-		double[] newY = new double[y.length-trimCount];
-		System.arraycopy(y, trimCount, newY, 0, y.length-trimCount);
-		y = newY;
-		double[] newZ = new double[z.length-trimCount];
-		System.arraycopy(z, trimCount, newZ, 0, z.length-trimCount);
-		z = newZ;
-		double[] newU = new double[u.length-trimCount];
-		System.arraycopy(u, trimCount, newU, 0, u.length-trimCount);
-		u = newU;
-		double[] newV = new double[v.length-trimCount];
-		System.arraycopy(v, trimCount, newV, 0, v.length-trimCount);
-		v = newV;
-		double[] newW = new double[w.length-trimCount];
-		System.arraycopy(w, trimCount, newW, 0, w.length-trimCount);
-		w = newW;
-		segmentIndex -= trimCount;
+	public void trimSequence(){
+		synchronized(planLock){
+			int trimCount = segmentIndex-2;
+			if(trimCount > 0){
+				path.trim(trimCount);
+				segmentIndex -= trimCount;
+				trimmedPoints += trimCount;
+			}
+			if(nextZeroIndex > 0){
+				path.trimZeros(nextZeroIndex);
+				nextZeroIndex = 0;
+			}
+			planner.invalidate();
+		}
 	}
 
 	/**
-	 * Adds new points to x, y, z arrays
+	 * Adds new points to the path
 	 */
-	public synchronized void extendSequence(
+	public void extendSequence(
 		double[] x, double[] y, double[] z,
 		double[] u, double[] v, double[] w,
 		double[] zeroSpeedDistances
 	){
-		double[] newX = new double[this.x.length+x.length];
-		System.arraycopy(this.x, 0, newX, 0, this.x.length);
-		System.arraycopy(x, 0, newX, this.x.length, x.length);
-		double[] newY = new double[this.y.length+y.length];
-		System.arraycopy(this.y, 0, newY, 0, this.y.length);
-		System.arraycopy(y, 0, newY, this.y.length, y.length);
-		double[] newZ = new double[this.z.length+z.length];
-		System.arraycopy(this.z, 0, newZ, 0, this.z.length);
-		System.arraycopy(z, 0, newZ, this.z.length, z.length);
-		double[] newU = new double[this.u.length+u.length];
-		System.arraycopy(this.u, 0, newU, 0, this.u.length);
-		System.arraycopy(u, 0, newU, this.u.length, u.length);
-		double[] newV = new double[this.v.length+v.length];
-		System.arraycopy(this.v, 0, newV, 0, this.v.length);
-		System.arraycopy(v, 0, newV, this.v.length, v.length);
-		double[] newW = new double[this.w.length+w.length];
-		System.arraycopy(this.w, 0, newW, 0, this.w.length);
-		System.arraycopy(w, 0, newW, this.w.length, w.length);
-		double[] new0 = new double[this.zeroSpeedDistances.length+zeroSpeedDistances.length];
-		if(this.zeroSpeedDistances.length > 0){
-			System.arraycopy(this.zeroSpeedDistances, 0, new0, 0, this.zeroSpeedDistances.length);
-		}
-		for(int i=0; i<zeroSpeedDistances.length; i++){
-			new0[this.zeroSpeedDistances.length+i] = zeroSpeedDistances[i];
-		}
-		this.x = newX;
-		this.y = newY;
-		this.z = newZ;
-		this.u = newU;
-		this.v = newV;
-		this.w = newW;
-		this.zeroSpeedDistances = new0;
-		updateZeroDistances();
+		synchronized(planLock){
+			path.append(x, y, z, u, v, w);
+			path.appendZeros(zeroSpeedDistances);
+			planner.invalidate();
+			pathPending = segmentIndex < path.size()-1;
+		}
+		wakePlanningLoop();
 	}
 
 	/**
-	 * Calculates single-axis difference between ends of current segment in physical units
+	 * Planning loop running in a thread, keeps plannedMoves filled from the tool path
 	 */
-	private int getSegmentDx(double[] x, AxisConfig ax, double part){
-		if(!ax.exists())return 0;
-		int dx = (int)Math.round((x[segmentIndex+1]-x[segmentIndex])*part*ax.stepsPerMm());
-		if(ax.inverted())dx = -dx;
-		return dx;
+	private void plan(){
+		debugPrintln("driver.planningLoop starting");
+		while(isConnected()){
+			boolean planned;
+			boolean pathLow;
+			boolean waiting = controller.morePointsExpected() && bufferedMillis() >= MIN_BUFFERED_MILLIS;
+			synchronized(planLock){
+				flushPlanOverflow();
+				pathLow = path.size()-segmentIndex <= planner.lookAhead() + 200;
+				waiting = waiting && path.size()-segmentIndex <= planner.lookAhead();
+				planned = !waiting
+				       && planOverflow.isEmpty()
+				       && plannedMoves.remainingCapacity() >= PLAN_RESERVE
+				       && popSequence();
+				pathPending = segmentIndex < path.size()-1 || !planOverflow.isEmpty();
+			}
+			if(needPoints || waiting || (pathLow && controller.isRunning() && bufferedMillis() < PREFETCH_MILLIS)){
+				// not holding planLock, the controller calls back to trimSequence and extendSequence;
+				// files are read in background
+				needPoints = false;
+				controller.prefetchPoints();
+			}
+			if(planned){
+				wakeCommandLoop();
+			}
+			else{
+				// parking until there are new points or free space for moves
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+		}
+		debugPrintln("driver.planningLoop exiting");
+	}
+
+	private void wakePlanningLoop(){
+		Thread loop = planningLoop;
+		if(loop != null)LockSupport.unpark(loop);
 	}
 
 	/**
-	 * Calculates step length of the current segment.
-	 * Used to parametrize zero-speed positions.
+	 * Hands over a tool path move to the command loop
 	 */
-	private double getSegmentLength(){
-		return Math.sqrt(
-			  (x[segmentIndex+1]-x[segmentIndex])*(x[segmentIndex+1]-x[segmentIndex])
-			+ (y[segmentIndex+1]-y[segmentIndex])*(y[segmentIndex+1]-y[segmentIndex])
-			+ (z[segmentIndex+1]-z[segmentIndex])*(z[segmentIndex+1]-z[segmentIndex])
-			+ (u[segmentIndex+1]-u[segmentIndex])*(u[segmentIndex+1]-u[segmentIndex])
-			+ (v[segmentIndex+1]-v[segmentIndex])*(v[segmentIndex+1]-v[segmentIndex])
-			+ (w[segmentIndex+1]-w[segmentIndex])*(w[segmentIndex+1]-w[segmentIndex])
-		);
+	private void addPlannedMove(
+		int dx, int dy, int dz,
+		int du, int dv, int dw,
+		byte endSpeed,
+		int arcX, int arcY, int arcSteps
+	){
+		check((dx > -16384) && (dx < 16384));
+		check((dy > -16384) && (dy < 16384));
+		check((dz > -16384) && (dz < 16384));
+		check((du > -16384) && (du < 16384));
+		check((dv > -16384) && (dv < 16384));
+		check((dw > -16384) && (dw < 16384));
+		check((arcX > -16384) && (arcX < 16384));
+		check((arcY > -16384) && (arcY < 16384));
+		check((arcSteps > -16384) && (arcSteps < 16384));
+		if(!planOverflow.isEmpty() || !plannedMoves.offer(dx, dy, dz, du, dv, dw, endSpeed, 'M', arcX, arcY, arcSteps)){
+			planOverflow.addLast(dx, dy, dz, du, dv, dw, endSpeed, 'M', arcX, arcY, arcSteps);
+		}
+		int steps = (arcSteps != 0)? Math.abs(arcSteps) : absmax(new int[]{dx, dy, dz, du, dv, dw});
+		queuedMicros.addAndGet(moveMicros(steps, plannedEndSpeed, endSpeed));
+		plannedEndSpeed = endSpeed;
+		plannedMoveCount++;
+	}
+
+	/**
+	 * Remembers that the path point at segmentIndex is reached by the last planned move,
+	 * or by the next one when a part of the segment waits to be joined with it
+	 */
+	private void notePointPlanned(){
+		boolean buffered = bufDx != 0 || bufDy != 0 || bufDz != 0 || bufDu != 0 || bufDv != 0 || bufDw != 0;
+		synchronized(pointMilestones){
+			pointMilestones.addLast(new long[]{plannedMoveCount + (buffered? 1 : 0), trimmedPoints+segmentIndex});
+		}
+	}
+
+	/**
+	 * Moves what fits from planOverflow to plannedMoves
+	 */
+	private void flushPlanOverflow(){
+		while(!planOverflow.isEmpty() && plannedMoves.offer(
+			planOverflow.dx(0), planOverflow.dy(0), planOverflow.dz(0),
+			planOverflow.du(0), planOverflow.dv(0), planOverflow.dw(0),
+			planOverflow.endSpeed(0), planOverflow.type(0),
+			planOverflow.arcX(0), planOverflow.arcY(0), planOverflow.arcSteps(0)
+		)){
+			planOverflow.removeFirst();
+		}
+	}
+
+	/**
+	 * Calculates single-axis difference between ends of current segment in physical units
+	 */
+	private int getSegmentDx(double delta, AxisConfig ax, double part){
+		if(!ax.exists())return 0;
+		int dx = (int)Math.round(delta*part*ax.stepsPerMm());
+		if(ax.inverted())dx = -dx;
+		return dx;
 	}
 
 	/**
@@ -1191,25 +1793,25 @@ public class GilosDriver implements Runnable {
 	 * Converts current segment to moves in the move buffer.
 	 * Splits too long segments into multiple moves.
 	 */
-	private synchronized void addSegment(double startPart, double endPart, byte endSpeed, boolean force){
-		int dx = getSegmentDx(x, machineConf.x, endPart-startPart) + bufDx;
-		int dy = getSegmentDx(y, machineConf.y, endPart-startPart) + bufDy;
-		int dz = getSegmentDx(z, machineConf.z, endPart-startPart) + bufDz;
-		int du = getSegmentDx(u, machineConf.u, endPart-startPart) + bufDu;
-		int dv = getSegmentDx(v, machineConf.v, endPart-startPart) + bufDv;
-		int dw = getSegmentDx(w, machineConf.w, endPart-startPart) + bufDw;
+	private void addSegment(double startPart, double endPart, byte endSpeed, boolean force){
+		int dx = getSegmentDx(path.dx(segmentIndex), machineConf.x, endPart-startPart) + bufDx;
+		int dy = getSegmentDx(path.dy(segmentIndex), machineConf.y, endPart-startPart) + bufDy;
+		int dz = getSegmentDx(path.dz(segmentIndex), machineConf.z, endPart-startPart) + bufDz;
+		int du = getSegmentDx(path.du(segmentIndex), machineConf.u, endPart-startPart) + bufDu;
+		int dv = getSegmentDx(path.dv(segmentIndex), machineConf.v, endPart-startPart) + bufDv;
+		int dw = getSegmentDx(path.dw(segmentIndex), machineConf.w, endPart-startPart) + bufDw;
 		int steps = absmax(new int[]{dx, dy, dz, du, dv, dw});
 		if(steps >= 16000){ // splitting long segments
 			int numParts = steps / 16000 + 1;
 			for(int i=0; i<numParts; i++){
-				addMove(
-					getSegmentDx(x, machineConf.x, (endPart-startPart)/numParts),
-					getSegmentDx(y, machineConf.y, (endPart-startPart)/numParts),
-					getSegmentDx(z, machineConf.z, (endPart-startPart)/numParts),
-					getSegmentDx(u, machineConf.u, (endPart-startPart)/numParts),
-					getSegmentDx(v, machineConf.v, (endPart-startPart)/numParts),
-					getSegmentDx(w, machineConf.w, (endPart-startPart)/numParts),
-					endSpeed, 'M'
+				addPlannedMove(
+					getSegmentDx(path.dx(segmentIndex), machineConf.x, (endPart-startPart)/numParts),
+					getSegmentDx(path.dy(segmentIndex), machineConf.y, (endPart-startPart)/numParts),
+					getSegmentDx(path.dz(segmentIndex), machineConf.z, (endPart-startPart)/numParts),
+					getSegmentDx(path.du(segmentIndex), machineConf.u, (endPart-startPart)/numParts),
+					getSegmentDx(path.dv(segmentIndex), machineConf.v, (endPart-startPart)/numParts),
+					getSegmentDx(path.dw(segmentIndex), machineConf.w, (endPart-startPart)/numParts),
+					endSpeed, 0, 0, 0
 				);
 			}
 		}
@@ -1222,7 +1824,7 @@ public class GilosDriver implements Runnable {
 			bufDw = dw;
 		}
 		else{
-			addMove(dx, dy, dz, du, dv, dw, endSpeed, 'M');
+			addPlannedMove(dx, dy, dz, du, dv, dw, endSpeed, 0, 0, 0);
 			bufDx = bufDy = bufDz = bufDu = bufDv = bufDw = 0;
 		}
 	}
@@ -1258,109 +1860,369 @@ public class GilosDriver implements Runnable {
 	}
 
 	/**
-	 * Calculates speed in vicinity of a zero-speed point.
-	 * @param distToFullSpeed Distance from the zero-speed point, in steps
-	 * ?? mixing steps and millimeters?
+	 * Encodes speed in steps/s to the Arduino format
 	 */
-	private byte interpolateSpeed(double distToFullSpeed){
-		int fullSpeed = Byte.toUnsignedInt(this.fullSpeed);
-		double deltaT = 2 * ACCEL_DISTANCE / (fullSpeed+SPEED_LOW); // time to accelerate from LOW to FULL or back
-		double v = Math.sqrt(2*(ACCEL_DISTANCE-distToFullSpeed)*(fullSpeed-SPEED_LOW)/deltaT + SPEED_LOW*SPEED_LOW);
-		return (byte)Math.floor(v);
+	private byte encodeSpeed(double speed){
+		return (byte)Math.min(Math.max((int)(speed / (1 << SPEED_SHIFT)), SPEED_LOW), 255);
 	}
 
 	/**
-	 * Converts current segment of x, y, z to moves in the move buffers; Shifts segemnt index.
-	 * Splits the segment when change in acceleration is needed (Arduino can only handle linear
-	 * speed change with distance)
+	 * Converts current segment of the path to moves for plannedMoves; Shifts segment index.
+	 * Splits the segment where acceleration changes (Arduino can only handle linear change
+	 * of speed^2 with distance): accelerating, full speed, decelerating.
+	 * Returns false when there is no segment to process.
 	 */
-	private synchronized void popSequence(){
-		if(segmentIndex >= x.length-1)return;
-		boolean lastSegment = (segmentIndex == x.length-2);
-		double segmentLength = getSegmentLength();
-		debugPrintln("popSequence index = "+segmentIndex+" length = "+segmentLength);
-		double startToFullSpeed = Math.max(ACCEL_DISTANCE - Math.min(
-			Math.abs(sequenceDistance - prevZeroDistance),
-			Math.abs(nextZeroDistance - sequenceDistance)
-		), 0);
-		sequenceDistance += segmentLength;
+	private boolean popSequence(){
+		if(segmentIndex >= path.size()-1)return false;
+		if(arcMoves && popArc())return true;
+		boolean lastSegment = (segmentIndex == path.size()-2);
+		double endSpeed = planner.exitSpeed(path, segmentIndex, sequenceDistance, nextZeroIndex, machineConf);
+		double steps = planner.segmentSteps(segmentIndex);
+		double accel2 = planner.segmentAccel2(segmentIndex);
+		double maxSpeed = Math.max(planner.segmentMaxSpeed(segmentIndex), MotionPlanner.LOW_SPEED);
+		double startSpeed = plannedSpeed;
+		if(debug)debugPrintln("popSequence index = "+segmentIndex+" steps = "+steps+" speed "+startSpeed+" -> "+endSpeed);
+
+		// not faster than reachable by accelerating through the segment
+		endSpeed = Math.min(endSpeed, Math.sqrt(startSpeed*startSpeed + accel2*steps));
+		endSpeed = Math.max(endSpeed, MotionPlanner.LOW_SPEED);
+
+		// distances (in steps) to reach full speed and to slow down from it
+		double accelSteps = Math.max(maxSpeed*maxSpeed - startSpeed*startSpeed, 0) / accel2;
+		double decelSteps = Math.max(maxSpeed*maxSpeed - endSpeed*endSpeed, 0) / accel2;
+		double peakSpeed = maxSpeed;
+		if(accelSteps + decelSteps > steps){ // no time for full speed
+			double peak2 = (accel2*steps + startSpeed*startSpeed + endSpeed*endSpeed) / 2;
+			peakSpeed = Math.sqrt(peak2);
+			accelSteps = Math.max(peak2 - startSpeed*startSpeed, 0) / accel2;
+			decelSteps = steps - accelSteps;
+		}
+
+		// parts of the segment: [0, accelEnd] accelerating, [accelEnd, decelStart] full speed, [decelStart, 1] decelerating
+		double accelEnd = 0;
+		double decelStart = 0;
+		if(steps > 0){
+			accelEnd = Math.min(Math.max(accelSteps / steps, 0), 1);
+			decelStart = Math.max(1 - decelSteps / steps, accelEnd);
+		}
+		if(accelEnd > 0){
+			addSegment(0, accelEnd, encodeSpeed(peakSpeed), lastSegment && accelEnd >= 1);
+		}
+		if(decelStart > accelEnd){
+			addSegment(accelEnd, decelStart, encodeSpeed(peakSpeed), lastSegment && decelStart >= 1);
+		}
+		if(decelStart < 1){
+			addSegment(decelStart, 1, encodeSpeed(endSpeed), lastSegment);
+		}
+		plannedSpeed = Byte.toUnsignedInt(encodeSpeed(endSpeed)) << SPEED_SHIFT;
+
+		sequenceDistance += Math.max(path.segmentLength(segmentIndex), 1e-3);
 		updateZeroDistances();
-		double endToFullSpeed = Math.max(ACCEL_DISTANCE - Math.min(
-			Math.abs(sequenceDistance - prevZeroDistance),
-			Math.abs(nextZeroDistance - sequenceDistance)
-		), 0);
-
-		double startPart, endPart, clip;
-		if(startToFullSpeed >= segmentLength || endToFullSpeed >= segmentLength){
-			addSegment(0, 1, interpolateSpeed(endToFullSpeed), lastSegment);
-		}
-		else if(startToFullSpeed+endToFullSpeed >= segmentLength){
-			clip = (startToFullSpeed+endToFullSpeed - segmentLength) / 2;
-			startPart = (startToFullSpeed-clip) / segmentLength;
-			endPart = 1 - (endToFullSpeed-clip) / segmentLength;
-			addSegment(0, startPart, interpolateSpeed(clip), false);
-			addSegment(endPart, 1, interpolateSpeed(endToFullSpeed), lastSegment);
-		}
-		else if(startToFullSpeed > 0 && endToFullSpeed > 0){
-			startPart = startToFullSpeed / segmentLength;
-			endPart = 1 - endToFullSpeed / segmentLength;
-			addSegment(0, startPart, fullSpeed, false);
-			addSegment(startPart, endPart, fullSpeed, false);
-			addSegment(endPart, 1, interpolateSpeed(endToFullSpeed), lastSegment);
-		}
-		else if(startToFullSpeed > 0){
-			startPart = startToFullSpeed / segmentLength;
-			addSegment(0, startPart, fullSpeed, false);
-			addSegment(startPart, 1, fullSpeed, lastSegment);
-		}
-		else if(endToFullSpeed > 0){
-			endPart = 1 - endToFullSpeed / segmentLength;
-			addSegment(0, endPart, fullSpeed, false);
-			addSegment(endPart, 1, interpolateSpeed(endToFullSpeed), lastSegment);
+		segmentIndex++;
+		notePointPlanned();
+		if(path.size()-segmentIndex <= 200 && segmentIndex%50 == 0){
+			needPoints = true;
 		}
-		else{
-			addSegment(0, 1, fullSpeed, lastSegment);
+		return true;
+	}
+
+	// longest run of segments converted to arc moves at once
+	private static final int ARC_MAX_SEGMENTS = 128;
+
+	private final ArcFitter arcFitter = new ArcFitter();
+
+	/**
+	 * Converts a run of segments lying on an arc to arc moves (up to three, accelerating,
+	 * full speed and decelerating, like popSequence); Shifts segment index.
+	 * Returns false when the path does not continue with an arc.
+	 */
+	private boolean popArc(){
+		if(!ArcFitter.canUse(machineConf))return false;
+
+		// an arc must not pass through a zero-speed point
+		int maxSegments = Math.min(path.size()-1-segmentIndex, ARC_MAX_SEGMENTS);
+		int zeroIndex = nextZeroIndex;
+		while(zeroIndex < path.zeroCount() && path.zero(zeroIndex) <= sequenceDistance + 1e-6)zeroIndex++;
+		if(zeroIndex < path.zeroCount()){
+			double distance = sequenceDistance;
+			for(int i=0; i<maxSegments; i++){
+				distance += Math.max(path.segmentLength(segmentIndex+i), 1e-3);
+				if(path.zero(zeroIndex) <= distance + 1e-6){
+					maxSegments = i+1;
+					break;
+				}
+			}
 		}
+		int segments = arcFitter.fit(path, segmentIndex, maxSegments, machineConf);
+		if(segments == 0)return false;
 
-		segmentIndex++;
-		if(x.length-segmentIndex <= 200 && segmentIndex%50 == 0){
-			controller.sendPoints();
+		// steps of short segments waiting to be joined go first, Arduino starts the arc
+		// from where it is and the arc start below is the path point
+		if(bufDx != 0 || bufDy != 0 || bufDz != 0 || bufDu != 0 || bufDv != 0 || bufDw != 0){
+			addPlannedMove(bufDx, bufDy, bufDz, bufDu, bufDv, bufDw, encodeSpeed(plannedSpeed), 0, 0, 0);
+			bufDx = bufDy = bufDz = bufDu = bufDv = bufDw = 0;
 		}
+		boolean lastSegment = (segmentIndex+segments == path.size()-1);
+
+		// shift the arc has to make, the same as lines would
+		int targetDx = 0, targetDy = 0, targetDz = 0, targetDu = 0, targetDv = 0, targetDw = 0;
+		for(int i=0; i<segments; i++){
+			targetDx += getSegmentDx(path.dx(segmentIndex+i), machineConf.x, 1);
+			targetDy += getSegmentDx(path.dy(segmentIndex+i), machineConf.y, 1);
+			targetDz += getSegmentDx(path.dz(segmentIndex+i), machineConf.z, 1);
+			targetDu += getSegmentDx(path.du(segmentIndex+i), machineConf.u, 1);
+			targetDv += getSegmentDx(path.dv(segmentIndex+i), machineConf.v, 1);
+			targetDw += getSegmentDx(path.dw(segmentIndex+i), machineConf.w, 1);
+		}
+		int arcX = (int)Math.round((machineConf.x.inverted()? -1 : 1) * path.x(segmentIndex) * machineConf.x.stepsPerMm() - arcFitter.centerX());
+		int arcY = (int)Math.round((machineConf.y.inverted()? -1 : 1) * path.y(segmentIndex) * machineConf.y.stepsPerMm() - arcFitter.centerY());
+		boolean clockwise = arcFitter.clockwise();
+		int iterations = ArcFitter.iterations(
+			arcX, arcY, arcX+targetDx, arcY+targetDy, clockwise,
+			(int)Math.ceil(arcFitter.sweep() * arcFitter.radius()) + 4
+		);
+		if(iterations == 0)return false;
+
+		// speeds, curving limited by acceleration (v^2 / r)
+		double endSpeed = 0;
+		double accel2 = Double.POSITIVE_INFINITY;
+		double maxSpeed = Double.POSITIVE_INFINITY;
+		double distance = sequenceDistance;
+		for(int i=0; i<segments; i++){
+			endSpeed = planner.exitSpeed(path, segmentIndex+i, distance, nextZeroIndex, machineConf);
+			accel2 = Math.min(accel2, planner.segmentAccel2(segmentIndex+i));
+			maxSpeed = Math.min(maxSpeed, planner.segmentMaxSpeed(segmentIndex+i));
+			distance += Math.max(path.segmentLength(segmentIndex+i), 1e-3);
+		}
+		maxSpeed = Math.min(maxSpeed, Math.sqrt(accel2/2 * arcFitter.radius()));
+		maxSpeed = Math.max(maxSpeed, MotionPlanner.LOW_SPEED);
+		double startSpeed = Math.min(plannedSpeed, maxSpeed);
+		if(debug)debugPrintln("popArc index = "+segmentIndex+" segments = "+segments+" iterations = "+iterations
+		                      +" radius = "+arcFitter.radius()+" speed "+startSpeed+" -> "+endSpeed);
+
+		endSpeed = Math.min(endSpeed, Math.sqrt(startSpeed*startSpeed + accel2*iterations));
+		endSpeed = Math.min(Math.max(endSpeed, MotionPlanner.LOW_SPEED), maxSpeed);
+		double accelSteps = Math.max(maxSpeed*maxSpeed - startSpeed*startSpeed, 0) / accel2;
+		double decelSteps = Math.max(maxSpeed*maxSpeed - endSpeed*endSpeed, 0) / accel2;
+		double peakSpeed = maxSpeed;
+		if(accelSteps + decelSteps > iterations){ // no time for full speed
+			double peak2 = (accel2*iterations + startSpeed*startSpeed + endSpeed*endSpeed) / 2;
+			peakSpeed = Math.sqrt(peak2);
+			accelSteps = Math.max(peak2 - startSpeed*startSpeed, 0) / accel2;
+		}
+		int accelEnd = (int)Math.min(Math.max(Math.round(accelSteps), 0), iterations);
+		int decelStart = (int)Math.max(Math.min(Math.round(iterations - decelSteps), iterations), accelEnd);
+
+		// moves, linear axes split evenly over the iterations;
+		// Arduino starts each arc move on a circle through its own start point
+		int endX = arcX;
+		int endY = arcY;
+		int[] ends = new int[]{accelEnd, decelStart, iterations};
+		byte[] speeds = new byte[]{encodeSpeed(peakSpeed), encodeSpeed(peakSpeed), encodeSpeed(endSpeed)};
+		int done = 0;
+		int doneDz = 0, doneDu = 0, doneDv = 0, doneDw = 0;
+		for(int p=0; p<3; p++){
+			int count = ends[p] - done;
+			if(count <= 0)continue;
+			int startX = endX;
+			int startY = endY;
+			ArcStepper stepper = new ArcStepper(startX, startY, clockwise);
+			stepper.step(count);
+			endX = (int)stepper.x();
+			endY = (int)stepper.y();
+			int dz = (int)Math.round((double)targetDz * ends[p] / iterations) - doneDz;
+			int du = (int)Math.round((double)targetDu * ends[p] / iterations) - doneDu;
+			int dv = (int)Math.round((double)targetDv * ends[p] / iterations) - doneDv;
+			int dw = (int)Math.round((double)targetDw * ends[p] / iterations) - doneDw;
+			addPlannedMove(
+				endX-startX, endY-startY, dz, du, dv, dw,
+				speeds[p], startX, startY, clockwise? -count : count
+			);
+			doneDz += dz;
+			doneDu += du;
+			doneDv += dv;
+			doneDw += dw;
+			done = ends[p];
+		}
+		plannedSpeed = Byte.toUnsignedInt(encodeSpeed(endSpeed)) << SPEED_SHIFT;
+
+		// what the arc missed is done with the next line
+		bufDx = targetDx - (endX-arcX);
+		bufDy = targetDy - (endY-arcY);
+		bufDz = bufDu = bufDv = bufDw = 0;
+		if(lastSegment && (bufDx != 0 || bufDy != 0)){
+			addPlannedMove(bufDx, bufDy, 0, 0, 0, 0, encodeSpeed(MotionPlanner.LOW_SPEED), 0, 0, 0);
+			bufDx = bufDy = 0;
+		}
+
+		int oldIndex = segmentIndex;
+		for(int i=0; i<segments; i++){
+			sequenceDistance += Math.max(path.segmentLength(segmentIndex), 1e-3);
+			updateZeroDistances();
+			segmentIndex++;
+		}
+		notePointPlanned();
+		if(path.size()-segmentIndex <= 200 && segmentIndex/50 != oldIndex/50){
+			needPoints = true;
+		}
+		return true;
 	}
 
 	// tracking move buffer in Arduino
 
-	private ArrayList<Move> machineMoveBuffer;
-	private Move currentMove;
+	private final MoveQueue machineMoveBuffer = new MoveQueue(64);
+	private final MoveQueue currentMove = new MoveQueue(2); // holds just one move, a copy
 	private int remainingSteps;
 
+	// estimated duration of tool path moves sent to Arduino and not finished yet,
+	// and of moves planned and not yet sent
+	private volatile long machineMicros = 0;
+	private final AtomicLong queuedMicros = new AtomicLong();
+
+	// end speed of the last tool path move planned, sent and finished; a move starts
+	// at the end speed of the previous one, so the same estimate is added and subtracted
+	private byte plannedEndSpeed = SPEED_LOW;
+
+	// tool path points confirmed done by Arduino, for resuming an interrupted file:
+	// {number of planned moves reaching the point, point index} in planning order,
+	// confirmed when that many tool path moves are finished
+	private final ArrayDeque<long[]> pointMilestones = new ArrayDeque<>();
+	private long plannedMoveCount = 0;
+	private long finishedMoveCount = 0;
+	private byte sentEndSpeed = SPEED_LOW;
+	private byte finishedEndSpeed = SPEED_LOW;
+
+	// times the machine stopped for lack of moves in the middle of a tool path
+	private volatile int underruns = 0;
+	private boolean starved = false; // counted already, until next tool path move is sent
+
+	// whether the planner has segments of the tool path left
+	private volatile boolean pathPending = false;
+
+	/**
+	 * Estimates duration of a move in microseconds, with speed changing evenly from start to end
+	 */
+	private static long moveMicros(int steps, byte startSpeed, byte endSpeed){
+		int speed = Math.max(Byte.toUnsignedInt(startSpeed) + Byte.toUnsignedInt(endSpeed), 2*SPEED_LOW) << SPEED_SHIFT;
+		return steps * 2000000L / speed;
+	}
+
+	/**
+	 * Counts a stop for lack of moves, once until the machine gets more
+	 */
+	private void noteUnderrun(){
+		if(starved)return;
+		starved = true;
+		underruns++;
+		debugPrintln("move buffer underrun "+underruns+", "+bufferedMoves()+" moves buffered");
+	}
+
+	/**
+	 * Returns the number of tool path moves planned ahead, both in Arduino and waiting to be sent
+	 */
+	public int bufferedMoves(){
+		return machineMoveBuffer.size() + moveBuffer.size() + plannedMoves.size();
+	}
+
+	/**
+	 * Returns estimated time in milliseconds the machine can run on moves already planned
+	 */
+	public long bufferedMillis(){
+		return (machineMicros + queuedMicros.get()) / 1000;
+	}
+
+	/**
+	 * Returns how many times the machine ran out of moves in the middle of a tool path
+	 */
+	public int underrunCount(){
+		return underruns;
+	}
+
+	/**
+	 * Sets currentMove to a zero move, used when the machine has nothing to do
+	 */
+	private synchronized void setZeroCurrentMove(){
+		currentMove.clear();
+		currentMove.addLast(0, 0, 0, 0, 0, 0, (byte)0, ' ');
+	}
+
+	/**
+	 * Sets currentMove to a copy of a queued move
+	 */
+	private synchronized void setCurrentMove(MoveQueue q, int index){
+		currentMove.clear();
+		currentMove.addLast(q, index);
+	}
+
 	/**
 	 * Sends a move to Arduino.
 	 * Called from processCommand on a move from the move buffer.
 	 * Stores the move in another buffer mirroring the one in Arduino.
 	 */
-	public synchronized void sendMove(Move m){
+	public synchronized void sendMove(MoveQueue q, int index){
 		if(machineMoveBuffer.size() == 0){
-			currentMove = m;
-			System.out.println("sendMove 1 -> currentMove {"+currentMove.dx()+", "+currentMove.dy()+", "+currentMove.dz()+", speed "+currentMove.endSpeed()+", type "+currentMove.type()+"}");
-			remainingSteps = stepsPerMove(m);
+			setCurrentMove(q, index);
+			System.out.println("sendMove 1 -> currentMove "+currentMove.toString(0));
+			remainingSteps = q.steps(index);
 		}
-		if(m.type() != 'M'){
-			currentMove = m;
-			System.out.println("sendMove 2 -> currentMove {"+currentMove.dx()+", "+currentMove.dy()+", "+currentMove.dz()+", speed "+currentMove.endSpeed()+", type "+currentMove.type()+"}");
-			machineMoveBuffer.add(0, m);
+		if(q.type(index) != 'M'){
+			setCurrentMove(q, index);
+			System.out.println("sendMove 2 -> currentMove "+currentMove.toString(0));
+			machineMoveBuffer.addFirst(q, index);
 		}
 		else{
-			machineMoveBuffer.add(m);
+			machineMoveBuffer.addLast(q, index);
+			long micros = moveMicros(q.steps(index), sentEndSpeed, q.endSpeed(index));
+			machineMicros += micros;
+			if(q == moveBuffer)queuedMicros.addAndGet(-micros);
+			sentEndSpeed = q.endSpeed(index);
+			starved = false;
+		}
+		if(q.isArc(index)){
+			// linear axes like in compact frames, then the arc start and number of iterations
+			int flags = 0;
+			if(machineConf.z.exists() && q.dz(index) != 0)flags |= 4;
+			if(machineConf.u.exists() && q.du(index) != 0)flags |= 8;
+			if(machineConf.v.exists() && q.dv(index) != 0)flags |= 16;
+			if(machineConf.w.exists() && q.dw(index) != 0)flags |= 32;
+			if(q.arcSteps(index) < 0)flags |= 128;
+			frame.clear().putChar('a').put((byte)flags);
+			if((flags &  4) != 0)frame.putVarInt(q.dz(index));
+			if((flags &  8) != 0)frame.putVarInt(q.du(index));
+			if((flags & 16) != 0)frame.putVarInt(q.dv(index));
+			if((flags & 32) != 0)frame.putVarInt(q.dw(index));
+			frame.putVarInt(q.arcX(index));
+			frame.putVarInt(q.arcY(index));
+			frame.putVarInt(Math.abs(q.arcSteps(index)));
+		}
+		else if(compactMoves && q.type(index) == 'M'){
+			// axis mask and variable-length deltas of non-zero axes only
+			int mask = 0;
+			if(machineConf.x.exists() && q.dx(index) != 0)mask |= 1;
+			if(machineConf.y.exists() && q.dy(index) != 0)mask |= 2;
+			if(machineConf.z.exists() && q.dz(index) != 0)mask |= 4;
+			if(machineConf.u.exists() && q.du(index) != 0)mask |= 8;
+			if(machineConf.v.exists() && q.dv(index) != 0)mask |= 16;
+			if(machineConf.w.exists() && q.dw(index) != 0)mask |= 32;
+			frame.clear().putChar('m').put((byte)mask);
+			if((mask &  1) != 0)frame.putVarInt(q.dx(index));
+			if((mask &  2) != 0)frame.putVarInt(q.dy(index));
+			if((mask &  4) != 0)frame.putVarInt(q.dz(index));
+			if((mask &  8) != 0)frame.putVarInt(q.du(index));
+			if((mask & 16) != 0)frame.putVarInt(q.dv(index));
+			if((mask & 32) != 0)frame.putVarInt(q.dw(index));
 		}
-		write(""+m.type());
-		if(machineConf.x.exists())writeInt(m.dx());
-		if(machineConf.y.exists())writeInt(m.dy());
-		if(machineConf.z.exists())writeInt(m.dz());
-		if(machineConf.u.exists())writeInt(m.du());
-		if(machineConf.v.exists())writeInt(m.dv());
-		if(machineConf.w.exists())writeInt(m.dw());
-		write(m.endSpeed());
+		else{
+			frame.clear().putChar(q.type(index));
+			if(machineConf.x.exists())frame.putInt(q.dx(index));
+			if(machineConf.y.exists())frame.putInt(q.dy(index));
+			if(machineConf.z.exists())frame.putInt(q.dz(index));
+			if(machineConf.u.exists())frame.putInt(q.du(index));
+			if(machineConf.v.exists())frame.putInt(q.dv(index));
+			if(machineConf.w.exists())frame.putInt(q.dw(index));
+		}
+		frame.put(q.endSpeed(index));
+		writeFrame(true);
 	}
 
 	/**
@@ -1368,30 +2230,53 @@ public class GilosDriver implements Runnable {
 	 * Called when Arduino reports a move is finished.
 	 */
 	private synchronized void popMachineMove(boolean shiftRest){
-		Move m = machineMoveBuffer.remove(0);
-		System.out.println(""+machineMoveBuffer.size()+" moves remaining");
+		if(machineMoveBuffer.size() > 0 && machineMoveBuffer.type(0) == 'M'){
+			machineMicros = Math.max(machineMicros - moveMicros(machineMoveBuffer.steps(0), finishedEndSpeed, machineMoveBuffer.endSpeed(0)), 0);
+			finishedEndSpeed = machineMoveBuffer.endSpeed(0);
+			finishedMoveCount++;
+			confirmPoints(shiftRest);
+		}
 		if(shiftRest){
-			if(m.type() == 'M'){
-				debugPrintln("remainingSteps "+remainingSteps+", move steps "+stepsPerMove(m));
-				shiftPositionByMove(m, ((double)remainingSteps)/Math.max(stepsPerMove(m), 1));
+			int moveSteps = machineMoveBuffer.steps(0);
+			if(machineMoveBuffer.type(0) == 'M'){
+				debugPrintln("remainingSteps "+remainingSteps+", move steps "+moveSteps);
+				shiftPositionByMove(machineMoveBuffer, 0, Math.max(moveSteps-remainingSteps, 0), moveSteps);
 			}
 			else{
-				debugPrintln("type "+m.type()+", move steps "+stepsPerMove(m));
-				shiftPositionByMove(m, 1); // a manual move has no remainingSteps,
-				                           // it can only start at the beginning
+				debugPrintln("type "+machineMoveBuffer.type(0)+", move steps "+moveSteps);
+				shiftPositionByMove(machineMoveBuffer, 0, 1); // a manual move has no remainingSteps,
+				                                              // it can only start at the beginning
 			}
+		}
+		machineMoveBuffer.removeFirst();
+		System.out.println(""+machineMoveBuffer.size()+" moves remaining");
+		if(shiftRest){
 			updateCurrentMove();
 		}
 		controller.defaultStatus();
 	}
 
+	/**
+	 * Reports the last path point reached by finished tool path moves to the controller.
+	 * Points of an interrupted move are dropped, the move did not get there.
+	 */
+	private void confirmPoints(boolean finished){
+		long point = -1;
+		synchronized(pointMilestones){
+			while(!pointMilestones.isEmpty() && pointMilestones.peekFirst()[0] <= finishedMoveCount){
+				point = pointMilestones.pollFirst()[1];
+			}
+		}
+		if(finished && point >= 0)controller.pointConfirmed(point);
+	}
+
 	/**
 	 * Removes manual moves from mirror Arduino buffer.
 	 * Used to reflect that "stop" operation cancels an ongoing machine move, discarding its remaining part.
 	 */
 	private synchronized void popAllManualMoves(){
-		while(machineMoveBuffer.size() > 0 && machineMoveBuffer.get(0).type() != 'M'){
-			machineMoveBuffer.remove(0);
+		while(machineMoveBuffer.size() > 0 && machineMoveBuffer.type(0) != 'M'){
+			machineMoveBuffer.removeFirst();
 		}
 	}
 
@@ -1400,40 +2285,60 @@ public class GilosDriver implements Runnable {
 	 */
 	private synchronized void updateCurrentMove(){
 		if(machineMoveBuffer.size() != 0){
-			remainingSteps = stepsPerMove(machineMoveBuffer.get(0));
-			currentMove = machineMoveBuffer.get(0);
+			remainingSteps = machineMoveBuffer.steps(0);
+			setCurrentMove(machineMoveBuffer, 0);
 		}
 		else{
 			remainingSteps = 0;
-			currentMove = zeroMove;
+			setZeroCurrentMove();
 		}
-		System.out.println("updateCurrentMove -> currentMove {"+currentMove.dx()+", "+currentMove.dy()+", "+currentMove.dz()+", speed "+currentMove.endSpeed()+", type "+currentMove.type()+"}");
+		System.out.println("updateCurrentMove -> currentMove "+currentMove.toString(0));
 	}
 
 	/**
-	 * Calculates the number of steps needed to run a full move
+	 * Sends a position update to the controller.
+	 * Called when a move is finished or interrupted by a "stop" command.
 	 */
-	private synchronized int stepsPerMove(Move m){
-		return absmax(new int[]{m.dx(), m.dy(), m.dz(), m.du(), m.dv(), m.dw()});
+	private synchronized void shiftPositionByMove(MoveQueue q, int index, double part){
+		debugPrintln("shift part "+part);
+		double[] shift = new double[]{
+			machineConf.x.exists()? ((machineConf.x.inverted()? -1 : 1) * q.dx(index) * part / machineConf.x.stepsPerMm()) : 0,
+			machineConf.y.exists()? ((machineConf.y.inverted()? -1 : 1) * q.dy(index) * part / machineConf.y.stepsPerMm()) : 0,
+			machineConf.z.exists()? ((machineConf.z.inverted()? -1 : 1) * q.dz(index) * part / machineConf.z.stepsPerMm()) : 0,
+			machineConf.u.exists()? ((machineConf.u.inverted()? -1 : 1) * q.du(index) * part / machineConf.u.stepsPerMm()) : 0,
+			machineConf.v.exists()? ((machineConf.v.inverted()? -1 : 1) * q.dv(index) * part / machineConf.v.stepsPerMm()) : 0,
+			machineConf.w.exists()? ((machineConf.w.inverted()? -1 : 1) * q.dw(index) * part / machineConf.w.stepsPerMm()) : 0
+		};
+		System.out.println("shifting by "+shift[0]+" "+shift[1]+" "+shift[2]
+		                   +"   "+shift[3]+" "+shift[4]+" "+shift[5]);
+		controller.shiftPosition(shift, q.type(index) != 'K');
 	}
 
 	/**
-	 * Sends a position update to the controller.
-	 * Called when a move is finished or interrupted by a "stop" command.
+	 * Sends a position update for a part of a move, between two of its steps.
+	 * An arc move is replayed iteration by iteration, the way Arduino runs it.
 	 */
-	private synchronized void shiftPositionByMove(Move m, double part){
-		debugPrintln("shift part "+part);
+	private synchronized void shiftPositionByMove(MoveQueue q, int index, int fromStep, int toStep){
+		int moveSteps = Math.max(q.steps(index), 1);
+		toStep = Math.min(toStep, moveSteps);
+		if(!q.isArc(index)){
+			shiftPositionByMove(q, index, ((double)(toStep-fromStep))/moveSteps);
+			return;
+		}
+		long[] arc = ArcStepper.shift(q.arcX(index), q.arcY(index), q.arcSteps(index) < 0, fromStep, toStep);
+		double part = ((double)(toStep-fromStep))/moveSteps;
+		debugPrintln("arc shift "+fromStep+" -> "+toStep+" of "+moveSteps);
 		double[] shift = new double[]{
-			machineConf.x.exists()? ((machineConf.x.inverted()? -1 : 1) * m.dx() * part / machineConf.x.stepsPerMm()) : 0,
-			machineConf.y.exists()? ((machineConf.y.inverted()? -1 : 1) * m.dy() * part / machineConf.y.stepsPerMm()) : 0,
-			machineConf.z.exists()? ((machineConf.z.inverted()? -1 : 1) * m.dz() * part / machineConf.z.stepsPerMm()) : 0,
-			machineConf.u.exists()? ((machineConf.u.inverted()? -1 : 1) * m.du() * part / machineConf.u.stepsPerMm()) : 0,
-			machineConf.v.exists()? ((machineConf.v.inverted()? -1 : 1) * m.dv() * part / machineConf.v.stepsPerMm()) : 0,
-			machineConf.w.exists()? ((machineConf.w.inverted()? -1 : 1) * m.dw() * part / machineConf.w.stepsPerMm()) : 0
+			(machineConf.x.inverted()? -1 : 1) * arc[0] / machineConf.x.stepsPerMm(),
+			(machineConf.y.inverted()? -1 : 1) * arc[1] / machineConf.y.stepsPerMm(),
+			machineConf.z.exists()? ((machineConf.z.inverted()? -1 : 1) * q.dz(index) * part / machineConf.z.stepsPerMm()) : 0,
+			machineConf.u.exists()? ((machineConf.u.inverted()? -1 : 1) * q.du(index) * part / machineConf.u.stepsPerMm()) : 0,
+			machineConf.v.exists()? ((machineConf.v.inverted()? -1 : 1) * q.dv(index) * part / machineConf.v.stepsPerMm()) : 0,
+			machineConf.w.exists()? ((machineConf.w.inverted()? -1 : 1) * q.dw(index) * part / machineConf.w.stepsPerMm()) : 0
 		};
 		System.out.println("shifting by "+shift[0]+" "+shift[1]+" "+shift[2]
 		                   +"   "+shift[3]+" "+shift[4]+" "+shift[5]);
-		controller.shiftPosition(shift, m.type() != 'K');
+		controller.shiftPosition(shift, true);
 	}
 
 }
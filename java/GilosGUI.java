@@ -83,6 +83,10 @@ public class GilosGUI extends Frame
 	public static final String MSG_FILE_CANTOPEN = "Problém při otvírání souboru";
 	public static final String MSG_FILE_CANTREAD = "Problém při čtení souboru";
 	public static final String MSG_FILE_LOADED = "Načten soubor s %d body";
+	public static final String MSG_FILE_RESUME = "Soubor nebyl dokončen. Pokračovat od bodu %d?\nNástroj k bodu přejede zvednutý.";
+	public static final String MSG_FILE_RESUME_STRAIGHT = "Soubor nebyl dokončen. Pokračovat od bodu %d?\nStroj pojede k bodu přímo, nejdřív nastavte nástroj tak, aby mu nic nestálo v cestě.";
+	public static final String MSG_FILE_RESUMED = "Cesta z %s od bodu %d";
+	public static final String MSG_FILE_NORESUME = "Nelze pokračovat, poloha stroje neznámá";
 	public static final String MSG_ERROR_BIGBACKLASH = "Moc velká vůle (max 32000 kroků)";
 	public static final String MSG_ERROR_UNKNOWN = "Něco je špatně";
 	public static final String MSG_INPUTMODE_FILE = "Cesta z %s";
@@ -139,7 +143,8 @@ public class GilosGUI extends Frame
 
 	// Data sources
 	private TestDrawCanvas canvas;
-	private FileSource fileSource;
+	private volatile FileSource fileSource; // read by the controller's prefetch thread
+	private String filePath;
 
 	private double[] fileStart = new double[3];
 	private double[] firstFilePoint;
@@ -1416,6 +1421,21 @@ public class GilosGUI extends Frame
 			),
 			getStepRate()
 		);
+		if(last != null){ // serial line, planner and axis motion limit settings are not edited in GUI
+			machineConf.baudRate = last.baudRate;
+			machineConf.maxBaudRate = last.maxBaudRate;
+			machineConf.lastPort = last.lastPort;
+			machineConf.lookAhead = last.lookAhead;
+			machineConf.junctionDeviation = last.junctionDeviation;
+			machineConf.simplifyTolerance = last.simplifyTolerance;
+			machineConf.chordTolerance = last.chordTolerance;
+			machineConf.x = machineConf.x.withMotionLimits(last.x.maxVelocity(), last.x.acceleration());
+			machineConf.y = machineConf.y.withMotionLimits(last.y.maxVelocity(), last.y.acceleration());
+			machineConf.z = machineConf.z.withMotionLimits(last.z.maxVelocity(), last.z.acceleration());
+			machineConf.u = machineConf.u.withMotionLimits(last.u.maxVelocity(), last.u.acceleration());
+			machineConf.v = machineConf.v.withMotionLimits(last.v.maxVelocity(), last.v.acceleration());
+			machineConf.w = machineConf.w.withMotionLimits(last.w.maxVelocity(), last.w.acceleration());
+		}
 
 		System.out.println("gui.getAxes:");
 		System.out.println("  X "+machineConf.x.exists()+", "+machineConf.x.stepsPerMm()+", "+machineConf.x.inverted()+", "+machineConf.x.zeroUp()+", "+machineConf.x.lowLimit()+", "+machineConf.x.highLimit());
@@ -1528,34 +1548,30 @@ public class GilosGUI extends Frame
 
 	public double[][] getPoints(){
 
-		if(fileSource != null){
-			System.out.println("sending points from file "+fileSource.getName());
+		FileSource fs = fileSource;
+		if(fs != null){
+			System.out.println("sending points from file "+fs.getName());
 			try{
-				double zoom = parseDouble(this.zoom.getText());
-				if(!Double.isFinite(zoom) || zoom <= 0)zoom = 1;
+				double zoom = fileZoom();
 
-				if(fileSource instanceof DxfFileSource){
+				if(fs instanceof DxfFileSource){
 					double zOff = parseDouble(z2DOffset.getText());
-					((DxfFileSource)fileSource).setZ2DOffset(zOff/zoom);
+					((DxfFileSource)fs).setZ2DOffset(zOff/zoom);
 				}
 
-				double[] fileShift = new double[]{
-					fileStart[0] - firstFilePoint[0],
-					fileStart[1] - firstFilePoint[1],
-					fileStart[2] - firstFilePoint[2]
-				};
+				double[] fileShift = fileShift();
 
-				double[][] points = fileSource.getPoints();
+				double[][] points = fs.getPoints();
 				for(int i=0; i<points[0].length; i++){
 					points[0][i] = (points[0][i]+fileShift[0]) * zoom;
 					points[1][i] = (points[1][i]+fileShift[1]) * zoom;
 					points[2][i] = (points[2][i]+fileShift[2]) * zoom;
 				}
-				if(fileSource.isXYZ()){
+				if(fs.isXYZ()){
 					points = machine.xyzToAxes(points);
 				}
 
-				if(fileSource.finished()){
+				if(fs.finished()){
 					closeInputFile();
 				}
 
@@ -1589,8 +1605,86 @@ public class GilosGUI extends Frame
 		}
 	}
 
+	private double fileZoom(){
+		double zoom = parseDouble(this.zoom.getText());
+		if(!Double.isFinite(zoom) || zoom <= 0)zoom = 1;
+		return zoom;
+	}
+
+	/**
+	 * Length of the finest motor step of axes X, Y and Z in mm, 0 if there are none
+	 */
+	private double smallestStepMm(){
+		double stepsPerMm = 0;
+		if(machineConf.x.exists())stepsPerMm = Math.max(stepsPerMm, machineConf.x.stepsPerMm());
+		if(machineConf.y.exists())stepsPerMm = Math.max(stepsPerMm, machineConf.y.stepsPerMm());
+		if(machineConf.z.exists())stepsPerMm = Math.max(stepsPerMm, machineConf.z.stepsPerMm());
+		return (stepsPerMm > 0)? 1/stepsPerMm : 0;
+	}
+
+	/**
+	 * Largest distance of tessellated DXF curves from the real ones in file units, for the current zoom
+	 */
+	private double dxfChordTolerance(){
+		return machineConf.chordTolerance / fileZoom();
+	}
+
+	/**
+	 * Shortest segment of tessellated DXF curves in file units (a motor step), for the current zoom
+	 */
+	private double dxfMinChord(){
+		return smallestStepMm() / fileZoom();
+	}
+
+	/**
+	 * Opens a DXF file, curves are tessellated in file units before zooming
+	 */
+	private DxfFileSource openDxf(String filePath, double chordTolerance, double minChord) throws IOException {
+		double zOff = parseDouble(z2DOffset.getText());
+		return new DxfFileSource(filePath, zOff, chordTolerance, minChord);
+	}
+
+	/**
+	 * Tessellates the open DXF file again when zoom or machine configuration changed since it was
+	 * opened, so that curves fit the current zoom. Called on the GUI thread before a run starts,
+	 * batches are read on another thread.
+	 */
+	public void updateFileTessellation(){
+		FileSource fs = fileSource;
+		if(!(fs instanceof DxfFileSource) || fs.started())return;
+		if(((DxfFileSource)fs).tessellatedWith(dxfChordTolerance(), dxfMinChord()))return;
+		System.out.println("tessellating DXF file again for zoom "+fileZoom());
+		try{
+			fileSource = openDxf(filePath, dxfChordTolerance(), dxfMinChord());
+		}
+		catch(IOException ex){
+			warn(MSG_FILE_CANTREAD, "Problem reading file data");
+			discardInputFile();
+		}
+	}
+
+	/**
+	 * Shift of file coordinates placing the first file point at the starting position
+	 */
+	private double[] fileShift(){
+		return new double[]{
+			fileStart[0] - firstFilePoint[0],
+			fileStart[1] - firstFilePoint[1],
+			fileStart[2] - firstFilePoint[2]
+		};
+	}
+
+	/**
+	 * Checkpoint of the next point to be read from file, null when not reading a file which can be resumed
+	 */
+	public Checkpoint fileCheckpoint(){
+		FileSource fs = fileSource;
+		if(fs == null || !fs.canSeek())return null;
+		return new Checkpoint(filePath, fs, fileShift(), fileZoom());
+	}
+
 	public boolean readingPathFromFile(){
-		return (fileSource == null);
+		return (fileSource != null);
 	}
 
 	public double getStepRate(){
@@ -1659,6 +1753,27 @@ public class GilosGUI extends Frame
 		portLabel.setText(connected? portName : MSG_NOTCONNECTED);
 	}
 
+	/**
+	 * Machine config as last set or read from the axis fields, without reading the fields again
+	 */
+	public MachineConfig getLastAxes(){
+		return machineConf;
+	}
+
+	/**
+	 * Records serial line speed negotiated by the driver, to be saved with machine config
+	 */
+	public void setBaudRate(int baudRate){
+		if(machineConf != null)machineConf.baudRate = baudRate;
+	}
+
+	/**
+	 * Records serial port of the current connection, to be saved with machine config
+	 */
+	public void setLastPort(String portName){
+		if(machineConf != null)machineConf.lastPort = portName;
+	}
+
 	public void setChuck(boolean open){
 		chuckButton1.setText(open? MSG_BUTTON_CLOSECHUCK : MSG_BUTTON_OPENCHUCK);
 		chuckButton1.setActionCommand(open? controller.COMMAND_CLOSECHUCK : controller.COMMAND_OPENCHUCK);
@@ -1913,8 +2028,7 @@ public class GilosGUI extends Frame
 
 			// opening DXF file
 			if(fileFormat == FORMAT_DXF){
-				double zOff = parseDouble(z2DOffset.getText());
-				fileSource = new DxfFileSource(filePath, zOff);
+				fileSource = openDxf(filePath, dxfChordTolerance(), dxfMinChord());
 			}
 
 			// opening IDX file
@@ -1929,6 +2043,7 @@ public class GilosGUI extends Frame
 
 			preloadFile(fileSource);
 			fileSource = fileSource.duplicate();
+			this.filePath = filePath;
 
 		}
 		catch(Exception ex){
@@ -1939,13 +2054,109 @@ public class GilosGUI extends Frame
 
 		// updating GUI when onpening file succeeded
 		if(fileSource != null){
-			startToolPath(String.format(MSG_INPUTMODE_FILE, fileSource.getName()));
+			if(!resumeFile()){
+				startToolPath(String.format(MSG_INPUTMODE_FILE, fileSource.getName()));
+			}
 			loadFileButton.setText(MSG_BUTTON_DISCARDFILE);
 			updateEnabled();
 		}
 
 	}
 
+	// Z lift in mm of the approach to the checkpoint of a resumed file, NaN to go straight
+	private double resumeLift = Double.NaN;
+
+	/**
+	 * Offers to continue a file from the checkpoint left by its interrupted run.
+	 * The rest of the file keeps its original placement and zoom (DXF curves are tessellated
+	 * for that zoom again). The machine first goes from where it is to the checkpoint,
+	 * see resumeApproach.
+	 * @return Whether the file was resumed
+	 */
+	private boolean resumeFile(){
+		if(!fileSource.canSeek())return false;
+		Checkpoint checkpoint = controller.loadCheckpoint();
+		if(checkpoint == null || checkpoint.pointIndex <= 0 || !checkpoint.matchesFile(filePath))return false;
+		FileSource source = fileSource;
+		if(source instanceof DxfFileSource
+		&& !((DxfFileSource)source).tessellatedWith(checkpoint.chordTolerance, checkpoint.minChord)){
+			if(!(checkpoint.chordTolerance > 0))return false; // saved before tessellation was recorded
+			try{
+				source = openDxf(filePath, checkpoint.chordTolerance, checkpoint.minChord);
+			}
+			catch(IOException ex){
+				return false;
+			}
+		}
+		if(!checkpoint.matches(filePath, source)){
+			System.out.println("checkpoint of "+filePath+" does not match the tool path, not resuming");
+			return false;
+		}
+		boolean lifted = source.isXYZ() && source.is2D(); // "up" is only known for 2D drawings
+		int answer = JOptionPane.showConfirmDialog(
+			this, String.format(lifted? MSG_FILE_RESUME : MSG_FILE_RESUME_STRAIGHT, checkpoint.pointIndex),
+			MSG_TITLE, JOptionPane.YES_NO_OPTION
+		);
+		if(answer != JOptionPane.YES_OPTION)return false;
+		if(lifted){
+			double lift = parseDouble(z2DOffset.getText());
+			resumeLift = Double.isFinite(lift)? lift : 0;
+		}
+		else{
+			resumeLift = Double.NaN;
+		}
+		fileSource = source;
+		try{
+			fileSource.seekToPoint(checkpoint.pointIndex);
+			if(!controller.prepareResume()){
+				fileSource.seekToPoint(0);
+				warn(MSG_FILE_NORESUME, "Cannot resume file, position unknown");
+				return false;
+			}
+		}
+		catch(IOException ex){
+			warn(MSG_FILE_CANTREAD, "Cannot resume file: "+ex.getMessage());
+			return false;
+		}
+		System.out.println("resuming file "+filePath+" from point "+checkpoint.pointIndex);
+		fileStart = new double[]{
+			checkpoint.shift[0] + firstFilePoint[0],
+			checkpoint.shift[1] + firstFilePoint[1],
+			checkpoint.shift[2] + firstFilePoint[2]
+		};
+		previewCanvas.setStart(fileStart);
+		zoom.setText(roundIfPossible(checkpoint.zoom));
+		startToolPath(String.format(MSG_FILE_RESUMED, fileSource.getName(), checkpoint.pointIndex));
+		return true;
+	}
+
+	/**
+	 * Points leading the machine from its position to the first point of a resumed file,
+	 * in axis coordinates, without the first point itself.
+	 * A 2D drawing is approached like a jump between its contours: up by the Z offset
+	 * at the current position, over to the point, then down to it.
+	 * Other files go straight, the user was asked to position the tool before.
+	 */
+	public double[][] resumeApproach(double[] from, double[] to){
+		if(Double.isNaN(resumeLift)){
+			double[][] approach = new double[6][1];
+			for(int a=0; a<6; a++){
+				approach[a][0] = from[a];
+			}
+			return approach;
+		}
+		double[] start = machine.axesToXyz(from);
+		double[] end = machine.axesToXyz(to);
+		// the same direction as the file's own jumps, from the higher of both ends
+		double liftedZ = (resumeLift >= 0)? Math.max(start[2], end[2]) + resumeLift
+		                                  : Math.min(start[2], end[2]) + resumeLift;
+		return machine.xyzToAxes(new double[][]{
+			{start[0], start[0], end[0]},
+			{start[1], start[1], end[1]},
+			{start[2], liftedZ,  liftedZ}
+		});
+	}
+
 	public void preloadFile(FileSource fs){
 		previewCanvas.clean();
 		try{
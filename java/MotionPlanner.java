@@ -0,0 +1,262 @@
+
+import machines.*;
+
+/**
+ * Look-ahead speed planner for tool paths.
+ * Speeds are in the units of Arduino firmware: steps per second of the axis doing most steps
+ * in a move. Arduino changes speed linearly in speed^2 over the steps of a move (constant
+ * acceleration), so a segment of tool path runs as up to three moves: accelerating,
+ * full speed, decelerating.
+ *
+ * The planner looks at a window of following segments, computes the highest speed
+ * for each corner (junction deviation: the corner is passed as if it were rounded
+ * with a small radius, at the highest speed not exceeding acceleration limits),
+ * and then goes backwards from a stop at the end of the window, so that the machine
+ * is always able to stop in time. Going forwards (limiting acceleration) is done
+ * while segments are converted to moves.
+ */
+public class MotionPlanner {
+
+	// lowest speed Arduino uses
+	public static final double LOW_SPEED = 32;
+
+	// tolerance when matching zero-speed distances to points of the tool path
+	private static final double ZERO_TOLERANCE = 1e-6;
+
+	private int lookAhead;
+	private double junctionDeviation; // mm
+	private double acceleration; // steps/s/s, for axes without configured acceleration
+	private double maxSpeed; // steps/s
+
+	// window of planned segments, index 0 is the segment starting at windowStart
+	private double[] steps; // steps of the axis doing most steps
+	private double[] accel2; // 2*acceleration along the segment, in speed units
+	private double[] cap; // highest speed in the segment
+	private double[] mmAccel; // acceleration along the segment in mm/s/s
+	private double[] speed; // highest speed at the start of each segment (and at the window end)
+	private int windowStart;
+	private int validEnd; // plan can be used for segments below this index
+	private boolean valid = false;
+
+	// statistics
+	private long segmentsPlanned = 0;
+	private long planningNanos = 0;
+
+	public MotionPlanner(int lookAhead, double junctionDeviation, double acceleration){
+		this.junctionDeviation = junctionDeviation;
+		this.acceleration = acceleration;
+		this.maxSpeed = LOW_SPEED;
+		setLookAhead(lookAhead);
+	}
+
+	/**
+	 * Sets number of segments to look ahead
+	 */
+	public void setLookAhead(int lookAhead){
+		this.lookAhead = Math.max(lookAhead, 2);
+		steps = new double[this.lookAhead];
+		accel2 = new double[this.lookAhead];
+		cap = new double[this.lookAhead];
+		mmAccel = new double[this.lookAhead];
+		speed = new double[this.lookAhead+1];
+		invalidate();
+	}
+
+	public int lookAhead(){
+		return lookAhead;
+	}
+
+	public void setJunctionDeviation(double junctionDeviation){
+		this.junctionDeviation = junctionDeviation;
+		invalidate();
+	}
+
+	public void setMaxSpeed(double maxSpeed){
+		if(maxSpeed == this.maxSpeed)return;
+		this.maxSpeed = maxSpeed;
+		invalidate();
+	}
+
+	/**
+	 * Makes the planner plan again on the next request, after the tool path or limits change
+	 */
+	public void invalidate(){
+		valid = false;
+	}
+
+	/**
+	 * Returns the highest speed allowed at the end of a segment (steps/s)
+	 * @param path Tool path
+	 * @param segment Index of the segment in the path
+	 * @param distance Length of the path in mm up to the segment start (parametrizes zero-speed points)
+	 * @param zeroIndex Index of the first zero-speed distance in the path not behind the segment start
+	 */
+	public double exitSpeed(PathBuffer path, int segment, double distance, int zeroIndex, MachineConfig mc){
+		if(!valid || segment < windowStart || segment >= validEnd){
+			plan(path, segment, distance, zeroIndex, mc);
+		}
+		return speed[segment-windowStart+1];
+	}
+
+	/**
+	 * Returns steps of the axis doing most steps in a segment
+	 */
+	public double segmentSteps(int segment){
+		return steps[segment-windowStart];
+	}
+
+	/**
+	 * Returns 2*acceleration in a segment, in Arduino speed units per step
+	 */
+	public double segmentAccel2(int segment){
+		return accel2[segment-windowStart];
+	}
+
+	/**
+	 * Returns the highest speed in a segment
+	 */
+	public double segmentMaxSpeed(int segment){
+		return cap[segment-windowStart];
+	}
+
+	/**
+	 * Plans speeds for a window of segments starting with the given one
+	 */
+	private void plan(PathBuffer path, int start, double distance, int zeroIndex, MachineConfig mc){
+		long planStart = System.nanoTime();
+		int n = Math.min(lookAhead, path.size()-1-start);
+		windowStart = start;
+
+		// junction speeds, going forwards
+		double prevUx = 0, prevUy = 0, prevUz = 0, prevUu = 0, prevUv = 0, prevUw = 0;
+		double prevStepsPerMm = 0;
+		double prevMmAccel = 0;
+		boolean havePrev = false;
+		speed[0] = LOW_SPEED; // entry speed is known by the caller
+		for(int k=0; k<n; k++){
+			int s = start+k;
+			double dx = path.dx(s);
+			double dy = path.dy(s);
+			double dz = path.dz(s);
+			double du = path.du(s);
+			double dv = path.dv(s);
+			double dw = path.dw(s);
+			double length = Math.sqrt(dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw);
+
+			double stepsX = mc.x.exists()? Math.abs(dx*mc.x.stepsPerMm()) : 0;
+			double stepsY = mc.y.exists()? Math.abs(dy*mc.y.stepsPerMm()) : 0;
+			double stepsZ = mc.z.exists()? Math.abs(dz*mc.z.stepsPerMm()) : 0;
+			double stepsU = mc.u.exists()? Math.abs(du*mc.u.stepsPerMm()) : 0;
+			double stepsV = mc.v.exists()? Math.abs(dv*mc.v.stepsPerMm()) : 0;
+			double stepsW = mc.w.exists()? Math.abs(dw*mc.w.stepsPerMm()) : 0;
+			double maxSteps = Math.max(Math.max(Math.max(stepsX, stepsY), Math.max(stepsZ, stepsU)), Math.max(stepsV, stepsW));
+			steps[k] = maxSteps;
+
+			// Arduino speed and acceleration apply to the axis doing most steps,
+			// other axes are slower by their share of steps; limited by the tightest moving axis
+			double accel = Double.POSITIVE_INFINITY;
+			double speedLimit = maxSpeed;
+			if(maxSteps > 0){
+				if(stepsX > 0){
+					accel = Math.min(accel, mc.x.accelerationSteps(acceleration) * maxSteps / stepsX);
+					speedLimit = Math.min(speedLimit, mc.x.maxStepRate() * maxSteps / stepsX);
+				}
+				if(stepsY > 0){
+					accel = Math.min(accel, mc.y.accelerationSteps(acceleration) * maxSteps / stepsY);
+					speedLimit = Math.min(speedLimit, mc.y.maxStepRate() * maxSteps / stepsY);
+				}
+				if(stepsZ > 0){
+					accel = Math.min(accel, mc.z.accelerationSteps(acceleration) * maxSteps / stepsZ);
+					speedLimit = Math.min(speedLimit, mc.z.maxStepRate() * maxSteps / stepsZ);
+				}
+				if(stepsU > 0){
+					accel = Math.min(accel, mc.u.accelerationSteps(acceleration) * maxSteps / stepsU);
+					speedLimit = Math.min(speedLimit, mc.u.maxStepRate() * maxSteps / stepsU);
+				}
+				if(stepsV > 0){
+					accel = Math.min(accel, mc.v.accelerationSteps(acceleration) * maxSteps / stepsV);
+					speedLimit = Math.min(speedLimit, mc.v.maxStepRate() * maxSteps / stepsV);
+				}
+				if(stepsW > 0){
+					accel = Math.min(accel, mc.w.accelerationSteps(acceleration) * maxSteps / stepsW);
+					speedLimit = Math.min(speedLimit, mc.w.maxStepRate() * maxSteps / stepsW);
+				}
+			}
+			else{
+				accel = acceleration;
+			}
+			accel2[k] = 2*accel;
+			cap[k] = Math.max(speedLimit, LOW_SPEED);
+			mmAccel[k] = (length > 1e-9)? accel * length / Math.max(maxSteps, 1e-9) : 0;
+
+			if(k > 0){
+				speed[k] = Math.min(cap[k-1], cap[k]);
+
+				// stopping at zero-speed points
+				while(zeroIndex < path.zeroCount() && path.zero(zeroIndex) <= distance + ZERO_TOLERANCE){
+					speed[k] = LOW_SPEED;
+					zeroIndex++;
+				}
+			}
+			else{
+				while(zeroIndex < path.zeroCount() && path.zero(zeroIndex) <= distance + ZERO_TOLERANCE){
+					zeroIndex++;
+				}
+			}
+
+			distance += Math.max(length, 1e-3);
+			if(length < 1e-9 || maxSteps == 0)continue; // no direction, speed cannot change
+
+			double ux = dx/length;
+			double uy = dy/length;
+			double uz = dz/length;
+			double uu = du/length;
+			double uv = dv/length;
+			double uw = dw/length;
+			double stepsPerMm = maxSteps/length;
+
+			if(k > 0 && havePrev){
+				double cos = -(ux*prevUx + uy*prevUy + uz*prevUz + uu*prevUu + uv*prevUv + uw*prevUw);
+				double sinHalf = Math.sqrt(Math.max((1-cos)/2, 0));
+				if(sinHalf < 0.999){
+					double a = Math.min(mmAccel[k], prevMmAccel); // mm/s/s
+					double v = Math.sqrt(a * junctionDeviation * sinHalf / (1-sinHalf)); // mm/s
+					speed[k] = Math.min(speed[k], v * Math.min(stepsPerMm, prevStepsPerMm));
+				}
+			}
+			prevUx = ux;
+			prevUy = uy;
+			prevUz = uz;
+			prevUu = uu;
+			prevUv = uv;
+			prevUw = uw;
+			prevStepsPerMm = stepsPerMm;
+			prevMmAccel = mmAccel[k];
+			havePrev = true;
+		}
+
+		// end of window, stopping there unless more path is planned later
+		speed[n] = LOW_SPEED;
+
+		// being able to stop in time, going backwards
+		for(int k=n-1; k>0; k--){
+			speed[k] = Math.min(speed[k], Math.sqrt(speed[k+1]*speed[k+1] + accel2[k]*steps[k]));
+			speed[k] = Math.max(speed[k], LOW_SPEED);
+		}
+
+		// first half of a full window is safe to use, a window cut by path end is used until more points arrive
+		validEnd = (n == lookAhead)? start + n/2 : start + n;
+		valid = true;
+		segmentsPlanned += n;
+		planningNanos += System.nanoTime() - planStart;
+	}
+
+	/**
+	 * Number of segments planned per second of planning time, for performance monitoring
+	 */
+	public double segmentsPerSecond(){
+		return (planningNanos == 0)? 0 : segmentsPlanned / (planningNanos * 1e-9);
+	}
+
+}
+
@@ -1,12 +0,0 @@
-
-public record Move(
-	int dx,
-	int dy,
-	int dz,
-	int du,
-	int dv,
-	int dw,
-	byte endSpeed,
-	char type
-){}
-
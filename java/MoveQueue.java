@@ -0,0 +1,221 @@
+
+/**
+ * A double-ended queue of moves stored in primitive columns instead of an object per move.
+ * Push and pop at both ends are O(1); the columns only grow (by doubling),
+ * so a queue in steady use allocates nothing.
+ */
+public class MoveQueue {
+
+	private int[] dx, dy, dz, du, dv, dw;
+	private byte[] endSpeed;
+	private char[] type;
+	private int[] arcX, arcY, arcSteps; // arc moves only, arcSteps 0 for lines
+
+	private int head; // index of the first move in the columns
+	private int size;
+	private int mask; // capacity-1, capacity is a power of two
+
+	public MoveQueue(int initialCapacity){
+		int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+		dx = new int[capacity];
+		dy = new int[capacity];
+		dz = new int[capacity];
+		du = new int[capacity];
+		dv = new int[capacity];
+		dw = new int[capacity];
+		endSpeed = new byte[capacity];
+		type = new char[capacity];
+		arcX = new int[capacity];
+		arcY = new int[capacity];
+		arcSteps = new int[capacity];
+		mask = capacity - 1;
+		head = 0;
+		size = 0;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	public void clear(){
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * Doubles the capacity, moving the contents to the beginning of new columns
+	 */
+	private void grow(){
+		int capacity = dx.length;
+		dx = unwrap(dx, capacity*2);
+		dy = unwrap(dy, capacity*2);
+		dz = unwrap(dz, capacity*2);
+		du = unwrap(du, capacity*2);
+		dv = unwrap(dv, capacity*2);
+		dw = unwrap(dw, capacity*2);
+		arcX = unwrap(arcX, capacity*2);
+		arcY = unwrap(arcY, capacity*2);
+		arcSteps = unwrap(arcSteps, capacity*2);
+		byte[] newSpeed = new byte[capacity*2];
+		char[] newType = new char[capacity*2];
+		for(int i=0; i<size; i++){
+			newSpeed[i] = endSpeed[(head+i) & mask];
+			newType[i] = type[(head+i) & mask];
+		}
+		endSpeed = newSpeed;
+		type = newType;
+		head = 0;
+		mask = capacity*2 - 1;
+	}
+	private int[] unwrap(int[] column, int newCapacity){
+		int[] newColumn = new int[newCapacity];
+		for(int i=0; i<size; i++){
+			newColumn[i] = column[(head+i) & mask];
+		}
+		return newColumn;
+	}
+
+	private void set(
+		int slot, int dx, int dy, int dz, int du, int dv, int dw, byte endSpeed, char type,
+		int arcX, int arcY, int arcSteps
+	){
+		this.dx[slot] = dx;
+		this.dy[slot] = dy;
+		this.dz[slot] = dz;
+		this.du[slot] = du;
+		this.dv[slot] = dv;
+		this.dw[slot] = dw;
+		this.endSpeed[slot] = endSpeed;
+		this.type[slot] = type;
+		this.arcX[slot] = arcX;
+		this.arcY[slot] = arcY;
+		this.arcSteps[slot] = arcSteps;
+	}
+
+	/**
+	 * Appends a move at the end of the queue
+	 */
+	public void addLast(int dx, int dy, int dz, int du, int dv, int dw, byte endSpeed, char type){
+		addLast(dx, dy, dz, du, dv, dw, endSpeed, type, 0, 0, 0);
+	}
+
+	/**
+	 * Appends an arc move at the end of the queue
+	 */
+	public void addLast(
+		int dx, int dy, int dz, int du, int dv, int dw, byte endSpeed, char type,
+		int arcX, int arcY, int arcSteps
+	){
+		if(size == this.dx.length)grow();
+		set((head+size) & mask, dx, dy, dz, du, dv, dw, endSpeed, type, arcX, arcY, arcSteps);
+		size++;
+	}
+
+	/**
+	 * Inserts a move at the beginning of the queue
+	 */
+	public void addFirst(int dx, int dy, int dz, int du, int dv, int dw, byte endSpeed, char type){
+		addFirst(dx, dy, dz, du, dv, dw, endSpeed, type, 0, 0, 0);
+	}
+
+	private void addFirst(
+		int dx, int dy, int dz, int du, int dv, int dw, byte endSpeed, char type,
+		int arcX, int arcY, int arcSteps
+	){
+		if(size == this.dx.length)grow();
+		head = (head-1) & mask;
+		set(head, dx, dy, dz, du, dv, dw, endSpeed, type, arcX, arcY, arcSteps);
+		size++;
+	}
+
+	/**
+	 * Appends a copy of a move from another queue
+	 */
+	public void addLast(MoveQueue src, int index){
+		addLast(
+			src.dx(index), src.dy(index), src.dz(index),
+			src.du(index), src.dv(index), src.dw(index),
+			src.endSpeed(index), src.type(index),
+			src.arcX(index), src.arcY(index), src.arcSteps(index)
+		);
+	}
+
+	/**
+	 * Inserts a copy of a move from another queue at the beginning
+	 */
+	public void addFirst(MoveQueue src, int index){
+		addFirst(
+			src.dx(index), src.dy(index), src.dz(index),
+			src.du(index), src.dv(index), src.dw(index),
+			src.endSpeed(index), src.type(index),
+			src.arcX(index), src.arcY(index), src.arcSteps(index)
+		);
+	}
+
+	/**
+	 * Discards the first move
+	 */
+	public void removeFirst(){
+		if(size == 0)throw new IllegalStateException("MoveQueue empty");
+		head = (head+1) & mask;
+		size--;
+	}
+
+	/**
+	 * Discards the last move
+	 */
+	public void removeLast(){
+		if(size == 0)throw new IllegalStateException("MoveQueue empty");
+		size--;
+	}
+
+	// access to moves by position from the beginning of the queue
+
+	private int slot(int index){
+		if(index < 0 || index >= size)throw new IndexOutOfBoundsException(index);
+		return (head+index) & mask;
+	}
+
+	public int dx(int index){ return dx[slot(index)]; }
+	public int dy(int index){ return dy[slot(index)]; }
+	public int dz(int index){ return dz[slot(index)]; }
+	public int du(int index){ return du[slot(index)]; }
+	public int dv(int index){ return dv[slot(index)]; }
+	public int dw(int index){ return dw[slot(index)]; }
+	public byte endSpeed(int index){ return endSpeed[slot(index)]; }
+	public char type(int index){ return type[slot(index)]; }
+	public int arcX(int index){ return arcX[slot(index)]; }
+	public int arcY(int index){ return arcY[slot(index)]; }
+	public int arcSteps(int index){ return arcSteps[slot(index)]; }
+	public boolean isArc(int index){ return arcSteps[slot(index)] != 0; }
+
+	/**
+	 * Calculates the number of steps needed to run a full move
+	 */
+	public int steps(int index){
+		int s = slot(index);
+		if(arcSteps[s] != 0)return Math.abs(arcSteps[s]);
+		int maximum = Math.abs(dx[s]);
+		maximum = Math.max(maximum, Math.abs(dy[s]));
+		maximum = Math.max(maximum, Math.abs(dz[s]));
+		maximum = Math.max(maximum, Math.abs(du[s]));
+		maximum = Math.max(maximum, Math.abs(dv[s]));
+		maximum = Math.max(maximum, Math.abs(dw[s]));
+		return maximum;
+	}
+
+	/**
+	 * Describes a move for debug output
+	 */
+	public String toString(int index){
+		int s = slot(index);
+		String arc = (arcSteps[s] != 0)? ", arc from "+arcX[s]+" "+arcY[s]+" by "+arcSteps[s] : "";
+		return "{"+dx[s]+", "+dy[s]+", "+dz[s]+arc+", speed "+endSpeed[s]+", type "+type[s]+"}";
+	}
+
+}
+
@@ -0,0 +1,101 @@
+
+/**
+ * A bounded queue of moves passed from one producer thread to one consumer thread
+ * without locking, stored in primitive columns like MoveQueue.
+ * The producer writes a move and then publishes it by advancing the volatile tail,
+ * the consumer reads it and then frees the slot by advancing the volatile head.
+ */
+public class MoveRing {
+
+	private final int[] dx, dy, dz, du, dv, dw;
+	private final byte[] endSpeed;
+	private final char[] type;
+	private final int[] arcX, arcY, arcSteps;
+	private final int mask; // capacity-1, capacity is a power of two
+
+	// total numbers of moves ever removed and added, written by one thread each
+	private volatile long head = 0;
+	private volatile long tail = 0;
+
+	public MoveRing(int capacity){
+		capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		dx = new int[capacity];
+		dy = new int[capacity];
+		dz = new int[capacity];
+		du = new int[capacity];
+		dv = new int[capacity];
+		dw = new int[capacity];
+		endSpeed = new byte[capacity];
+		type = new char[capacity];
+		arcX = new int[capacity];
+		arcY = new int[capacity];
+		arcSteps = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	public int capacity(){
+		return mask + 1;
+	}
+
+	public int size(){
+		return (int)(tail - head);
+	}
+
+	public boolean isEmpty(){
+		return tail == head;
+	}
+
+	public int remainingCapacity(){
+		return capacity() - size();
+	}
+
+	/**
+	 * Adds a move, called by the producer only.
+	 * Returns false when the ring is full.
+	 */
+	public boolean offer(
+		int dx, int dy, int dz, int du, int dv, int dw, byte endSpeed, char type,
+		int arcX, int arcY, int arcSteps
+	){
+		long t = tail;
+		if(t - head > mask)return false;
+		int slot = (int)(t & mask);
+		this.dx[slot] = dx;
+		this.dy[slot] = dy;
+		this.dz[slot] = dz;
+		this.du[slot] = du;
+		this.dv[slot] = dv;
+		this.dw[slot] = dw;
+		this.endSpeed[slot] = endSpeed;
+		this.type[slot] = type;
+		this.arcX[slot] = arcX;
+		this.arcY[slot] = arcY;
+		this.arcSteps[slot] = arcSteps;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Moves the first move to the end of a MoveQueue, called by the consumer only.
+	 * Returns false when the ring is empty.
+	 */
+	public boolean pollInto(MoveQueue q){
+		long h = head;
+		if(h == tail)return false;
+		int slot = (int)(h & mask);
+		q.addLast(
+			dx[slot], dy[slot], dz[slot], du[slot], dv[slot], dw[slot],
+			endSpeed[slot], type[slot], arcX[slot], arcY[slot], arcSteps[slot]
+		);
+		head = h + 1;
+		return true;
+	}
+
+	/**
+	 * Discards all moves; neither the producer nor the consumer may be using the ring
+	 */
+	public void clear(){
+		head = tail;
+	}
+
+}
@@ -0,0 +1,189 @@
+
+/**
+ * Tool path points waiting to be converted to moves, with the zero-speed distances
+ * along the path. Stored in primitive ring buffers, so appending a batch of points
+ * copies just the new points, and dropping processed points copies nothing.
+ * The buffers only grow (by doubling), so a path streamed from a file of any length
+ * needs memory for just a few batches.
+ */
+public class PathBuffer {
+
+	private double[] x, y, z, u, v, w;
+	private int head; // index of the first point in the columns
+	private int size;
+	private int mask; // capacity-1, capacity is a power of two
+
+	private double[] zeros;
+	private int zeroHead;
+	private int zeroSize;
+	private int zeroMask;
+
+	public PathBuffer(int initialCapacity){
+		int capacity = capacityFor(initialCapacity);
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		u = new double[capacity];
+		v = new double[capacity];
+		w = new double[capacity];
+		mask = capacity - 1;
+		zeros = new double[16];
+		zeroMask = zeros.length - 1;
+		clear();
+	}
+
+	/**
+	 * Smallest power of two >= n
+	 */
+	private static int capacityFor(int n){
+		return Integer.highestOneBit(Math.max(n, 2) - 1) << 1;
+	}
+
+	public void clear(){
+		head = 0;
+		size = 0;
+		zeroHead = 0;
+		zeroSize = 0;
+	}
+
+	// tool path points ////////////////////////////////////////////////////////
+
+	/**
+	 * Number of points
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Appends points, all arrays must have the same length
+	 */
+	public void append(double[] x, double[] y, double[] z, double[] u, double[] v, double[] w){
+		int n = x.length;
+		if(size + n > this.x.length){
+			int capacity = capacityFor(size + n);
+			this.x = unwrap(this.x, head, size, capacity);
+			this.y = unwrap(this.y, head, size, capacity);
+			this.z = unwrap(this.z, head, size, capacity);
+			this.u = unwrap(this.u, head, size, capacity);
+			this.v = unwrap(this.v, head, size, capacity);
+			this.w = unwrap(this.w, head, size, capacity);
+			head = 0;
+			mask = capacity - 1;
+		}
+		int start = (head+size) & mask;
+		copyIn(x, this.x, start);
+		copyIn(y, this.y, start);
+		copyIn(z, this.z, start);
+		copyIn(u, this.u, start);
+		copyIn(v, this.v, start);
+		copyIn(w, this.w, start);
+		size += n;
+	}
+
+	/**
+	 * Drops points from the beginning of the path
+	 */
+	public void trim(int count){
+		if(count > size)throw new IllegalArgumentException("Trimming "+count+" of "+size+" points");
+		head = (head+count) & mask;
+		size -= count;
+	}
+
+	private int slot(int index){
+		if(index < 0 || index >= size)throw new IndexOutOfBoundsException(index);
+		return (head+index) & mask;
+	}
+
+	public double x(int index){ return x[slot(index)]; }
+	public double y(int index){ return y[slot(index)]; }
+	public double z(int index){ return z[slot(index)]; }
+	public double u(int index){ return u[slot(index)]; }
+	public double v(int index){ return v[slot(index)]; }
+	public double w(int index){ return w[slot(index)]; }
+
+	// differences between a point and the next one
+	public double dx(int index){ return x[slot(index+1)] - x[slot(index)]; }
+	public double dy(int index){ return y[slot(index+1)] - y[slot(index)]; }
+	public double dz(int index){ return z[slot(index+1)] - z[slot(index)]; }
+	public double du(int index){ return u[slot(index+1)] - u[slot(index)]; }
+	public double dv(int index){ return v[slot(index+1)] - v[slot(index)]; }
+	public double dw(int index){ return w[slot(index+1)] - w[slot(index)]; }
+
+	/**
+	 * Length of the segment from a point to the next one
+	 */
+	public double segmentLength(int index){
+		int s0 = slot(index);
+		int s1 = slot(index+1);
+		double dx = x[s1] - x[s0];
+		double dy = y[s1] - y[s0];
+		double dz = z[s1] - z[s0];
+		double du = u[s1] - u[s0];
+		double dv = v[s1] - v[s0];
+		double dw = w[s1] - w[s0];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw);
+	}
+
+	// zero-speed distances ////////////////////////////////////////////////////
+
+	/**
+	 * Number of zero-speed distances
+	 */
+	public int zeroCount(){
+		return zeroSize;
+	}
+
+	public void appendZeros(double[] distances){
+		int n = distances.length;
+		if(zeroSize + n > zeros.length){
+			int capacity = capacityFor(zeroSize + n);
+			zeros = unwrap(zeros, zeroHead, zeroSize, capacity);
+			zeroHead = 0;
+			zeroMask = capacity - 1;
+		}
+		int start = (zeroHead+zeroSize) & zeroMask;
+		for(int i=0; i<n; i++){
+			zeros[(start+i) & zeroMask] = distances[i];
+		}
+		zeroSize += n;
+	}
+
+	/**
+	 * Drops zero-speed distances from the beginning
+	 */
+	public void trimZeros(int count){
+		if(count > zeroSize)throw new IllegalArgumentException("Trimming "+count+" of "+zeroSize+" distances");
+		zeroHead = (zeroHead+count) & zeroMask;
+		zeroSize -= count;
+	}
+
+	public double zero(int index){
+		if(index < 0 || index >= zeroSize)throw new IndexOutOfBoundsException(index);
+		return zeros[(zeroHead+index) & zeroMask];
+	}
+
+	// copying /////////////////////////////////////////////////////////////////
+
+	/**
+	 * Copies ring contents to the beginning of a new, larger array
+	 */
+	private static double[] unwrap(double[] column, int head, int size, int newCapacity){
+		double[] newColumn = new double[newCapacity];
+		int first = Math.min(size, column.length - head);
+		System.arraycopy(column, head, newColumn, 0, first);
+		System.arraycopy(column, 0, newColumn, first, size - first);
+		return newColumn;
+	}
+
+	/**
+	 * Copies an array into a ring starting at a slot, wrapping around the end
+	 */
+	private static void copyIn(double[] src, double[] column, int start){
+		int first = Math.min(src.length, column.length - start);
+		System.arraycopy(src, 0, column, start, first);
+		System.arraycopy(src, first, column, 0, src.length - first);
+	}
+
+}
+
@@ -0,0 +1,172 @@
+
+import java.util.Arrays;
+
+/**
+ * Removes points of a tool path which do not change its shape by more than a tolerance,
+ * like merging nearly collinear segments of dense arcs and curves.
+ * Works like optimizeVector in gilos.htm, in six dimensions: segments are merged while
+ * the area between the merged chord and the original points stays small
+ * (area / chord length, roughly the distance of removed points from the chord,
+ * is kept below the tolerance).
+ * Single pass, no state kept between batches, first and last point of a batch are always kept.
+ */
+public class PathSimplifier {
+
+	private double tolerance; // mm
+
+	// statistics
+	private long pointsIn = 0;
+	private long pointsRemoved = 0;
+
+	// indices of points kept from the last batch, null if all were kept
+	private int[] kept = null;
+
+	public PathSimplifier(double tolerance){
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Sets largest allowed deviation from the original path, 0 turns simplification off
+	 */
+	public void setTolerance(double tolerance){
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Simplifies a batch of tool path points
+	 * @param points Point coordinates as points[axis][index], six axes
+	 * @return New arrays with the remaining points (or the original ones if nothing is removed)
+	 */
+	public double[][] simplify(double[][] points){
+		int n = points[0].length;
+		pointsIn += n;
+		kept = null;
+		if(n < 3 || tolerance <= 0)return points;
+		int[] keptIndices = new int[n];
+
+		double[] x = points[0];
+		double[] y = points[1];
+		double[] z = points[2];
+		double[] u = points[3];
+		double[] v = points[4];
+		double[] w = points[5];
+		double[][] result = new double[6][n];
+		int m = 0;
+		result[0][m] = x[0];
+		result[1][m] = y[0];
+		result[2][m] = z[0];
+		result[3][m] = u[0];
+		result[4][m] = v[0];
+		result[5][m] = w[0];
+		keptIndices[m] = 0;
+		m++;
+
+		// chord from the last kept point to the previous point
+		double cx = x[1]-x[0];
+		double cy = y[1]-y[0];
+		double cz = z[1]-z[0];
+		double cu = u[1]-u[0];
+		double cv = v[1]-v[0];
+		double cw = w[1]-w[0];
+		double totalArea = 0;
+
+		for(int i=2; i<n; i++){
+			double dx = x[i]-x[i-1];
+			double dy = y[i]-y[i-1];
+			double dz = z[i]-z[i-1];
+			double du = u[i]-u[i-1];
+			double dv = v[i]-v[i-1];
+			double dw = w[i]-w[i-1];
+
+			double dd = dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw;
+			double cc = cx*cx + cy*cy + cz*cz + cu*cu + cv*cv + cw*cw;
+			double cd = cx*dx + cy*dy + cz*dz + cu*du + cv*dv + cw*dw;
+
+			boolean merge;
+			if(dd == 0){ // repeated point
+				merge = true;
+			}
+			else if(cc == 0 || cd <= 0){ // no direction yet, or turning back
+				merge = cc == 0;
+			}
+			else{
+				// triangle between the chord and the new segment
+				double area = Math.sqrt(Math.max(cc*dd - cd*cd, 0)) / 2;
+				double nx = cx+dx;
+				double ny = cy+dy;
+				double nz = cz+dz;
+				double nu = cu+du;
+				double nv = cv+dv;
+				double nw = cw+dw;
+				double chordLength = Math.sqrt(nx*nx + ny*ny + nz*nz + nu*nu + nv*nv + nw*nw);
+				merge = 2*(totalArea+area) <= tolerance*chordLength;
+				if(merge)totalArea += area;
+			}
+
+			if(merge){
+				cx += dx;
+				cy += dy;
+				cz += dz;
+				cu += du;
+				cv += dv;
+				cw += dw;
+			}
+			else{
+				result[0][m] = x[i-1];
+				result[1][m] = y[i-1];
+				result[2][m] = z[i-1];
+				result[3][m] = u[i-1];
+				result[4][m] = v[i-1];
+				result[5][m] = w[i-1];
+				keptIndices[m] = i-1;
+				m++;
+				cx = dx;
+				cy = dy;
+				cz = dz;
+				cu = du;
+				cv = dv;
+				cw = dw;
+				totalArea = 0;
+			}
+		}
+
+		result[0][m] = x[n-1];
+		result[1][m] = y[n-1];
+		result[2][m] = z[n-1];
+		result[3][m] = u[n-1];
+		result[4][m] = v[n-1];
+		result[5][m] = w[n-1];
+		keptIndices[m] = n-1;
+		m++;
+
+		pointsRemoved += n-m;
+		if(m == n)return points;
+		kept = Arrays.copyOf(keptIndices, m);
+		for(int a=0; a<6; a++){
+			result[a] = Arrays.copyOf(result[a], m);
+		}
+		return result;
+	}
+
+	/**
+	 * Indices of the points of the last batch which were kept, null if there were no removed points
+	 */
+	public int[] keptIndices(){
+		return kept;
+	}
+
+	public long pointsIn(){
+		return pointsIn;
+	}
+
+	public long pointsRemoved(){
+		return pointsRemoved;
+	}
+
+	public void resetStatistics(){
+		pointsIn = 0;
+		pointsRemoved = 0;
+	}
+
+}
+
@@ -0,0 +1,134 @@
+
+import java.util.Arrays;
+
+import machines.*;
+
+/**
+ * Finds spots where the machine needs to slow to minimum speed
+ * (path start and end, axis direction changes with backlash correction).
+ * Speed in corners is planned by the driver.
+ *
+ * Works on a tool path coming in batches: the last point, direction of each axis
+ * and path length are kept between batches, so the segment joining two batches
+ * is handled like any other one. Distances are path lengths from the path start,
+ * with segments at least 1e-3 long, the same as in the driver.
+ */
+public class ZeroSpeedDetector {
+
+	private static final double MIN_SEGMENT_LENGTH = 1e-3;
+
+	private boolean started;
+	private double distance;
+	private double lastX, lastY, lastZ, lastU, lastV, lastW;
+	private double lastNonzeroDx, lastNonzeroDy, lastNonzeroDz, lastNonzeroDu, lastNonzeroDv, lastNonzeroDw;
+
+	// output of the last batch, reused
+	private double[] zeros = new double[16];
+	private int zeroCount;
+
+	public ZeroSpeedDetector(){
+		reset();
+	}
+
+	/**
+	 * Starts a new path
+	 */
+	public void reset(){
+		started = false;
+		distance = 0;
+		lastNonzeroDx = lastNonzeroDy = lastNonzeroDz = 0;
+		lastNonzeroDu = lastNonzeroDv = lastNonzeroDw = 0;
+	}
+
+	/**
+	 * Path length up to the last point processed
+	 */
+	public double distance(){
+		return distance;
+	}
+
+	/**
+	 * Processes next batch of tool path points
+	 * @param zeroAtEnd Whether the path ends with the batch
+	 * @return Zero-speed distances found in the batch
+	 */
+	public double[] process(
+		double[] x, double[] y, double[] z,
+		double[] u, double[] v, double[] w,
+		boolean zeroAtEnd, MachineConfig mc
+	){
+		zeroCount = 0;
+		if(x.length == 0)return new double[0];
+
+		boolean backlashX = mc.x.backlash() != 0;
+		boolean backlashY = mc.y.backlash() != 0;
+		boolean backlashZ = mc.z.backlash() != 0;
+		boolean backlashU = mc.u.backlash() != 0;
+		boolean backlashV = mc.v.backlash() != 0;
+		boolean backlashW = mc.w.backlash() != 0;
+
+		int first = 0;
+		if(!started){ // start of a new path, not its continuation
+			add(distance);
+			lastX = x[0];
+			lastY = y[0];
+			lastZ = z[0];
+			lastU = u[0];
+			lastV = v[0];
+			lastW = w[0];
+			started = true;
+			first = 1;
+		}
+
+		double prevX = lastX, prevY = lastY, prevZ = lastZ, prevU = lastU, prevV = lastV, prevW = lastW;
+		for(int i=first; i<x.length; i++){
+			double dx = x[i] - prevX;
+			double dy = y[i] - prevY;
+			double dz = z[i] - prevZ;
+			double du = u[i] - prevU;
+			double dv = v[i] - prevV;
+			double dw = w[i] - prevW;
+
+			// zero at axis direction change which triggers backlash correction
+			if((dx*lastNonzeroDx < 0 && backlashX)
+			|| (dy*lastNonzeroDy < 0 && backlashY)
+			|| (dz*lastNonzeroDz < 0 && backlashZ)
+			|| (du*lastNonzeroDu < 0 && backlashU)
+			|| (dv*lastNonzeroDv < 0 && backlashV)
+			|| (dw*lastNonzeroDw < 0 && backlashW)
+			)add(distance);
+
+			if(dx != 0)lastNonzeroDx = dx;
+			if(dy != 0)lastNonzeroDy = dy;
+			if(dz != 0)lastNonzeroDz = dz;
+			if(du != 0)lastNonzeroDu = du;
+			if(dv != 0)lastNonzeroDv = dv;
+			if(dw != 0)lastNonzeroDw = dw;
+
+			distance += Math.max(Math.sqrt(dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw), MIN_SEGMENT_LENGTH);
+			prevX = x[i];
+			prevY = y[i];
+			prevZ = z[i];
+			prevU = u[i];
+			prevV = v[i];
+			prevW = w[i];
+		}
+		lastX = prevX;
+		lastY = prevY;
+		lastZ = prevZ;
+		lastU = prevU;
+		lastV = prevV;
+		lastW = prevW;
+
+		if(zeroAtEnd){
+			add(distance);
+		}
+		return Arrays.copyOf(zeros, zeroCount);
+	}
+
+	private void add(double zeroDistance){
+		if(zeroCount == zeros.length)zeros = Arrays.copyOf(zeros, zeros.length*2);
+		zeros[zeroCount++] = zeroDistance;
+	}
+
+}
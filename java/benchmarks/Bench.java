@@ -0,0 +1,85 @@
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Timing helper shared by the micro-benchmarks in this directory.
+ * Each case runs for several rounds in the same JVM; earlier rounds warm up the JIT,
+ * so the last round is the one to read.
+ * Allocation is counted for the calling thread only.
+ *
+ * JMH is not used: the project has no build system or dependency management,
+ * just javac with jars next to the sources (compile.sh), and JMH needs its jars
+ * and annotation processor set up in a Maven or Gradle build to generate the harness.
+ * The price is no forked JVMs and no statistics across runs, so compare results
+ * from the same run of a benchmark only.
+ */
+class Bench {
+
+	interface Case {
+		/**
+		 * Runs the measured code numOps times.
+		 * Returns anything derived from the results, so that the JIT cannot drop the work.
+		 */
+		long run(int numOps);
+	}
+
+	private static volatile long sink;
+
+	/**
+	 * Reads an optional positive integer argument
+	 */
+	static int intArg(String[] args, int index, int defaultValue){
+		if(args.length <= index)return defaultValue;
+		return Integer.parseInt(args[index]);
+	}
+
+	/**
+	 * Generates a guilloche-like XY tool path of numPoints points, about step mm apart
+	 * (a circle with two rosette waves, going round many times).
+	 * Returns six axis columns, Z to W are zero.
+	 */
+	static double[][] guilloche(int numPoints, double step){
+		double[][] points = new double[6][numPoints];
+		double radius = 40;
+		double dt = step / radius;
+		for(int i=0; i<numPoints; i++){
+			double t = i * dt;
+			double r = radius + 3*Math.cos(37*t) + Math.cos(91*t);
+			points[0][i] = r * Math.cos(t);
+			points[1][i] = r * Math.sin(t);
+		}
+		return points;
+	}
+
+	/**
+	 * Returns a part of each axis column
+	 */
+	static double[][] slice(double[][] points, int from, int to){
+		double[][] batch = new double[points.length][];
+		for(int a=0; a<points.length; a++){
+			batch[a] = java.util.Arrays.copyOfRange(points[a], from, to);
+		}
+		return batch;
+	}
+
+	/**
+	 * Runs a case for the given number of rounds, prints time and allocation per operation
+	 */
+	static void measure(String name, int numOps, int rounds, Case c){
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for(int round=1; round<=rounds; round++){
+			long bytes0 = threads.getThreadAllocatedBytes(thread);
+			long time0 = System.nanoTime();
+			sink += c.run(numOps);
+			long time = System.nanoTime() - time0;
+			long bytes = threads.getThreadAllocatedBytes(thread) - bytes0;
+			System.out.printf(
+				"%-36s round %d: %10.1f ns/op %14.0f op/s %10.1f B/op%n",
+				name, round, (double)time/numOps, numOps*1e9/time, (double)bytes/numOps
+			);
+		}
+	}
+
+}
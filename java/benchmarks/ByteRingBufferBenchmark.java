@@ -0,0 +1,121 @@
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compares reading status bytes and acknowledgements through ByteRingBuffer
+ * with the peekBuffer code GilosDriver used before.
+ * The serial port is played by a second ByteRingBuffer refilled before each operation,
+ * so both variants pay the same cost on the port side.
+ *
+ * Usage: ./benchmark.sh ByteRingBufferBenchmark [operations] [rounds]
+ */
+public class ByteRingBufferBenchmark {
+
+	private static final byte[] STATUS = {'F'};
+	private static final byte[] ACK = {'a', 'b', 'c'};
+
+	// stand-in for the serial port library's internal buffer
+	private final ByteRingBuffer port = new ByteRingBuffer(4096);
+
+	// receive path of the driver
+	private final ByteRingBuffer receiveBuffer = new ByteRingBuffer(65536);
+
+	// old receive path //////////////////////////////////////////////////////
+
+	private byte[] peekBuffer = new byte[0];
+
+	private byte[] readRawBytes(int numBytes){
+		byte[] readBuffer = new byte[numBytes];
+		int actualNumBytes = port.read(readBuffer, 0, numBytes);
+		if(actualNumBytes <= 0)return new byte[0];
+		return Arrays.copyOf(readBuffer, actualNumBytes);
+	}
+
+	private byte[] peekBytes(int numBytes){
+		for(int i=0; i<50 && peekBuffer.length<numBytes; i++){
+			byte[] newData = readRawBytes(numBytes-peekBuffer.length);
+			if(newData.length > 0){
+				peekBuffer = Arrays.copyOf(peekBuffer, peekBuffer.length+newData.length);
+				System.arraycopy(newData, 0, peekBuffer, peekBuffer.length-newData.length, newData.length);
+			}
+			if(peekBuffer.length >= numBytes)break;
+		}
+		return Arrays.copyOf(peekBuffer, Math.min(numBytes, peekBuffer.length));
+	}
+
+	private byte[] readBytes(int numBytes){
+		byte[] data = peekBytes(numBytes);
+		peekBuffer = Arrays.copyOfRange(peekBuffer, data.length, peekBuffer.length);
+		return data;
+	}
+
+	private String oldRead(int numBytes){
+		byte[] byteData = readBytes(numBytes);
+		return new String(byteData, 0, byteData.length, StandardCharsets.UTF_8);
+	}
+
+	private long oldStatus(int numOps){
+		long count = 0;
+		for(int i=0; i<numOps; i++){
+			port.write(STATUS, 0, STATUS.length);
+			if(oldRead(1).equals("F"))count++;
+		}
+		return count;
+	}
+
+	private long oldAck(int numOps){
+		long count = 0;
+		for(int i=0; i<numOps; i++){
+			port.write(ACK, 0, ACK.length);
+			if("abc".equals(oldRead(3)))count++;
+		}
+		return count;
+	}
+
+	// new receive path //////////////////////////////////////////////////////
+
+	private final byte[] chunk = new byte[1024];
+
+	/**
+	 * What the serial data listener does
+	 */
+	private void receive(){
+		int numBytes = port.read(chunk, 0, chunk.length);
+		receiveBuffer.write(chunk, 0, numBytes);
+	}
+
+	private long newStatus(int numOps){
+		long count = 0;
+		for(int i=0; i<numOps; i++){
+			port.write(STATUS, 0, STATUS.length);
+			receive();
+			int data = receiveBuffer.read();
+			char response = (data < 0)? 0 : (char)data;
+			if(response == 'F')count++;
+		}
+		return count;
+	}
+
+	private long newAck(int numOps){
+		long count = 0;
+		for(int i=0; i<numOps; i++){
+			port.write(ACK, 0, ACK.length);
+			receive();
+			if(receiveBuffer.matches("abc"))count++;
+			receiveBuffer.skip(3);
+		}
+		return count;
+	}
+
+	public static void main(String[] args){
+		int numOps = Bench.intArg(args, 0, 20_000_000);
+		int rounds = Bench.intArg(args, 1, 3);
+		ByteRingBufferBenchmark b = new ByteRingBufferBenchmark();
+		Bench.measure("status byte, old peekBuffer", numOps, rounds, b::oldStatus);
+		Bench.measure("status byte, ring buffer", numOps, rounds, b::newStatus);
+		Bench.measure("read(\"abc\"), old peekBuffer", numOps, rounds, b::oldAck);
+		Bench.measure("read(\"abc\"), ring buffer", numOps, rounds, b::newAck);
+	}
+
+}
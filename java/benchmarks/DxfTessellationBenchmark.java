@@ -0,0 +1,103 @@
+
+import java.io.*;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import filesources.DxfFileSource;
+
+/**
+ * Opens a large synthetic DXF file (circles, arcs and ellipses, which need tessellating, and lines)
+ * in fork-join pools of 1, 2, 4, ... threads, to show how tessellation scales across cores.
+ * The constructor runs as a task of the pool, so its parallel tessellation uses that pool
+ * instead of the common one. Each open prints "DXF: ... tessellated in ... ms" for the parallel
+ * stage alone; the times measured here include the serial ones (parsing, contours, path order).
+ * Needs the kabeja library.
+ *
+ * Usage: ./benchmark.sh DxfTessellationBenchmark [entities] [rounds] [max threads]
+ */
+public class DxfTessellationBenchmark {
+
+	private static final double CHORD_TOLERANCE = 0.001; // mm
+	private static final double MIN_CHORD = 0.0025; // mm, a step at 400 steps/mm
+
+	/**
+	 * Writes an ASCII DXF file with just an ENTITIES section, entities scattered over a square
+	 */
+	private static void writeDxf(String file, int numEntities) throws IOException{
+		Random random = new Random(1);
+		try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))){
+			out.print("0\nSECTION\n2\nENTITIES\n");
+			for(int i=0; i<numEntities; i++){
+				double x = random.nextDouble() * 1000;
+				double y = random.nextDouble() * 1000;
+				double r = 1 + random.nextDouble() * 20;
+				switch(i % 4){
+					case 0:
+						out.print("0\nCIRCLE\n8\n0\n");
+						group(out, 10, x, 20, y, 30, 0);
+						group(out, 40, r);
+						break;
+					case 1:
+						out.print("0\nARC\n8\n0\n");
+						group(out, 10, x, 20, y, 30, 0);
+						group(out, 40, r);
+						group(out, 50, random.nextDouble()*360, 51, random.nextDouble()*360);
+						break;
+					case 2:
+						out.print("0\nELLIPSE\n8\n0\n");
+						group(out, 10, x, 20, y, 30, 0);
+						group(out, 11, r, 21, r/3, 31, 0);
+						group(out, 40, 0.2 + random.nextDouble()*0.8);
+						group(out, 41, 0, 42, 2*Math.PI);
+						break;
+					default:
+						out.print("0\nLINE\n8\n0\n");
+						group(out, 10, x, 20, y, 30, 0);
+						group(out, 11, x+r, 21, y-r, 31, 0);
+						break;
+				}
+			}
+			out.print("0\nENDSEC\n0\nEOF\n");
+		}
+	}
+
+	/**
+	 * Writes pairs of group code and value
+	 */
+	private static void group(PrintWriter out, Object... pairs){
+		for(int i=0; i<pairs.length; i+=2){
+			out.print(pairs[i]+"\n");
+			out.print(String.format(Locale.ROOT, "%.6f\n", ((Number)pairs[i+1]).doubleValue()));
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		int numEntities = Bench.intArg(args, 0, 200_000);
+		int rounds = Bench.intArg(args, 1, 3);
+		int maxThreads = Bench.intArg(args, 2, Math.max(4, Runtime.getRuntime().availableProcessors()));
+		File file = File.createTempFile("benchmark", ".dxf");
+		file.deleteOnExit();
+		writeDxf(file.getPath(), numEntities);
+		System.out.println(Runtime.getRuntime().availableProcessors()+" processors available");
+
+		for(int threads=1; threads<=maxThreads; threads*=2){
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			String name = "open DXF, "+threads+" threads";
+			pool.submit(() -> Bench.measure(name, numEntities, rounds, n -> {
+				try{
+					DxfFileSource source = new DxfFileSource(file.getPath(), 10, CHORD_TOLERANCE, MIN_CHORD);
+					long numPoints = 0;
+					while(!source.finished())numPoints += source.getPoints()[0].length;
+					return numPoints;
+				}
+				catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+			})).get();
+			pool.shutdown();
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,152 @@
+
+import machines.*;
+
+/**
+ * Measures how many tool path segments per second MotionPlanner plans, together with
+ * splitting each segment into accelerating, full speed and decelerating moves
+ * (the line branch of GilosDriver.popSequence, replayed here with the driver's constants).
+ * The path is a guilloche with zero-speed points at axis direction changes (backlash on X and Y).
+ *
+ * Usage: ./benchmark.sh MotionPlannerBenchmark [segments] [rounds] [segment length in mm]
+ */
+public class MotionPlannerBenchmark {
+
+	// driver constants
+	private static final double ACCELERATION = 8000;
+	private static final byte SPEED_LOW = 1;
+	private static final int SPEED_SHIFT = 5;
+
+	private final MachineConfig machineConf;
+	private final PathBuffer path;
+	private final MoveQueue plannedMoves = new MoveQueue(1024);
+	private MotionPlanner planner;
+
+	private MotionPlannerBenchmark(int numSegments, double step){
+		AxisConfig withBacklash = new AxisConfig(true, 400, false, false, null, null, 0.05);
+		machineConf = new MachineConfig(
+			withBacklash, withBacklash.clone(),
+			new AxisConfig(), new AxisConfig(), new AxisConfig(), new AxisConfig(),
+			3200
+		);
+		double[][] points = Bench.guilloche(numSegments+1, step);
+		path = new PathBuffer(numSegments+1);
+		path.append(points[0], points[1], points[2], points[3], points[4], points[5]);
+		ZeroSpeedDetector detector = new ZeroSpeedDetector();
+		path.appendZeros(detector.process(
+			points[0], points[1], points[2], points[3], points[4], points[5],
+			true, machineConf
+		));
+	}
+
+	// replay of the driver's planning state and popSequence
+
+	private int segmentIndex;
+	private double sequenceDistance;
+	private int nextZeroIndex;
+	private double plannedSpeed;
+	private int bufDx, bufDy;
+	private long moves;
+
+	private byte encodeSpeed(double speed){
+		return (byte)Math.min(Math.max((int)(speed / (1 << SPEED_SHIFT)), SPEED_LOW), 255);
+	}
+
+	private int getSegmentDx(double delta, AxisConfig ax, double part){
+		if(!ax.exists())return 0;
+		int dx = (int)Math.round(delta*part*ax.stepsPerMm());
+		if(ax.inverted())dx = -dx;
+		return dx;
+	}
+
+	private void addSegment(double startPart, double endPart, byte endSpeed, boolean force){
+		int dx = getSegmentDx(path.dx(segmentIndex), machineConf.x, endPart-startPart) + bufDx;
+		int dy = getSegmentDx(path.dy(segmentIndex), machineConf.y, endPart-startPart) + bufDy;
+		int steps = Math.max(Math.abs(dx), Math.abs(dy));
+		if(steps < 10 && !force){ // joining short segments
+			bufDx = dx;
+			bufDy = dy;
+		}
+		else{
+			plannedMoves.addLast(dx, dy, 0, 0, 0, 0, endSpeed, 'm');
+			bufDx = bufDy = 0;
+			moves++;
+			if(plannedMoves.size() >= 512)plannedMoves.clear(); // sent
+		}
+	}
+
+	private boolean popSequence(){
+		if(segmentIndex >= path.size()-1)return false;
+		boolean lastSegment = (segmentIndex == path.size()-2);
+		double endSpeed = planner.exitSpeed(path, segmentIndex, sequenceDistance, nextZeroIndex, machineConf);
+		double steps = planner.segmentSteps(segmentIndex);
+		double accel2 = planner.segmentAccel2(segmentIndex);
+		double maxSpeed = Math.max(planner.segmentMaxSpeed(segmentIndex), MotionPlanner.LOW_SPEED);
+		double startSpeed = plannedSpeed;
+
+		endSpeed = Math.min(endSpeed, Math.sqrt(startSpeed*startSpeed + accel2*steps));
+		endSpeed = Math.max(endSpeed, MotionPlanner.LOW_SPEED);
+
+		double accelSteps = Math.max(maxSpeed*maxSpeed - startSpeed*startSpeed, 0) / accel2;
+		double decelSteps = Math.max(maxSpeed*maxSpeed - endSpeed*endSpeed, 0) / accel2;
+		double peakSpeed = maxSpeed;
+		if(accelSteps + decelSteps > steps){
+			double peak2 = (accel2*steps + startSpeed*startSpeed + endSpeed*endSpeed) / 2;
+			peakSpeed = Math.sqrt(peak2);
+			accelSteps = Math.max(peak2 - startSpeed*startSpeed, 0) / accel2;
+			decelSteps = steps - accelSteps;
+		}
+
+		double accelEnd = 0;
+		double decelStart = 0;
+		if(steps > 0){
+			accelEnd = Math.min(Math.max(accelSteps / steps, 0), 1);
+			decelStart = Math.max(1 - decelSteps / steps, accelEnd);
+		}
+		if(accelEnd > 0){
+			addSegment(0, accelEnd, encodeSpeed(peakSpeed), lastSegment && accelEnd >= 1);
+		}
+		if(decelStart > accelEnd){
+			addSegment(accelEnd, decelStart, encodeSpeed(peakSpeed), lastSegment && decelStart >= 1);
+		}
+		if(decelStart < 1){
+			addSegment(decelStart, 1, encodeSpeed(endSpeed), lastSegment);
+		}
+		plannedSpeed = Byte.toUnsignedInt(encodeSpeed(endSpeed)) << SPEED_SHIFT;
+
+		sequenceDistance += Math.max(path.segmentLength(segmentIndex), 1e-3);
+		while(nextZeroIndex < path.zeroCount() && path.zero(nextZeroIndex) < sequenceDistance){
+			nextZeroIndex++;
+		}
+		segmentIndex++;
+		return true;
+	}
+
+	private long run(int lookAhead){
+		planner = new MotionPlanner(lookAhead, machineConf.junctionDeviation, ACCELERATION);
+		planner.setMaxSpeed(255 << SPEED_SHIFT);
+		segmentIndex = 0;
+		sequenceDistance = 0;
+		nextZeroIndex = 0;
+		plannedSpeed = MotionPlanner.LOW_SPEED;
+		bufDx = bufDy = 0;
+		moves = 0;
+		plannedMoves.clear();
+		while(popSequence()){}
+		return moves;
+	}
+
+	public static void main(String[] args){
+		int numSegments = Bench.intArg(args, 0, 1_000_000);
+		int rounds = Bench.intArg(args, 1, 5);
+		double step = (args.length > 2)? Double.parseDouble(args[2]) : 0.05;
+		MotionPlannerBenchmark b = new MotionPlannerBenchmark(numSegments, step);
+		for(int lookAhead: new int[]{64, 256, 1024}){
+			System.out.printf("look-ahead %d: %d moves from %d segments, %d zero-speed points%n",
+				lookAhead, b.run(lookAhead), numSegments, b.path.zeroCount());
+			Bench.measure("plan and split, look-ahead "+lookAhead, numSegments, rounds, n -> b.run(lookAhead));
+			System.out.printf("planner alone: %.0f segments/s (counting each replanned segment)%n",
+				b.planner.segmentsPerSecond());
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+
+import java.io.*;
+
+import filesources.IdxFileSource;
+import machines.*;
+
+/**
+ * Streams an idx file through PathBuffer the way GilosDriver does
+ * (walk the segments, trimSequence and extendSequence with a new batch when 200 points are left)
+ * and compares it with the arrays extendSequence/trimSequence used before,
+ * which were copied whole on every batch.
+ * The file is a guilloche of 5M points by default, written to a temporary file first.
+ * Reading the file alone is measured too, to be subtracted from both.
+ *
+ * Usage: ./benchmark.sh PathBufferBenchmark [points] [rounds]
+ */
+public class PathBufferBenchmark {
+
+	private static final int REFILL_POINTS = 200;
+
+	private final String file;
+	private final MachineConfig machineConf;
+	private final ZeroSpeedDetector detector = new ZeroSpeedDetector();
+
+	private PathBufferBenchmark(String file){
+		this.file = file;
+		// backlash on X and Y, so that the path has zero-speed points at axis direction changes
+		AxisConfig withBacklash = new AxisConfig(true, 100, false, false, null, null, 0.05);
+		machineConf = new MachineConfig(
+			withBacklash, withBacklash.clone(),
+			new AxisConfig(), new AxisConfig(), new AxisConfig(), new AxisConfig(),
+			3200
+		);
+	}
+
+	/**
+	 * Writes an idx file of two axes in microns
+	 */
+	private static void writeIdx(String file, int numPoints) throws IOException{
+		double[][] path = Bench.guilloche(numPoints, 0.01);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+			out.writeInt(0x00000C02);
+			out.writeInt(numPoints);
+			out.writeInt(2);
+			for(int i=0; i<numPoints; i++){
+				out.writeInt((int)Math.round(path[0][i]*1000));
+				out.writeInt((int)Math.round(path[1][i]*1000));
+			}
+		}
+	}
+
+	private IdxFileSource open() throws IOException{
+		detector.reset();
+		return new IdxFileSource(file, 2, new int[]{0, 1});
+	}
+
+	private double[] zeros(double[][] points, IdxFileSource source){
+		return detector.process(
+			points[0], points[1], points[2], points[3], points[4], points[5],
+			source.finished(), machineConf
+		);
+	}
+
+	/**
+	 * Reads the file and finds zero-speed points without storing anything,
+	 * the part of the work both variants share
+	 */
+	private long runRead(){
+		try{
+			IdxFileSource source = open();
+			long count = 0;
+			while(!source.finished()){
+				double[][] points = source.getPoints();
+				count += points[0].length + zeros(points, source).length;
+			}
+			source.close();
+			return count;
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// old path storage //////////////////////////////////////////////////////
+
+	private double[] x, y, z, u, v, w, zeroSpeedDistances;
+	private int segmentIndex;
+
+	private void trimSequence(){
+		int trimCount = segmentIndex-2;
+		if(trimCount <= 0)return;
+		double[] newX = new double[x.length-trimCount];
+		System.arraycopy(x, trimCount, newX, 0, x.length-trimCount);
+		x = newX;
+		double[] newY = new double[y.length-trimCount];
+		System.arraycopy(y, trimCount, newY, 0, y.length-trimCount);
+		y = newY;
+		double[] newZ = new double[z.length-trimCount];
+		System.arraycopy(z, trimCount, newZ, 0, z.length-trimCount);
+		z = newZ;
+		double[] newU = new double[u.length-trimCount];
+		System.arraycopy(u, trimCount, newU, 0, u.length-trimCount);
+		u = newU;
+		double[] newV = new double[v.length-trimCount];
+		System.arraycopy(v, trimCount, newV, 0, v.length-trimCount);
+		v = newV;
+		double[] newW = new double[w.length-trimCount];
+		System.arraycopy(w, trimCount, newW, 0, w.length-trimCount);
+		w = newW;
+		segmentIndex -= trimCount;
+	}
+
+	private void extendSequence(
+		double[] x, double[] y, double[] z,
+		double[] u, double[] v, double[] w,
+		double[] zeroSpeedDistances
+	){
+		double[] newX = new double[this.x.length+x.length];
+		System.arraycopy(this.x, 0, newX, 0, this.x.length);
+		System.arraycopy(x, 0, newX, this.x.length, x.length);
+		double[] newY = new double[this.y.length+y.length];
+		System.arraycopy(this.y, 0, newY, 0, this.y.length);
+		System.arraycopy(y, 0, newY, this.y.length, y.length);
+		double[] newZ = new double[this.z.length+z.length];
+		System.arraycopy(this.z, 0, newZ, 0, this.z.length);
+		System.arraycopy(z, 0, newZ, this.z.length, z.length);
+		double[] newU = new double[this.u.length+u.length];
+		System.arraycopy(this.u, 0, newU, 0, this.u.length);
+		System.arraycopy(u, 0, newU, this.u.length, u.length);
+		double[] newV = new double[this.v.length+v.length];
+		System.arraycopy(this.v, 0, newV, 0, this.v.length);
+		System.arraycopy(v, 0, newV, this.v.length, v.length);
+		double[] newW = new double[this.w.length+w.length];
+		System.arraycopy(this.w, 0, newW, 0, this.w.length);
+		System.arraycopy(w, 0, newW, this.w.length, w.length);
+		double[] new0 = new double[this.zeroSpeedDistances.length+zeroSpeedDistances.length];
+		if(this.zeroSpeedDistances.length > 0){
+			System.arraycopy(this.zeroSpeedDistances, 0, new0, 0, this.zeroSpeedDistances.length);
+		}
+		for(int i=0; i<zeroSpeedDistances.length; i++){
+			new0[this.zeroSpeedDistances.length+i] = zeroSpeedDistances[i];
+		}
+		this.x = newX;
+		this.y = newY;
+		this.z = newZ;
+		this.u = newU;
+		this.v = newV;
+		this.w = newW;
+		this.zeroSpeedDistances = new0;
+	}
+
+	private long runOld(){
+		try{
+			IdxFileSource source = open();
+			x = y = z = u = v = w = zeroSpeedDistances = new double[0];
+			segmentIndex = 0;
+			double length = 0;
+			while(true){
+				if(x.length-segmentIndex <= REFILL_POINTS && !source.finished()){
+					trimSequence();
+					double[][] points = source.getPoints();
+					extendSequence(points[0], points[1], points[2], points[3], points[4], points[5], zeros(points, source));
+				}
+				if(segmentIndex >= x.length-1)break;
+				int i = segmentIndex;
+				double dx = x[i+1]-x[i], dy = y[i+1]-y[i], dz = z[i+1]-z[i];
+				double du = u[i+1]-u[i], dv = v[i+1]-v[i], dw = w[i+1]-w[i];
+				length += Math.sqrt(dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw);
+				segmentIndex++;
+			}
+			source.close();
+			return (long)length + zeroSpeedDistances.length;
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// PathBuffer ////////////////////////////////////////////////////////////
+
+	private final PathBuffer path = new PathBuffer(1024);
+	private int nextZeroIndex;
+
+	private long runNew(){
+		try{
+			IdxFileSource source = open();
+			path.clear();
+			segmentIndex = 0;
+			nextZeroIndex = 0;
+			long zeroCount = 0;
+			double length = 0;
+			while(true){
+				if(path.size()-segmentIndex <= REFILL_POINTS && !source.finished()){
+					// trimSequence
+					int trimCount = segmentIndex-2;
+					if(trimCount > 0){
+						path.trim(trimCount);
+						segmentIndex -= trimCount;
+					}
+					path.trimZeros(nextZeroIndex);
+					nextZeroIndex = 0;
+					// extendSequence
+					double[][] points = source.getPoints();
+					path.append(points[0], points[1], points[2], points[3], points[4], points[5]);
+					double[] zeros = zeros(points, source);
+					path.appendZeros(zeros);
+					zeroCount += zeros.length;
+				}
+				if(segmentIndex >= path.size()-1)break;
+				length += path.segmentLength(segmentIndex);
+				while(nextZeroIndex < path.zeroCount() && path.zero(nextZeroIndex) < length)nextZeroIndex++;
+				segmentIndex++;
+			}
+			source.close();
+			return (long)length + zeroCount;
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static void main(String[] args) throws IOException{
+		int numPoints = Bench.intArg(args, 0, 5_000_000);
+		int rounds = Bench.intArg(args, 1, 3);
+		File file = File.createTempFile("benchmark", ".idx");
+		file.deleteOnExit();
+		writeIdx(file.getPath(), numPoints);
+		PathBufferBenchmark b = new PathBufferBenchmark(file.getPath());
+		System.out.printf("path length + zero-speed points: old %d, new %d%n", b.runOld(), b.runNew());
+		Bench.measure("reading only", numPoints, rounds, n -> b.runRead());
+		Bench.measure("old extendSequence/trimSequence", numPoints, rounds, n -> b.runOld());
+		Bench.measure("PathBuffer", numPoints, rounds, n -> b.runNew());
+		file.delete();
+	}
+
+}
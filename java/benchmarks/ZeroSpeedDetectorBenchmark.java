@@ -0,0 +1,208 @@
+
+import java.util.ArrayList;
+import java.util.List;
+
+import machines.*;
+
+/**
+ * Compares ZeroSpeedDetector with findZeroSpeedDistances, which GilosController used before,
+ * on a guilloche path read in batches of 10000 points like from a file.
+ *
+ * The old code also stopped at sharp turns, scanning the segments within ACCEL_DISTANCE
+ * behind each point; that is done by MotionPlanner now (see MotionPlannerBenchmark),
+ * so the old variant is run both as it was and without the turn check.
+ *
+ * Usage: ./benchmark.sh ZeroSpeedDetectorBenchmark [segments] [rounds] [segment length in mm]
+ */
+public class ZeroSpeedDetectorBenchmark {
+
+	private static final int BATCH = 10000;
+
+	// value used by the old driver
+	private static final double ACCEL_DISTANCE = 3.0;
+
+	private final MachineConfig machineConf;
+	private final double[][][] batches;
+
+	private ZeroSpeedDetectorBenchmark(int numSegments, double step){
+		AxisConfig withBacklash = new AxisConfig(true, 100, false, false, null, null, 0.05);
+		machineConf = new MachineConfig(
+			withBacklash, withBacklash.clone(),
+			new AxisConfig(), new AxisConfig(), new AxisConfig(), new AxisConfig(),
+			3200
+		);
+		double[][] path = Bench.guilloche(numSegments+1, step);
+		batches = new double[(numSegments + BATCH) / BATCH][][];
+		for(int b=0; b<batches.length; b++){
+			batches[b] = Bench.slice(path, b*BATCH, Math.min((b+1)*BATCH, numSegments+1));
+		}
+	}
+
+	// old detector //////////////////////////////////////////////////////////
+
+	private double endDistance;
+	private double lastDistance;
+	private double[] lastPoint;
+
+	private double[] findZeroSpeedDistances(
+		double[] x, double[] y, double[] z,
+		double[] u, double[] v, double[] w,
+		double startDistance, boolean zeroAtEnd, boolean turns
+	){
+		List<Double> zeroDistances = new ArrayList<Double>();
+		double distance = startDistance;
+		zeroDistances.add(distance);
+
+		var previousSegments = new ArrayList<double[]>();
+		previousSegments.add(new double[]{0, 0, 0, 0, 0, 0, 1});
+
+		double lastNonzeroDx = 0;
+		double lastNonzeroDy = 0;
+		double lastNonzeroDz = 0;
+		double lastNonzeroDu = 0;
+		double lastNonzeroDv = 0;
+		double lastNonzeroDw = 0;
+
+		double dx, dy, dz, du, dv, dw, norm;
+
+		double cos;
+		double minCos = Math.cos(Math.toRadians(20));
+		boolean zero;
+		for(int i=1; i<x.length; i++){
+			dx = x[i] - x[i-1];
+			dy = y[i] - y[i-1];
+			dz = z[i] - z[i-1];
+			du = u[i] - u[i-1];
+			dv = v[i] - v[i-1];
+			dw = w[i] - w[i-1];
+			norm = Math.sqrt(dx*dx + dy*dy + dz*dz + du*du + dv*dv + dw*dw);
+			norm = Math.max(norm, 1e-3);
+
+			zero = false;
+
+			// zero at sharp turns
+			double queueDist = norm;
+			if(turns){
+				for(double[] prev: previousSegments){
+					cos = (dx*prev[0] + dy*prev[1] + dz*prev[2]
+						 + du*prev[3] + dv*prev[4] + dw*prev[5])
+						/ norm / prev[6];
+					if(cos < minCos){
+						zero = true;
+						queueDist += 2*ACCEL_DISTANCE; // empty queue
+					}
+				}
+			}
+
+			// zero at axis direction change which triggers backlash correction
+			if((dx*lastNonzeroDx < 0 && machineConf.x.backlash() != 0)
+			|| (dy*lastNonzeroDy < 0 && machineConf.y.backlash() != 0)
+			|| (dz*lastNonzeroDz < 0 && machineConf.z.backlash() != 0)
+			|| (du*lastNonzeroDu < 0 && machineConf.u.backlash() != 0)
+			|| (dv*lastNonzeroDv < 0 && machineConf.v.backlash() != 0)
+			|| (dw*lastNonzeroDw < 0 && machineConf.w.backlash() != 0)
+			)zero = true;
+
+			if(zero){
+				zeroDistances.add(distance);
+			}
+
+			if(turns){
+				previousSegments.add(new double[]{dx, dy, dz, du, dv, dw, norm});
+				for(int j=previousSegments.size()-2; j>=0; j--){
+					if(queueDist > ACCEL_DISTANCE){
+						previousSegments.remove(j);
+					}
+					else{
+						queueDist += previousSegments.get(j)[6];
+					}
+				}
+			}
+
+			if(dx != 0)lastNonzeroDx = dx;
+			if(dy != 0)lastNonzeroDy = dy;
+			if(dz != 0)lastNonzeroDz = dz;
+			if(du != 0)lastNonzeroDu = du;
+			if(dv != 0)lastNonzeroDv = dv;
+			if(dw != 0)lastNonzeroDw = dw;
+
+			distance += norm;
+		}
+		if(zeroAtEnd){
+			zeroDistances.add(distance);
+		}
+		endDistance = distance;
+		Double[] zeroDistances2 = zeroDistances.toArray(new Double[zeroDistances.size()]);
+		double[] zeroDistances3 = new double[zeroDistances2.length];
+		for(int i=zeroDistances2.length-1; i>=0; i--){
+			zeroDistances3[i] = zeroDistances2[i];
+		}
+		return zeroDistances3;
+	}
+
+	/**
+	 * The batch handling of the old GilosController.sendPoints
+	 */
+	private long runOld(boolean turns){
+		long count = 0;
+		lastDistance = 0;
+		for(int b=0; b<batches.length; b++){
+			double[][] points = batches[b];
+			if(lastDistance > 0){
+				lastDistance += Math.sqrt(
+					  (lastPoint[0]-points[0][0])*(lastPoint[0]-points[0][0])
+					+ (lastPoint[1]-points[1][0])*(lastPoint[1]-points[1][0])
+					+ (lastPoint[2]-points[2][0])*(lastPoint[2]-points[2][0])
+					+ (lastPoint[3]-points[3][0])*(lastPoint[3]-points[3][0])
+					+ (lastPoint[4]-points[4][0])*(lastPoint[4]-points[4][0])
+					+ (lastPoint[5]-points[5][0])*(lastPoint[5]-points[5][0])
+				);
+			}
+			double[] zeros = findZeroSpeedDistances(
+				points[0], points[1], points[2],
+				points[3], points[4], points[5],
+				lastDistance, b == batches.length-1, turns
+			);
+			lastDistance = endDistance;
+			int last = points[0].length-1;
+			lastPoint = new double[]{
+				points[0][last], points[1][last], points[2][last],
+				points[3][last], points[4][last], points[5][last]
+			};
+			count += zeros.length;
+		}
+		return count;
+	}
+
+	// new detector //////////////////////////////////////////////////////////
+
+	private final ZeroSpeedDetector detector = new ZeroSpeedDetector();
+
+	private long runNew(){
+		long count = 0;
+		detector.reset();
+		for(int b=0; b<batches.length; b++){
+			double[][] points = batches[b];
+			double[] zeros = detector.process(
+				points[0], points[1], points[2],
+				points[3], points[4], points[5],
+				b == batches.length-1, machineConf
+			);
+			count += zeros.length;
+		}
+		return count;
+	}
+
+	public static void main(String[] args){
+		int numSegments = Bench.intArg(args, 0, 1_000_000);
+		int rounds = Bench.intArg(args, 1, 5);
+		double step = (args.length > 2)? Double.parseDouble(args[2]) : 0.05;
+		ZeroSpeedDetectorBenchmark b = new ZeroSpeedDetectorBenchmark(numSegments, step);
+		System.out.printf("zero-speed points: old %d, old without turns %d, new %d%n",
+			b.runOld(true), b.runOld(false), b.runNew());
+		Bench.measure("old findZeroSpeedDistances", numSegments, rounds, n -> b.runOld(true));
+		Bench.measure("old, without the turn check", numSegments, rounds, n -> b.runOld(false));
+		Bench.measure("ZeroSpeedDetector", numSegments, rounds, n -> b.runNew());
+	}
+
+}
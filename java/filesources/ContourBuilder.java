@@ -0,0 +1,219 @@
+package filesources;
+
+import java.util.Arrays;
+
+/**
+ * Joins tool path pieces (like tessellated DXF entities) whose ends touch into contours,
+ * so that a drawing exported as loose lines and arcs is traced without jumps between them.
+ *
+ * Each contour grows from its first piece forward while some free piece has an end
+ * at its last point, then backward from its first point the same way; pieces touching
+ * with the "wrong" end are reversed. Piece ends are kept in a hash table of grid cells
+ * of the touch distance, so finding a touching piece takes constant time.
+ */
+public class ContourBuilder {
+
+	public static final double TOUCH = 1e-3; // same as jump detection in DxfFileSource
+
+	private double[][][] pieces;
+
+	// contours as runs of links, contour c from contourFirst[c] to contourFirst[c+1]
+	private int[] linkPiece;
+	private boolean[] linkReversed;
+	private int[] contourFirst;
+	private int contourCount;
+	private int pieceCount;
+
+	// piece ends (piece*2 for the first point, piece*2+1 for the last one)
+	// in an open-addressing table of cells; ends in the same cell are linked by nextEnd
+	private long[] cellKeys;
+	private int[] cellHead;
+	private int[] nextEnd;
+	private int mask;
+	private boolean[] used;
+
+	/**
+	 * Builds contours, keeping the order in which their first pieces come
+	 * @param pieces Points of each piece as [axis][index], three axes; empty pieces are left out
+	 * @param keepFirst Whether the first piece has to stay at the start of its contour, forward
+	 */
+	public void build(double[][][] pieces, boolean keepFirst){
+		this.pieces = pieces;
+		int n = pieces.length;
+
+		int size = Integer.highestOneBit(Math.max(4*n, 2) - 1) << 1;
+		cellKeys = new long[size];
+		cellHead = new int[size];
+		Arrays.fill(cellHead, -1);
+		nextEnd = new int[2*n];
+		mask = size - 1;
+		for(int p=0; p<n; p++){
+			if(pieces[p][0].length == 0)continue;
+			addEnd(p*2);
+			addEnd(p*2 + 1);
+		}
+		used = new boolean[n];
+
+		linkPiece = new int[n];
+		linkReversed = new boolean[n];
+		contourFirst = new int[n+1];
+		contourCount = 0;
+		pieceCount = 0;
+		int[] chain = new int[2*n+1]; // links as piece*2 + 1 if reversed, growing both ways from the middle
+		for(int p=0; p<n; p++){
+			if(used[p] || pieces[p][0].length == 0)continue;
+			used[p] = true;
+			int head = n;
+			int tail = n;
+			chain[tail++] = p*2;
+
+			// forward from the last point
+			int last = p*2 + 1;
+			while(true){
+				int end = findTouching(last);
+				if(end < 0)break;
+				used[end >> 1] = true;
+				chain[tail++] = end; // touching with its last point => traced backwards
+				last = end ^ 1;
+			}
+
+			// backward from the first point
+			if(!keepFirst || contourCount > 0){
+				int first = p*2;
+				while(true){
+					int end = findTouching(first);
+					if(end < 0)break;
+					used[end >> 1] = true;
+					chain[--head] = end ^ 1; // touching with its first point => traced backwards
+					first = end ^ 1;
+				}
+			}
+
+			contourFirst[contourCount] = pieceCount;
+			for(int i=head; i<tail; i++){
+				linkPiece[pieceCount] = chain[i] >> 1;
+				linkReversed[pieceCount] = (chain[i] & 1) != 0;
+				pieceCount++;
+			}
+			contourCount++;
+		}
+		contourFirst[contourCount] = pieceCount;
+
+		cellKeys = null;
+		cellHead = null;
+		nextEnd = null;
+		used = null;
+		this.pieces = null;
+	}
+
+	public int contourCount(){
+		return contourCount;
+	}
+
+	/**
+	 * Number of non-empty pieces in contours
+	 */
+	public int pieceCount(){
+		return pieceCount;
+	}
+
+	/**
+	 * Index of the first link of a contour; contour c has links up to first(c+1)
+	 */
+	public int first(int contour){
+		return contourFirst[contour];
+	}
+
+	/**
+	 * Piece of a link
+	 */
+	public int piece(int link){
+		return linkPiece[link];
+	}
+
+	/**
+	 * Whether the piece of a link is traced from its last point
+	 */
+	public boolean reversed(int link){
+		return linkReversed[link];
+	}
+
+	/**
+	 * Pieces of all contours in order
+	 */
+	public int[] order(){
+		return Arrays.copyOf(linkPiece, pieceCount);
+	}
+
+	/**
+	 * Reversal flags of order()
+	 */
+	public boolean[] reversed(){
+		return Arrays.copyOf(linkReversed, pieceCount);
+	}
+
+
+	private double endCoord(int end, int axis){
+		double[] coords = pieces[end >> 1][axis];
+		return coords[(end & 1) == 0? 0 : coords.length-1];
+	}
+
+	private static long cellKey(long ix, long iy, long iz){
+		return (ix * 73856093L) ^ (iy * 19349663L) ^ (iz * 83492791L);
+	}
+
+	private static long cell(double value){
+		return (long)Math.floor(value / TOUCH);
+	}
+
+	/**
+	 * Finds a table slot for a cell key, empty if the cell has no ends
+	 */
+	private int slot(long key){
+		int slot = (int)((key ^ (key >>> 29)) * 0x9E3779B1L) & mask;
+		while(cellHead[slot] >= 0 && cellKeys[slot] != key){
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void addEnd(int end){
+		long key = cellKey(cell(endCoord(end, 0)), cell(endCoord(end, 1)), cell(endCoord(end, 2)));
+		int slot = slot(key);
+		cellKeys[slot] = key;
+		nextEnd[end] = cellHead[slot];
+		cellHead[slot] = end;
+	}
+
+	/**
+	 * Finds a free piece with an end within TOUCH from a piece end,
+	 * the lowest one of them to keep the original order where possible
+	 * @return piece*2 + (1 if touching with its last point), or -1
+	 */
+	private int findTouching(int from){
+		double x = endCoord(from, 0);
+		double y = endCoord(from, 1);
+		double z = endCoord(from, 2);
+		long ix = cell(x);
+		long iy = cell(y);
+		long iz = cell(z);
+		int best = -1;
+		for(long jx=ix-1; jx<=ix+1; jx++){
+			for(long jy=iy-1; jy<=iy+1; jy++){
+				for(long jz=iz-1; jz<=iz+1; jz++){
+					for(int end=cellHead[slot(cellKey(jx, jy, jz))]; end>=0; end=nextEnd[end]){
+						if(used[end >> 1])continue;
+						if(best >= 0 && end >= best)continue;
+						if(Math.abs(endCoord(end, 0)-x) <= TOUCH
+						&& Math.abs(endCoord(end, 1)-y) <= TOUCH
+						&& Math.abs(endCoord(end, 2)-z) <= TOUCH){
+							best = end;
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+}
@@ -4,6 +4,9 @@ import java.util.Iterator;
 import java.io.*;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.kabeja.parser.*;
 import org.kabeja.dxf.*;
@@ -11,19 +14,44 @@ import org.kabeja.dxf.helpers.*;
 
 /**
  * A tool path point source reading data from an Autodesk DXF file
+ *
+ * Entities are converted to points once, when the file is opened, into plain arrays
+ * (the parsed document is dropped then), and read in batches like an idx file.
+ * Copies made by duplicate() share the converted points.
+ * Entities are tessellated in parallel; in 2D drawings they are joined into contours
+ * where their ends touch, and the contours are put in an order with short jumps between them.
+ *
+ * The whole converted path stays in memory, 25 bytes per point: kabeja parses the whole
+ * document anyway, path ordering needs the ends of all contours, and a resumed file seeks
+ * to any point. Tessellated pieces are held only until they are copied to the path.
  */
 public class DxfFileSource extends FileSource {
 
-	private static final int circleSegmentCoef = 10;
-	private static final int minCircleSegments = 10;
+	private static final int minCircleSegments = 3;
+	private static final double MIN_CHORD_TOLERANCE = 1e-6;
+
+	private static final int MAX_READ_PTS = 10000;
+	private static final int MAX_PREVIEW_PTS = 100000;
+
+	private static final long OPTIMIZE_WORK = 400000000; // limit of improving path order, about 2 s for 100000 contours
 
 	private String path;
 
-	private DXFDocument dxf;
+	// tessellation of curves, in file units
+	private double chordTolerance; // largest distance of a segment from the curve
+	private double minChord; // shortest segment (a motor step), unless needed to end the curve
+
 	private boolean isXY;
-	private int numPoints, numJumps;
 
-	private boolean pointsSent;
+	// tool path converted from entities, shared by copies made by duplicate();
+	// lifted points are raised by z2DOffset when read
+	private double[] x, y, z;
+	private boolean[] lifted;
+	private int numPoints;
+	private long pathHash;
+
+	private int read;
+	private boolean closed = false;
 
 	// Optional insertion of point {0,0,0} at the beginning of path.
 	// When enabled, running the file from position {0,0,0} will result in
@@ -31,6 +59,11 @@ public class DxfFileSource extends FileSource {
 	// Disabled upon customer request
 	private final boolean startAt0 = false;
 
+	// Reordering and reversing contours to shorten jumps between them (air moves),
+	// see PathOrderOptimizer. Disable to trace contours in the order found in the file.
+	// Only 2D drawings are joined into contours and reordered: 3D jumps are not raised.
+	private final boolean optimizeOrder = true;
+
 	public boolean isXYZ(){
 		return true;
 	}
@@ -39,7 +72,7 @@ public class DxfFileSource extends FileSource {
 		return isXY;
 	}
 
-	private ArrayList<DXFEntity> getEntityList(){
+	private ArrayList<DXFEntity> getEntityList(DXFDocument dxf){
 		var entities = new ArrayList<DXFEntity>();
 
 		Iterator layers = dxf.getDXFLayerIterator();
@@ -83,20 +116,18 @@ public class DxfFileSource extends FileSource {
 		return entities;
 	}
 
-	public DxfFileSource(String path, double zOff) throws IOException {
+	/**
+	 * @param chordTolerance Largest distance of segments from tessellated curves, in file units
+	 * @param minChord Shortest segment of tessellated curves (a motor step), in file units
+	 */
+	public DxfFileSource(String path, double zOff, double chordTolerance, double minChord) throws IOException {
 		super(Paths.get(path).getFileName().toString());
 		this.path = path;
+		this.chordTolerance = Math.max(chordTolerance, MIN_CHORD_TOLERANCE);
+		this.minChord = Math.max(minChord, 0);
 		setZ2DOffset(zOff);
 
-		pointsSent = false;
-		isXY = true;
-		numPoints = 0;
-		numJumps = 0;
-
-		double[] lastPoint = new double[3];
-		boolean firstEntity = true;
-
-		dxf = null;
+		DXFDocument dxf = null;
 		Parser parser = ParserBuilder.createDefaultParser();
 		try{
 			parser.parse(path);
@@ -108,35 +139,159 @@ public class DxfFileSource extends FileSource {
 		dxf = parser.getDocument();
 		System.out.println("DXF document loaded");
 
-		Iterator entities = getEntityList().iterator();
-		while(entities.hasNext()){
-			DXFEntity entity = (DXFEntity)entities.next();
-
-			double[][] entityPoints = entity2Points(entity);
-			int numPt = entityPoints[0].length;
-			if(numPt == 0)continue;
+		// tessellating entities in parallel, in fork-join common pool
+		// (or in the pool running the constructor, if it is called from a fork-join task);
+		// the document is dropped afterwards, only the tessellated pieces are kept
+		ArrayList<DXFEntity> entities = getEntityList(dxf);
+		long tessellationStart = System.currentTimeMillis();
+		double[][][] pieces = new double[entities.size()][][];
+		Arrays.parallelSetAll(pieces, i -> entity2Points(entities.get(i)));
+		System.out.println(String.format(
+			"DXF: %d entities tessellated in %d ms, %d threads",
+			pieces.length, System.currentTimeMillis()-tessellationStart,
+			ForkJoinTask.inForkJoinPool()? ForkJoinTask.getPool().getParallelism() : ForkJoinPool.getCommonPoolParallelism()
+		));
+		entities.clear();
+		dxf = null;
+		parser = null;
+		isXY = true;
+		for(double[][] points: pieces){
+			for(double pz: points[2]){
+				if(pz != 0)isXY = false;
+			}
+		}
 
-			if(Math.abs(lastPoint[0]-entityPoints[0][0]) > 1e-3
-			|| Math.abs(lastPoint[1]-entityPoints[1][0]) > 1e-3
-			|| Math.abs(lastPoint[2]-entityPoints[2][0]) > 1e-3){
-				if(startAt0 || !firstEntity)numJumps++;
+		// joining entities touching each other, then ordering the contours;
+		// 3D paths are traced in file order: jumps go through material, and the order of depths matters
+		int[] order = new int[pieces.length];
+		boolean[] reversed = new boolean[pieces.length];
+		for(int i=0; i<order.length; i++){
+			order[i] = i;
+		}
+		if(isXY){
+			var contours = new ContourBuilder();
+			contours.build(pieces, true);
+			order = contours.order();
+			reversed = contours.reversed();
+			System.out.println("DXF: "+contours.pieceCount()+" entities joined into "+contours.contourCount()+" contours");
+			if(optimizeOrder){
+				long start = System.currentTimeMillis();
+				var optimizer = new PathOrderOptimizer();
+				optimizer.optimize(pieces, contours, OPTIMIZE_WORK);
+				order = optimizer.order();
+				reversed = optimizer.reversed();
+				System.out.println(String.format(
+					"DXF: path order optimized in %d ms, jumps %d -> %d, jump travel %.1f -> %.1f (saved %.1f)",
+					System.currentTimeMillis()-start,
+					optimizer.jumpsBefore(), optimizer.jumpsAfter(),
+					optimizer.travelBefore(), optimizer.travelAfter(),
+					optimizer.travelBefore()-optimizer.travelAfter()
+				));
 			}
-			lastPoint[0] = entityPoints[0][numPt-1];
-			lastPoint[1] = entityPoints[1][numPt-1];
-			lastPoint[2] = entityPoints[2][numPt-1];
+		}
 
-			numPoints += numPt;
+		// tool path in a single pass over pieces, each piece is dropped when copied;
+		// jumps between unconnected entities raise Z by z2DOffset (only kept when the image is 2D)
+		x = new double[1024];
+		y = new double[1024];
+		z = new double[1024];
+		lifted = new boolean[1024];
+		numPoints = 0;
+		if(startAt0){ // point 0 = coordinate origin
+			addPoint(0, 0, 0, false);
+		}
+		int numJumps = 0;
+
+		for(int k=0; k<order.length; k++){
+			int piece = order[k];
+			boolean backwards = reversed[k];
+			double[][] points = pieces[piece];
+			pieces[piece] = null;
+			int numPt = points[0].length;
+			if(numPt == 0)continue;
+			int first = backwards? numPt-1 : 0;
+			if(numPoints > 0 && (
+			   Math.abs(x[numPoints-1]-points[0][first]) > ContourBuilder.TOUCH
+			|| Math.abs(y[numPoints-1]-points[1][first]) > ContourBuilder.TOUCH
+			|| Math.abs(z[numPoints-1]-points[2][first]) > ContourBuilder.TOUCH
+			)){
+				numJumps++;
+				addPoint(x[numPoints-1], y[numPoints-1], z[numPoints-1], true);
+				addPoint(points[0][first], points[1][first], points[2][first], true);
+			}
 			for(int i=0; i<numPt; i++){
-				if(entityPoints[2][i] != 0)isXY = false;
+				int j = backwards? numPt-1-i : i;
+				addPoint(points[0][j], points[1][j], points[2][j], false);
+			}
+		}
+		if(numPoints > 0){
+			addPoint(x[numPoints-1], y[numPoints-1], z[numPoints-1], true);
+		}
+
+		if(!isXY){ // 3D tool path goes straight between entities
+			int kept = 0;
+			for(int i=0; i<numPoints; i++){
+				if(lifted[i])continue;
+				x[kept] = x[i];
+				y[kept] = y[i];
+				z[kept] = z[i];
+				lifted[kept] = false;
+				kept++;
 			}
+			numPoints = kept;
+		}
 
-			firstEntity = false;
+		x = Arrays.copyOf(x, numPoints);
+		y = Arrays.copyOf(y, numPoints);
+		z = Arrays.copyOf(z, numPoints);
+		lifted = Arrays.copyOf(lifted, numPoints);
+		System.out.println("DXF: "+numPoints+" tool path points, "+numJumps+" jumps");
+
+		pathHash = numPoints;
+		for(int i=0; i<numPoints; i++){
+			pathHash = pathHash*31 + Double.hashCode(x[i]);
+			pathHash = pathHash*31 + Double.hashCode(y[i]);
+			pathHash = pathHash*31 + Double.hashCode(z[i]);
+			pathHash = pathHash*31 + (lifted[i]? 1 : 0);
 		}
+		read = 0;
 	}
 
+	/**
+	 * Creates a copy reading the same points from the start
+	 */
+	private DxfFileSource(DxfFileSource source){
+		super(source.getName());
+		this.path = source.path;
+		this.chordTolerance = source.chordTolerance;
+		this.minChord = source.minChord;
+		this.isXY = source.isXY;
+		this.x = source.x;
+		this.y = source.y;
+		this.z = source.z;
+		this.lifted = source.lifted;
+		this.numPoints = source.numPoints;
+		this.pathHash = source.pathHash;
+		this.z2DOffset = source.z2DOffset;
+		this.read = 0;
+	}
 
 	public DxfFileSource duplicate() throws IOException{
-		return new DxfFileSource(path, z2DOffset);
+		return new DxfFileSource(this);
+	}
+
+	private void addPoint(double px, double py, double pz, boolean lift){
+		if(numPoints == x.length){
+			x = Arrays.copyOf(x, numPoints*2);
+			y = Arrays.copyOf(y, numPoints*2);
+			z = Arrays.copyOf(z, numPoints*2);
+			lifted = Arrays.copyOf(lifted, numPoints*2);
+		}
+		x[numPoints] = px;
+		y[numPoints] = py;
+		z[numPoints] = pz;
+		lifted[numPoints] = lift;
+		numPoints++;
 	}
 
 
@@ -188,14 +343,7 @@ public class DxfFileSource extends FileSource {
 		else if(entity instanceof DXFCircle){
 			DXFCircle circ = (DXFCircle)entity;
 
-			// keep area between line segment and ideal circle segment below some limit
-			double approxSegments = Math.pow(circ.getRadius(), 2.0/3) * circleSegmentCoef;
-			int numSegments = Math.max((int)approxSegments, minCircleSegments);
-
-//			// numSegments formula debugging
-//			double theta = 2*3.141592653589793238/numSegments;
-//			double area = R*R/2.0*(theta-Math.sin(theta));
-//			System.out.println("R = "+circ.getRadius()+", "+numSegments+" segments, error area = "+area);
+			int numSegments = arcSegments(circ.getRadius(), 2*Math.PI, minCircleSegments);
 
 			double[][] points = new double[3][numSegments+1];
 
@@ -226,9 +374,7 @@ public class DxfFileSource extends FileSource {
 				if(ang1 <= ang0)ang1 += 360;
 			}
 
-			// keep area between line segment and ideal circle segment below some limit
-			double approxSegments = Math.abs(arc.getTotalAngle()) / 360.0 * Math.pow(arc.getRadius(), 2.0/3) * circleSegmentCoef;
-			int numSegments = Math.max((int)approxSegments, minCircleSegments);
+			int numSegments = arcSegments(arc.getRadius(), Math.toRadians(ang1-ang0), 1);
 
 			double[][] points = new double[3][numSegments+1];
 
@@ -265,11 +411,24 @@ public class DxfFileSource extends FileSource {
 				if(param1 <= param0)param1 += 2*Math.PI;
 			}
 
-			// adapted numSegments formula from DXFArc -- good enough for narrow ellipses?
-			double approxR = ell.getLength() / Math.abs(param1-param0) / (2*Math.PI);
-			double approxSegments = Math.abs(param1-param0) / (2*Math.PI) * Math.pow(approxR, 2.0/3) * circleSegmentCoef;
-			int numSegments = Math.max((int)approxSegments, minCircleSegments);
+			// semi-axes, for curvature
+			Vector major = ell.getMajorAxisDirection();
+			double a = Math.sqrt(major.getX()*major.getX() + major.getY()*major.getY() + major.getZ()*major.getZ());
+			double b = a * ell.getRatio();
+
+			// parameter steps following curvature: short segments where the ellipse turns sharply
+			double[] params = new double[16];
+			int numParams = 0;
+			double dir = Math.signum(param1-param0);
+			double param = param0;
+			while(Math.abs(param1-param) > 1e-9){
+				param += dir*ellipseStep(a, b, param, Math.abs(param1-param), dir);
+				if(Math.abs(param1-param) <= 1e-9)break;
+				if(numParams == params.length)params = Arrays.copyOf(params, 2*numParams);
+				params[numParams++] = param;
+			}
 
+			int numSegments = numParams+1;
 			double[][] points = new double[3][numSegments+1];
 
 			Point pt = ell.getPointAt(ell.getStartParameter());
@@ -283,8 +442,7 @@ public class DxfFileSource extends FileSource {
 			points[2][numSegments] = pt.getZ();
 
 			for(int pointInd=1; pointInd<numSegments; pointInd++){
-				double param = param0 + (param1-param0)*pointInd/numSegments;
-				pt = ell.getPointAt(param % (2*Math.PI));
+				pt = ell.getPointAt(params[pointInd-1] % (2*Math.PI));
 				points[0][pointInd] = pt.getX();
 				points[1][pointInd] = pt.getY();
 				points[2][pointInd] = pt.getZ();
@@ -300,93 +458,140 @@ public class DxfFileSource extends FileSource {
 //		else throw new RuntimeException("Cannot process DXF entity of type "+entity.getType());
 	}
 
-	public boolean started(){
-		return pointsSent;
-	}
-	public boolean finished(){
-		return pointsSent;
+	/**
+	 * Length of a chord of a circle, at most chordTolerance from the circle but not shorter than minChord
+	 */
+	private double chordLength(double radius){
+		double tolerance = Math.min(chordTolerance, radius);
+		double chord = 2*Math.sqrt(2*radius*tolerance - tolerance*tolerance);
+		return Math.max(chord, minChord);
 	}
 
-	private double z2DOffset = 10.0;
-	public void setZ2DOffset(double value){
-		System.out.println("setting z offset to "+value);
-		z2DOffset = value;
+	/**
+	 * Finds a parameter step along an ellipse with the chord at most chordTolerance
+	 * from the ellipse (checked at quarters of the step), or with the chord not longer than minChord
+	 * @param a Major semi-axis
+	 * @param b Minor semi-axis
+	 * @param remaining Parameter distance to the end of the ellipse arc
+	 */
+	private double ellipseStep(double a, double b, double param, double remaining, double dir){
+		double step = Math.min(remaining, Math.PI/4);
+		double x0 = a*Math.cos(param);
+		double y0 = b*Math.sin(param);
+		while(true){
+			double x1 = a*Math.cos(param + dir*step) - x0;
+			double y1 = b*Math.sin(param + dir*step) - y0;
+			double chord = Math.sqrt(x1*x1 + y1*y1);
+			if(chord <= minChord || chord == 0)return step;
+			double deviation = 0;
+			for(int q=1; q<4; q++){
+				double xq = a*Math.cos(param + dir*step*q/4) - x0;
+				double yq = b*Math.sin(param + dir*step*q/4) - y0;
+				deviation = Math.max(deviation, Math.abs(x1*yq - y1*xq) / chord);
+			}
+			if(deviation <= chordTolerance)return step;
+			// deviation grows with square of the step
+			step *= Math.max(0.95*Math.sqrt(chordTolerance/deviation), 0.25);
+		}
 	}
 
-	public double[][] getPoints(boolean preview) throws IOException{
-		if(dxf == null){
-			throw new RuntimeException("No DXF data available");
-		}
+	/**
+	 * Number of segments of a circular arc, see chordLength
+	 * @param angle Angle of the arc in radians
+	 */
+	private int arcSegments(double radius, double angle, int minSegments){
+		angle = Math.abs(angle);
+		if(!(radius > 0))return minSegments;
+		double chord = chordLength(radius);
+		double segmentAngle = (chord < 2*radius)? 2*Math.asin(chord / (2*radius)) : Math.PI;
+		return Math.max((int)Math.ceil(angle/segmentAngle - 1e-9), minSegments);
+	}
 
-		double z2DOffset = preview? 1 : this.z2DOffset;
+	/**
+	 * Largest distance of segments from tessellated curves, in file units
+	 */
+	public double chordTolerance(){
+		return chordTolerance;
+	}
 
-		int recalcPoints;
-		if(isXY){ // 2D image => raise Z axis between unconnected entities
-			recalcPoints = startAt0? numPoints+2*numJumps+2 : numPoints+2*numJumps+1;
-		}
-		else{
-			recalcPoints = startAt0? numPoints+1 : numPoints;
-		}
-		double[][] points = new double[3][recalcPoints];
+	/**
+	 * Shortest segment of tessellated curves, in file units
+	 */
+	public double minChord(){
+		return minChord;
+	}
 
-		// finding points
+	/**
+	 * Tells whether curves were tessellated with given parameters (as passed to the constructor)
+	 */
+	public boolean tessellatedWith(double chordTolerance, double minChord){
+		return Math.max(chordTolerance, MIN_CHORD_TOLERANCE) == this.chordTolerance
+		    && Math.max(minChord, 0) == this.minChord;
+	}
 
-		int ptInd = startAt0? 1 : 0; // startAt0 => point 0 = coordinate origin
-		double[] lastPoint = new double[3];
-		boolean firstEntity = true;
+	/**
+	 * Hash of the converted points, changes with path order and tessellation
+	 */
+	public long pathHash(){
+		return pathHash;
+	}
 
-		Iterator entities = getEntityList().iterator();
-		while(entities.hasNext()){
-			DXFEntity entity = (DXFEntity)entities.next();
+	public long pointIndex(){
+		return read;
+	}
 
-			double[][] entityPoints = entity2Points(entity);
-			int numPt = entityPoints[0].length;
-			if(numPt == 0)continue;
+	public boolean canSeek(){
+		return true;
+	}
 
-			// making a jump
-			if(isXY && (startAt0 || !firstEntity) && (
-			   Math.abs(lastPoint[0]-entityPoints[0][0]) > 1e-3
-			|| Math.abs(lastPoint[1]-entityPoints[1][0]) > 1e-3
-			|| Math.abs(lastPoint[2]-entityPoints[2][0]) > 1e-3
-			)){
-				points[0][ptInd] = lastPoint[0];
-				points[1][ptInd] = lastPoint[1];
-				points[2][ptInd] = lastPoint[2] + z2DOffset;
-				ptInd++;
-				points[0][ptInd] = entityPoints[0][0];
-				points[1][ptInd] = entityPoints[1][0];
-				points[2][ptInd] = entityPoints[2][0] + z2DOffset;
-				ptInd++;
-			}
+	/**
+	 * Moves to a point, the whole tool path is kept converted
+	 */
+	public void seekToPoint(long index) throws IOException{
+		if(index < 0 || index >= numPoints){
+			throw new IOException("Point "+index+" out of range 0-"+(numPoints-1));
+		}
+		read = (int)index;
+	}
 
-			lastPoint[0] = entityPoints[0][numPt-1];
-			lastPoint[1] = entityPoints[1][numPt-1];
-			lastPoint[2] = entityPoints[2][numPt-1];
+	public boolean started(){
+		return read > 0;
+	}
+	public boolean finished(){
+		return read >= numPoints;
+	}
 
-			for(int i=0; i<numPt; i++){
-				points[0][ptInd] = entityPoints[0][i];
-				points[1][ptInd] = entityPoints[1][i];
-				points[2][ptInd] = entityPoints[2][i];
-				ptInd++;
-			}
+	private double z2DOffset = 10.0;
+	public void setZ2DOffset(double value){
+		System.out.println("setting z offset to "+value);
+		z2DOffset = value;
+	}
 
-			firstEntity = false;
+	public double[][] getPoints(boolean preview) throws IOException{
+		if(closed){
+			throw new IOException("DXF file closed");
 		}
 
-		if(isXY && ptInd > 0){
-			points[0][ptInd] = points[0][ptInd-1];
-			points[1][ptInd] = points[1][ptInd-1];
-			points[2][ptInd] = points[2][ptInd-1] + z2DOffset;
-			ptInd++;
+		double z2DOffset = preview? 1 : this.z2DOffset;
+
+		int readPoints = Math.min(numPoints-read, preview? MAX_PREVIEW_PTS : MAX_READ_PTS);
+		double[][] points = new double[3][];
+		points[0] = Arrays.copyOfRange(x, read, read+readPoints);
+		points[1] = Arrays.copyOfRange(y, read, read+readPoints);
+		points[2] = Arrays.copyOfRange(z, read, read+readPoints);
+		for(int i=0; i<readPoints; i++){
+			if(lifted[read+i])points[2][i] += z2DOffset;
 		}
 
-		pointsSent = true;
+		read += readPoints;
 		return points;
 	}
 
+	/**
+	 * Stops reading; converted points stay for copies
+	 */
 	public void close(){
-		// ?? does something need to be closed?
+		closed = true;
 	}
 
 }
-
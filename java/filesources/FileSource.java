@@ -31,6 +31,34 @@ public abstract class FileSource {
 		return getPoints(false);
 	}
 
+	/**
+	 * Returns index of the next point to be returned, counted from the start of the tool path
+	 */
+	public abstract long pointIndex();
+
+	/**
+	 * Reports whether the source can continue from any point (see seekToPoint)
+	 */
+	public boolean canSeek(){
+		return false;
+	}
+
+	/**
+	 * Makes the next batch start with the point of a given index,
+	 * used to resume an interrupted tool path
+	 */
+	public void seekToPoint(long index) throws IOException{
+		throw new IOException(getClass().getSimpleName()+" cannot seek");
+	}
+
+	/**
+	 * Identifies the order of tool path points for sources which build the path themselves,
+	 * so that a checkpoint is not used with a different one; 0 when the order is given by the file
+	 */
+	public long pathHash(){
+		return 0;
+	}
+
 	/**
 	 * Reports whether the source returns Cartesian coordinates needed to be
 	 * recalculated to axis movements (true), or returns axis movements directly (false)
@@ -1,29 +1,43 @@
 package filesources;
 
 import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * A tool path point source reading data from an "idx" file.
  * An idx file is meant to contain an array of axis coordinates.
+ *
+ * The file is mapped to memory and read in place, so even huge files take no heap
+ * besides the returned batches. A single mapping is limited to 2 GB, larger files are
+ * mapped in several chunks, each holding whole points. Copies made by duplicate()
+ * share the mapping.
  */
 public class IdxFileSource extends FileSource {
 
 	private static final int MAGIC_IDX = 0x00000C02; // idx file of int32, two dimensions
+	private static final int HEADER_BYTES = 12; // magic, number of points, number of axes
 
 	private static final int MAX_READ_PTS = 10000;
 	private static final int MAX_PREVIEW_PTS = 100000;
 
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+
 	private String path;
 
 	private int expNumAxes;
 	private int[] axisIndices;
 
-	private FileInputStream fis;
-	private BufferedInputStream bis;
-	private DataInputStream dis;
+	// file contents after the header as big-endian ints, chunk c holds points from c*chunkPoints
+	private IntBuffer[] chunks;
+	private int chunkPoints;
+	private int numPoints;
 
 	private int remaining, read;
+	private boolean closed = false;
 
 	public boolean isXYZ(){
 		return false;
@@ -39,56 +53,125 @@ public class IdxFileSource extends FileSource {
 		this.axisIndices = axisIndices;
 		this.path = path;
 
-		fis = new FileInputStream(path);
-		bis = new BufferedInputStream(fis);
-		dis = new DataInputStream(bis);
+		try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+			long size = channel.size();
+			if(size < HEADER_BYTES){
+				throw new IOException("Unrecognized idx file magic");
+			}
+			IntBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+			                          .order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+			if(header.get(0) != MAGIC_IDX){
+				throw new IOException("Unrecognized idx file magic");
+			}
+
+			numPoints = header.get(1);
+			System.out.println("Loading idx file with "+numPoints+" points");
+			if(numPoints <= 0){
+				throw new IOException("Zero points to be read");
+			}
+
+			int numAxes = header.get(2);
+			if(numAxes != expNumAxes){
+				throw new IOException("Mismatching number of axes ("+numAxes+", expected "+expNumAxes+")");
+			}
+			long pointBytes = 4L * numAxes;
+			if(size < HEADER_BYTES + numPoints * pointBytes){
+				throw new IOException("Idx file too short for "+numPoints+" points");
+			}
 
-		if(dis.readInt() != MAGIC_IDX){
-			throw new IOException("Unrecognized idx file magic");
+			// mapping stays valid after the channel is closed
+			chunkPoints = (int)Math.min(MAX_CHUNK_BYTES / pointBytes, numPoints);
+			chunks = new IntBuffer[(numPoints - 1) / chunkPoints + 1];
+			for(int c=0; c<chunks.length; c++){
+				long first = (long)c * chunkPoints;
+				long count = Math.min(chunkPoints, numPoints - first);
+				chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first*pointBytes, count*pointBytes)
+				                   .order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+			}
 		}
 
 		read = 0;
-		remaining = dis.readInt();
-		System.out.println("Loading idx file with "+remaining+" points");
-		if(remaining <= 0){
-			throw new IOException("Zero points to be read");
-		}
+		remaining = numPoints;
+	}
 
-		int numAxes = dis.readInt();
-		if(numAxes != expNumAxes){
-			throw new IOException("Mismatching number of axes ("+numAxes+", expected "+expNumAxes+")");
+	/**
+	 * Creates a copy reading the same mapping from the start
+	 */
+	private IdxFileSource(IdxFileSource source){
+		super(source.getName());
+		this.expNumAxes = source.expNumAxes;
+		this.axisIndices = source.axisIndices;
+		this.path = source.path;
+		this.chunks = new IntBuffer[source.chunks.length];
+		for(int c=0; c<chunks.length; c++){
+			this.chunks[c] = source.chunks[c].duplicate();
 		}
+		this.chunkPoints = source.chunkPoints;
+		this.numPoints = source.numPoints;
+		this.read = 0;
+		this.remaining = numPoints;
 	}
 
 	public IdxFileSource duplicate() throws IOException{
-		return new IdxFileSource(path, expNumAxes, axisIndices);
+		return new IdxFileSource(this);
 	}
 
+	/**
+	 * Stops reading; the mapping itself stays for copies and is released by the garbage collector
+	 */
 	public void close(){
-		try{
-			if(dis != null)dis.close();
-			if(bis != null)bis.close();
-			if(fis != null)fis.close();
-		}
-		catch(IOException ex){}
-		fis = null;
-		bis = null;
-		dis = null;
+		closed = true;
 	}
 
 	public double[][] getPoints(boolean preview) throws IOException{
+		if(closed){
+			throw new IOException("Idx file closed");
+		}
 		int readPoints = Math.min(remaining, MAX_READ_PTS);
 		double[][] points = new double[6][readPoints];
-		for(int i=0; i<readPoints; i++){
-			for(int axInd: axisIndices){
-				points[axInd][i] = dis.readInt() * 0.001; // microns => mm
+
+		// batch may span two chunks
+		int done = 0;
+		while(done < readPoints){
+			int c = (read + done) / chunkPoints;
+			int first = (read + done) % chunkPoints;
+			int count = Math.min(readPoints - done, chunkPoints - first);
+			IntBuffer chunk = chunks[c];
+			for(int j=0; j<axisIndices.length; j++){
+				double[] column = points[axisIndices[j]];
+				int index = first*expNumAxes + j;
+				for(int i=done; i<done+count; i++){
+					column[i] = chunk.get(index) * 0.001; // microns => mm
+					index += expNumAxes;
+				}
 			}
+			done += count;
 		}
+
 		remaining -= readPoints;
 		read += readPoints;
 		return points;
 	}
 
+	public long pointIndex(){
+		return read;
+	}
+
+	public boolean canSeek(){
+		return true;
+	}
+
+	/**
+	 * Moves to a point, records have fixed size so no data is read
+	 */
+	public void seekToPoint(long index) throws IOException{
+		if(index < 0 || index >= numPoints){
+			throw new IOException("Point "+index+" out of range 0-"+(numPoints-1));
+		}
+		read = (int)index;
+		remaining = numPoints - read;
+	}
+
 	public boolean started(){
 		return read > 0;
 	}
@@ -97,4 +180,3 @@ public class IdxFileSource extends FileSource {
 	}
 
 }
-
@@ -0,0 +1,388 @@
+package filesources;
+
+import java.util.Arrays;
+
+/**
+ * Finds an order of contours (made by ContourBuilder) with short jumps between them;
+ * jumps are air moves, with Z raised in 2D drawings.
+ *
+ * Contours are ordered greedily, always going to the nearest free contour end (reversing
+ * the contour when its last point is nearer), and the order is improved by 2-opt moves
+ * (reversing a run of contours) until nothing improves or a work limit is reached;
+ * the limit is counted in steps, not time, so that the same drawing always gets the same order
+ * (a checkpoint refers to points by index).
+ * Nearby contour ends are found in a grid.
+ * The first contour stays first and forward, so the drawing keeps its placement.
+ */
+public class PathOrderOptimizer {
+
+	private static final double TOUCH = ContourBuilder.TOUCH;
+	private static final int NEIGHBOURS = 8; // candidate contour ends for 2-opt moves
+
+	private double[][][] pieces;
+	private ContourBuilder contours;
+	private int contourCount;
+
+	// contour ends, index c*2 is the start of contour c, c*2+1 its end
+	private double[] endX, endY, endZ;
+
+	// tour of contours
+	private int[] seq;
+	private boolean[] flip;
+	private int[] pos;
+
+	// grid of contour ends in plane XY
+	private double gridX0, gridY0, cellSize;
+	private int gridW, gridH;
+	private int[] cellFirst, cellCount, cellItems, itemSlot;
+
+	// result
+	private int[] order;
+	private boolean[] reversed;
+	private double travelBefore, travelAfter;
+	private int jumpsBefore, jumpsAfter;
+
+	/**
+	 * Orders contours, results are available from order() and reversed()
+	 * @param pieces Points of each piece as [axis][index], three axes
+	 * @param contours Contours built from the pieces
+	 * @param maxWork Limit of 2-opt improvement, in contour ends checked and contours reversed
+	 */
+	public void optimize(double[][][] pieces, ContourBuilder contours, long maxWork){
+		this.pieces = pieces;
+		this.contours = contours;
+		contourCount = contours.contourCount();
+		order = contours.order();
+		reversed = contours.reversed();
+		measure(true);
+		if(contourCount == 0)return;
+
+		findContourEnds();
+		buildGrid();
+		int[][] neighbours = findNeighbours();
+		nearestNeighbourTour();
+		improveTour(neighbours, maxWork);
+
+		// pieces in tour order
+		int k = 0;
+		for(int t=0; t<contourCount; t++){
+			int c = seq[t];
+			if(!flip[t]){
+				for(int i=contours.first(c); i<contours.first(c+1); i++){
+					order[k] = contours.piece(i);
+					reversed[k] = contours.reversed(i);
+					k++;
+				}
+			}
+			else{
+				for(int i=contours.first(c+1)-1; i>=contours.first(c); i--){
+					order[k] = contours.piece(i);
+					reversed[k] = !contours.reversed(i);
+					k++;
+				}
+			}
+		}
+		measure(false);
+		this.pieces = null;
+		this.contours = null;
+	}
+
+	/**
+	 * Indices of pieces in path order
+	 */
+	public int[] order(){
+		return order;
+	}
+
+	/**
+	 * Whether pieces of order() are traced from their last point
+	 */
+	public boolean[] reversed(){
+		return reversed;
+	}
+
+	/**
+	 * Length of jumps between contours in the original order and in the new order
+	 */
+	public double travelBefore(){
+		return travelBefore;
+	}
+
+	public double travelAfter(){
+		return travelAfter;
+	}
+
+	public int jumpsBefore(){
+		return jumpsBefore;
+	}
+
+	public int jumpsAfter(){
+		return jumpsAfter;
+	}
+
+	private void measure(boolean before){
+		double travel = 0;
+		int jumps = 0;
+		for(int k=1; k<order.length; k++){
+			double[][] a = pieces[order[k-1]];
+			double[][] b = pieces[order[k]];
+			int ia = reversed[k-1]? 0 : a[0].length-1;
+			int ib = reversed[k]? b[0].length-1 : 0;
+			double dx = b[0][ib]-a[0][ia];
+			double dy = b[1][ib]-a[1][ia];
+			double dz = b[2][ib]-a[2][ia];
+			if(Math.abs(dx) > TOUCH || Math.abs(dy) > TOUCH || Math.abs(dz) > TOUCH){
+				travel += Math.sqrt(dx*dx + dy*dy + dz*dz);
+				jumps++;
+			}
+		}
+		if(before){
+			travelBefore = travel;
+			jumpsBefore = jumps;
+		}
+		else{
+			travelAfter = travel;
+			jumpsAfter = jumps;
+		}
+	}
+
+
+	private double pieceEnd(int end, int axis){
+		double[] coords = pieces[end >> 1][axis];
+		return coords[(end & 1) == 0? 0 : coords.length-1];
+	}
+
+	private void findContourEnds(){
+		endX = new double[2*contourCount];
+		endY = new double[2*contourCount];
+		endZ = new double[2*contourCount];
+		for(int c=0; c<contourCount; c++){
+			int firstLink = contours.first(c);
+			int lastLink = contours.first(c+1)-1;
+			int start = contours.piece(firstLink)*2 + (contours.reversed(firstLink)? 1 : 0);
+			int end = contours.piece(lastLink)*2 + (contours.reversed(lastLink)? 0 : 1);
+			endX[2*c] = pieceEnd(start, 0);
+			endY[2*c] = pieceEnd(start, 1);
+			endZ[2*c] = pieceEnd(start, 2);
+			endX[2*c+1] = pieceEnd(end, 0);
+			endY[2*c+1] = pieceEnd(end, 1);
+			endZ[2*c+1] = pieceEnd(end, 2);
+		}
+	}
+
+
+	// spatial index of contour ends
+
+	private void buildGrid(){
+		int n = endX.length;
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for(int i=0; i<n; i++){
+			minX = Math.min(minX, endX[i]);
+			minY = Math.min(minY, endY[i]);
+			maxX = Math.max(maxX, endX[i]);
+			maxY = Math.max(maxY, endY[i]);
+		}
+		int side = Math.max((int)Math.sqrt(n / 2.0), 1);
+		cellSize = Math.max(Math.max(maxX-minX, maxY-minY) / side, TOUCH);
+		gridX0 = minX;
+		gridY0 = minY;
+		gridW = (int)((maxX-minX) / cellSize) + 1;
+		gridH = (int)((maxY-minY) / cellSize) + 1;
+
+		cellFirst = new int[gridW*gridH + 1];
+		cellCount = new int[gridW*gridH];
+		cellItems = new int[n];
+		itemSlot = new int[n];
+		for(int i=0; i<n; i++)cellCount[cellOf(i)]++;
+		for(int cell=0; cell<cellCount.length; cell++){
+			cellFirst[cell+1] = cellFirst[cell] + cellCount[cell];
+			cellCount[cell] = 0;
+		}
+		for(int i=0; i<n; i++){
+			int cell = cellOf(i);
+			int slot = cellFirst[cell] + cellCount[cell]++;
+			cellItems[slot] = i;
+			itemSlot[i] = slot;
+		}
+	}
+
+	private int cellX(double x){
+		return Math.min(Math.max((int)((x-gridX0) / cellSize), 0), gridW-1);
+	}
+
+	private int cellY(double y){
+		return Math.min(Math.max((int)((y-gridY0) / cellSize), 0), gridH-1);
+	}
+
+	private int cellOf(int end){
+		return cellY(endY[end])*gridW + cellX(endX[end]);
+	}
+
+	/**
+	 * Takes a contour end out of the grid
+	 */
+	private void removeEnd(int end){
+		int cell = cellOf(end);
+		int lastSlot = cellFirst[cell] + --cellCount[cell];
+		int slot = itemSlot[end];
+		int moved = cellItems[lastSlot];
+		cellItems[slot] = moved;
+		itemSlot[moved] = slot;
+		cellItems[lastSlot] = end;
+		itemSlot[end] = lastSlot;
+	}
+
+	private double distance(int a, int b){
+		double dx = endX[b]-endX[a];
+		double dy = endY[b]-endY[a];
+		double dz = endZ[b]-endZ[a];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	/**
+	 * Finds up to count nearest contour ends in the grid, of other contours than the end's own
+	 */
+	private int[] nearest(int end, int count){
+		int[] found = new int[count];
+		double[] foundDistance = new double[count];
+		int numFound = 0;
+		int cx = cellX(endX[end]);
+		int cy = cellY(endY[end]);
+		int maxRing = Math.max(gridW, gridH);
+		for(int ring=0; ring<=maxRing; ring++){
+			// cells of further rings are at least this far
+			if(numFound == count && foundDistance[count-1] <= (ring-1) * cellSize)break;
+			for(int gy=cy-ring; gy<=cy+ring; gy++){
+				if(gy < 0 || gy >= gridH)continue;
+				boolean edgeRow = (gy == cy-ring || gy == cy+ring);
+				for(int gx=cx-ring; gx<=cx+ring; gx += edgeRow? 1 : 2*ring){
+					if(gx >= 0 && gx < gridW){
+						int cell = gy*gridW + gx;
+						for(int slot=cellFirst[cell]; slot<cellFirst[cell]+cellCount[cell]; slot++){
+							int other = cellItems[slot];
+							if((other >> 1) == (end >> 1))continue;
+							double d = distance(end, other);
+							if(numFound == count && d >= foundDistance[count-1])continue;
+							int i = (numFound < count)? numFound++ : count-1;
+							while(i > 0 && foundDistance[i-1] > d){
+								found[i] = found[i-1];
+								foundDistance[i] = foundDistance[i-1];
+								i--;
+							}
+							found[i] = other;
+							foundDistance[i] = d;
+						}
+					}
+					if(ring == 0)break;
+				}
+			}
+		}
+		return Arrays.copyOf(found, numFound);
+	}
+
+	private int[][] findNeighbours(){
+		int[][] neighbours = new int[endX.length][];
+		for(int end=0; end<endX.length; end++){
+			neighbours[end] = nearest(end, NEIGHBOURS);
+		}
+		return neighbours;
+	}
+
+
+	// ordering contours
+
+	private int startOf(int t){
+		return seq[t]*2 + (flip[t]? 1 : 0);
+	}
+
+	private int endOf(int t){
+		return seq[t]*2 + (flip[t]? 0 : 1);
+	}
+
+	private void nearestNeighbourTour(){
+		seq = new int[contourCount];
+		flip = new boolean[contourCount];
+		pos = new int[contourCount];
+		seq[0] = 0;
+		removeEnd(0);
+		removeEnd(1);
+		for(int t=1; t<contourCount; t++){
+			int next = nearest(endOf(t-1), 1)[0];
+			seq[t] = next >> 1;
+			flip[t] = (next & 1) != 0;
+			removeEnd(next);
+			removeEnd(next ^ 1);
+		}
+		for(int t=0; t<contourCount; t++)pos[seq[t]] = t;
+	}
+
+	/**
+	 * Reverses the run of contours between tour positions i and j
+	 */
+	private void reverse(int i, int j){
+		while(i < j){
+			int c = seq[i];
+			boolean f = flip[i];
+			seq[i] = seq[j];
+			flip[i] = !flip[j];
+			seq[j] = c;
+			flip[j] = !f;
+			pos[seq[i]] = i;
+			pos[seq[j]] = j;
+			i++;
+			j--;
+		}
+		if(i == j)flip[i] = !flip[i];
+	}
+
+	/**
+	 * 2-opt: replaces jumps end(i-1) -> start(i) and end(j) -> start(j+1)
+	 * by end(i-1) -> end(j) and start(i) -> start(j+1), reversing the run between,
+	 * trying only runs ending near one of the jumps
+	 */
+	private void improveTour(int[][] neighbours, long maxWork){
+		boolean improved = true;
+		long work = 0;
+		while(improved){
+			improved = false;
+			for(int i=1; i<contourCount; i++){
+				if(work > maxWork)return;
+				work += 2*NEIGHBOURS;
+
+				// new jump end(i-1) -> end(j)
+				int a = endOf(i-1);
+				for(int candidate: neighbours[a]){
+					int j = pos[candidate >> 1];
+					if(j < i || candidate != endOf(j))continue;
+					double delta = distance(a, endOf(j)) - distance(a, startOf(i));
+					if(j+1 < contourCount){
+						delta += distance(startOf(i), startOf(j+1)) - distance(endOf(j), startOf(j+1));
+					}
+					if(delta < -1e-9){
+						reverse(i, j);
+						work += j-i+1;
+						improved = true;
+						break;
+					}
+				}
+
+				// new jump start(k) -> start(i) for the run k..i-1
+				int b = startOf(i);
+				for(int candidate: neighbours[b]){
+					int k = pos[candidate >> 1];
+					if(k < 1 || k >= i || candidate != startOf(k))continue;
+					double delta = distance(startOf(k), b) - distance(endOf(i-1), b)
+					             + distance(endOf(k-1), endOf(i-1)) - distance(endOf(k-1), startOf(k));
+					if(delta < -1e-9){
+						reverse(k, i-1);
+						work += i-k;
+						improved = true;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package machines;
+
+/**
+ * Circular interpolation in the plane of axes X and Y, step by step,
+ * exactly the way arcBy in Arduino firmware does it.
+ * Position is relative to the center of the arc, in steps. Each iteration moves
+ * by a single step of X, of Y, or of both, whichever stays closest to the circle
+ * going through the starting point. Used to know where an interrupted arc move ended.
+ */
+public class ArcStepper {
+
+	private final boolean clockwise;
+	private final long r2; // squared radius
+	private long x;
+	private long y;
+
+	public ArcStepper(int startX, int startY, boolean clockwise){
+		this.clockwise = clockwise;
+		this.x = startX;
+		this.y = startY;
+		this.r2 = (long)startX*startX + (long)startY*startY;
+	}
+
+	public long x(){
+		return x;
+	}
+
+	public long y(){
+		return y;
+	}
+
+	/**
+	 * Does a single iteration
+	 */
+	public void step(){
+		int sx = clockwise? Long.signum(y) : -Long.signum(y);
+		int sy = clockwise? -Long.signum(x) : Long.signum(x);
+		int stepX = 0;
+		int stepY = 0;
+		long best = Long.MAX_VALUE;
+		if(sx != 0){
+			best = error(sx, 0);
+			stepX = sx;
+		}
+		if(sy != 0){
+			long e = error(0, sy);
+			if(e < best){
+				best = e;
+				stepX = 0;
+				stepY = sy;
+			}
+		}
+		if(sx != 0 && sy != 0){
+			long e = error(sx, sy);
+			if(e < best){
+				stepX = sx;
+				stepY = sy;
+			}
+		}
+		x += stepX;
+		y += stepY;
+	}
+
+	public void step(int iterations){
+		for(int i=0; i<iterations; i++)step();
+	}
+
+	private long error(int sx, int sy){
+		long nx = x+sx;
+		long ny = y+sy;
+		return Math.abs(nx*nx + ny*ny - r2);
+	}
+
+	/**
+	 * Returns shift of X and Y between two iterations of an arc
+	 */
+	public static long[] shift(int startX, int startY, boolean clockwise, int fromIter, int toIter){
+		ArcStepper arc = new ArcStepper(startX, startY, clockwise);
+		arc.step(fromIter);
+		long x0 = arc.x();
+		long y0 = arc.y();
+		arc.step(toIter-fromIter);
+		return new long[]{arc.x()-x0, arc.y()-y0};
+	}
+
+}
@@ -12,6 +12,8 @@ public class AxisConfig{
 	private Double lowLimit;
 	private Double highLimit;
 	private double backlash;
+	private double maxVelocity; // mm/s, 0 = limited by machine step rate only
+	private double acceleration; // mm/s/s, 0 = driver default
 
 	public AxisConfig(
 		boolean exists,
@@ -21,6 +23,20 @@ public class AxisConfig{
 		Double  lowLimit,
 		Double  highLimit,
 		double backlash
+	){
+		this(exists, stepsPerMm, inverted, zeroUp, lowLimit, highLimit, backlash, 0, 0);
+	}
+
+	public AxisConfig(
+		boolean exists,
+		double  stepsPerMm,
+		boolean inverted,
+		boolean zeroUp,
+		Double  lowLimit,
+		Double  highLimit,
+		double backlash,
+		double maxVelocity,
+		double acceleration
 	){
 		this.exists = exists;
 		this.stepsPerMm = stepsPerMm;
@@ -29,6 +45,8 @@ public class AxisConfig{
 		this.lowLimit = lowLimit;
 		this.highLimit = highLimit;
 		this.backlash = backlash;
+		this.maxVelocity = maxVelocity;
+		this.acceleration = acceleration;
 	}
 
 	public AxisConfig(
@@ -47,6 +65,8 @@ public class AxisConfig{
 		this.lowLimit = lowLimit;
 		this.highLimit = highLimit;
 		this.backlash = (double)backlash;
+		this.maxVelocity = 0;
+		this.acceleration = 0;
 	}
 
 	public AxisConfig(){
@@ -57,6 +77,8 @@ public class AxisConfig{
 		this.lowLimit = null;
 		this.highLimit = null;
 		this.backlash = 0;
+		this.maxVelocity = 0;
+		this.acceleration = 0;
 	}
 
 	private boolean limitEquals(Double a, Double b){
@@ -72,7 +94,9 @@ public class AxisConfig{
 		    && this.zeroUp == other.zeroUp
 		    && limitEquals(this.lowLimit, other.lowLimit)
 		    && limitEquals(this.highLimit, other.highLimit)
-		    && this.backlash == other.backlash;
+		    && this.backlash == other.backlash
+		    && this.maxVelocity == other.maxVelocity
+		    && this.acceleration == other.acceleration;
 	}
 
 	public AxisConfig clone(){
@@ -83,10 +107,22 @@ public class AxisConfig{
 			zeroUp,
 			lowLimit,
 			highLimit,
-			backlash
+			backlash,
+			maxVelocity,
+			acceleration
 		);
 	}
 
+	/**
+	 * Returns a copy with different velocity and acceleration limits
+	 */
+	public AxisConfig withMotionLimits(double maxVelocity, double acceleration){
+		AxisConfig ac = clone();
+		ac.maxVelocity = maxVelocity;
+		ac.acceleration = acceleration;
+		return ac;
+	}
+
 	public boolean exists(){
 		return exists;
 	}
@@ -138,5 +174,28 @@ public class AxisConfig{
 		return bs;
 	}
 
+	public double maxVelocity(){
+		return maxVelocity;
+	}
+	/**
+	 * Highest step rate in steps/s, infinite if not limited
+	 */
+	public double maxStepRate(){
+		if(maxVelocity <= 0)return Double.POSITIVE_INFINITY;
+		else return maxVelocity * stepsPerMm;
+	}
+
+	public double acceleration(){
+		return acceleration;
+	}
+	/**
+	 * Acceleration in steps/s/s
+	 * @param defaultSteps Value used when acceleration is not configured
+	 */
+	public double accelerationSteps(double defaultSteps){
+		if(acceleration <= 0)return defaultSteps;
+		else return acceleration * stepsPerMm;
+	}
+
 }
 
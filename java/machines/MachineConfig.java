@@ -8,6 +8,13 @@ public class MachineConfig {
 
 	public AxisConfig x, y, z, u, v, w;
 	public double stepsPerSecond;
+	public int baudRate; // serial line speed last negotiated with the machine
+	public int maxBaudRate; // fastest serial line speed to be negotiated
+	public String lastPort; // serial port of the last connection, tried first
+	public int lookAhead; // number of tool path segments planned ahead
+	public double junctionDeviation; // mm, how much corners can be cut when planning speed
+	public double simplifyTolerance; // mm, largest deviation of simplified tool path, 0 = off
+	public double chordTolerance; // mm, largest distance of tessellated DXF curves from the real ones
 
 	public MachineConfig(
 		AxisConfig x,
@@ -25,6 +32,12 @@ public class MachineConfig {
 		this.v = v;
 		this.w = w;
 		this.stepsPerSecond = sps;
+		this.baudRate = 115200;
+		this.maxBaudRate = 1000000;
+		this.lookAhead = 256;
+		this.junctionDeviation = 0.02;
+		this.simplifyTolerance = 0.002;
+		this.chordTolerance = 0.01;
 	}
 
 	public MachineConfig(){
@@ -35,10 +48,16 @@ public class MachineConfig {
 		v = new AxisConfig();
 		w = new AxisConfig();
 		stepsPerSecond = 3200;
+		baudRate = 115200;
+		maxBaudRate = 1000000;
+		lookAhead = 256;
+		junctionDeviation = 0.02;
+		simplifyTolerance = 0.002;
+		chordTolerance = 0.01;
 	}
 
 	public MachineConfig clone(){
-		return new MachineConfig(
+		MachineConfig mc = new MachineConfig(
 			x.clone(),
 			y.clone(),
 			z.clone(),
@@ -47,6 +66,14 @@ public class MachineConfig {
 			w.clone(),
 			stepsPerSecond
 		);
+		mc.baudRate = baudRate;
+		mc.maxBaudRate = maxBaudRate;
+		mc.lastPort = lastPort;
+		mc.lookAhead = lookAhead;
+		mc.junctionDeviation = junctionDeviation;
+		mc.simplifyTolerance = simplifyTolerance;
+		mc.chordTolerance = chordTolerance;
+		return mc;
 	}
 
 }
@@ -0,0 +1,652 @@
+package transports;
+
+import java.util.Arrays;
+
+import machines.ArcStepper;
+
+/**
+ * Software model of the gilos Arduino firmware (Arduino/gilos/gilos.ino).
+ * Implements its serial protocol and move buffer, and models the time needed
+ * to execute moves, so that the driver can be tested and measured without hardware.
+ * Limit switches are always reported as reached, backlash compensation takes no time.
+ */
+public class GilosSimulator implements Runnable {
+
+	// firmware constants
+	private static final byte FIRMWARE_VERSION = 10;
+	private static final int BUFFER_LENGTH = 64;
+	private static final int FULL_BUFFER_LENGTH = 60;
+	private static final int LOW_SPEED = 32;
+	private static final int SPEED_SHIFT = 5;
+	private static final int[] BAUD_RATES = {115200, 250000, 500000, 1000000};
+	private static final long BAUD_CONFIRM_TIMEOUT = 2000;
+
+	// timing model
+	private static final long BOOT_TIME = 200; // ms from opening the port to the "R" signal
+	private static final long MIN_STEP_NANOS = 40_000; // fastest step rate the board can do
+	private static final long BLINK_TIME = 5000;
+	private static final long ZERO_TIME = 1000;
+	private static final long IDLE_WAIT_NANOS = 1_000_000; // loop() delay when idle
+
+	private final SimulatedLine input; // host to firmware
+	private final SimulatedLine output; // firmware to host
+
+	private final boolean realTime; // false: moves finish immediately
+
+	private volatile boolean running;
+	private Thread thread;
+
+	GilosSimulator(SimulatedLine input, SimulatedLine output){
+		this(input, output, true);
+	}
+
+	GilosSimulator(SimulatedLine input, SimulatedLine output, boolean realTime){
+		this.input = input;
+		this.output = output;
+		this.realTime = realTime;
+	}
+
+	public synchronized void start(){
+		running = true;
+		thread = new Thread(this, "GilosSimulator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop(){
+		running = false;
+		Thread t = thread;
+		if(t != null){
+			t.interrupt();
+			try{
+				t.join(1000);
+			}
+			catch(InterruptedException e){}
+		}
+	}
+
+	// firmware state //////////////////////////////////////////////////////////
+
+	private final boolean[] axisPresent = new boolean[6];
+	private final boolean[] zeroUp = new boolean[6];
+	private final long[] position = new long[6];
+
+	// move buffer
+	private final int[][] bufferDelta = new int[BUFFER_LENGTH][6];
+	private final int[][] bufferArc = new int[BUFFER_LENGTH][3]; // start X, start Y, iterations (negative clockwise)
+	private final int[] bufferSpeed = new int[BUFFER_LENGTH];
+	private final long[] bufferReceived = new long[BUFFER_LENGTH]; // for latency statistics
+	private int currentMove = 0;
+	private int stopMove = 0;
+
+	private final int[] priorityDelta = new int[6];
+	private int prioritySpeed;
+	private boolean doPriorityMove = false;
+
+	private int currentSpeed = LOW_SPEED;
+	private boolean moving = false;
+	private boolean stopping = false;
+	private int bresenhamIter = 0;
+	private int lastStepCount = 0;
+
+	// move being executed
+	private boolean executing = false;
+	private boolean executingPriority;
+	private int[] execDelta;
+	private int[] execArc; // null for lines
+	private int execSteps; // whole move
+	private int execFirstStep; // continuing a stopped move
+	private long execStart;
+	private long execDuration;
+	private double execStartSpeed;
+	private double execEndSpeed;
+	private int savedBresenhamIter;
+
+	// other operations taking time
+	private long blinkEnd = 0;
+	private long zeroEnd = 0;
+	private boolean testingLimits = false;
+	private boolean configMode = false;
+
+	private boolean baudPending = false;
+	private long baudSwitchTime;
+	private int baudRate = BAUD_RATES[0];
+
+	// serial command being received
+	private final byte[] command = new byte[300];
+	private int commandLength = 0;
+
+	// statistics
+	private long firstMoveStart = 0;
+	private long lastMoveEnd = 0;
+	private long movesExecuted = 0;
+	private long stepsExecuted = 0;
+	private long underruns = 0;
+	private long latencySum = 0;
+	private long latencyMax = 0;
+
+	private int remainingMoves(){
+		return (stopMove + BUFFER_LENGTH - currentMove) % BUFFER_LENGTH;
+	}
+
+	private void send(char c){
+		send((byte)c);
+	}
+	private void send(byte b){
+		output.write(new byte[]{b}, 1);
+	}
+	private void send(String s){
+		for(int i=0; i<s.length(); i++)send(s.charAt(i));
+	}
+
+	private void shortStatus(){
+		boolean bufferFull = remainingMoves() >= FULL_BUFFER_LENGTH;
+		if(moving && !stopping)send(bufferFull? 'G' : 'F');
+		else send(bufferFull? 'g' : 'f');
+	}
+
+	private void setBaudRate(int rate){
+		baudRate = rate;
+		output.setSenderBaudRate(rate);
+		input.setReceiverBaudRate(rate);
+	}
+
+	// main loop ///////////////////////////////////////////////////////////////
+
+	public void run(){
+		sleepNanos(BOOT_TIME * 1_000_000);
+		if(!running)return;
+		send('R');
+		while(running && !Thread.currentThread().isInterrupted()){
+			loop();
+		}
+	}
+
+	/**
+	 * Single pass of the firmware main loop, or a part of a move
+	 */
+	private void loop(){
+		long now = System.nanoTime();
+
+		if(baudPending && now - baudSwitchTime > BAUD_CONFIRM_TIMEOUT*1_000_000){
+			baudPending = false;
+			setBaudRate(BAUD_RATES[0]);
+		}
+
+		// blinking blocks the firmware completely
+		if(blinkEnd != 0){
+			if(now - blinkEnd < 0){
+				sleepNanos(blinkEnd - now);
+				return;
+			}
+			blinkEnd = 0;
+			send('l');
+		}
+
+		// firmware reads serial data between steps of a move
+		handleSerial();
+
+		if(executing){
+			long elapsed = now - execStart;
+			if(stopping){
+				finishMove(stepsAfter(elapsed), false);
+			}
+			else if(elapsed >= execDuration){
+				finishMove(execSteps, true);
+			}
+			else{
+				input.waitForData(execStart + execDuration);
+			}
+			return;
+		}
+
+		if(stopping){
+			moving = false;
+			stopping = false;
+			currentSpeed = LOW_SPEED;
+			send('.');
+			return;
+		}
+
+		if(zeroEnd != 0){ // axis homing
+			if(now - zeroEnd >= 0){
+				zeroEnd = 0;
+				for(int i=0; i<6; i++)position[i] = 0;
+				send('0');
+			}
+			else input.waitForData(zeroEnd);
+			return;
+		}
+
+		int remaining = remainingMoves();
+		if(doPriorityMove){
+			doPriorityMove = false;
+			savedBresenhamIter = bresenhamIter;
+			bresenhamIter = 0;
+			currentSpeed = prioritySpeed << SPEED_SHIFT;
+			send('W');
+			startMove(priorityDelta, null, true, currentSpeed, now);
+		}
+		else if(moving && remaining > 0){
+			int endSpeed = (remaining == 1)? LOW_SPEED : Math.max(bufferSpeed[currentMove] << SPEED_SHIFT, LOW_SPEED);
+			if(bresenhamIter == 0){
+				long latency = now - bufferReceived[currentMove];
+				latencySum += latency;
+				latencyMax = Math.max(latencyMax, latency);
+			}
+			int[] arc = (bufferArc[currentMove][2] != 0)? bufferArc[currentMove] : null;
+			startMove(bufferDelta[currentMove], arc, false, endSpeed, now);
+		}
+		else{
+			if(moving && remaining == 0){
+				moving = false;
+				underruns++;
+				shortStatus();
+			}
+			if(!moving)currentSpeed = LOW_SPEED;
+			input.waitForData(now + IDLE_WAIT_NANOS);
+		}
+	}
+
+	/**
+	 * Starts execution of a move, computes its duration
+	 */
+	private void startMove(int[] delta, int[] arc, boolean priority, int endSpeed, long now){
+		int steps = 0;
+		if(arc != null){
+			steps = Math.abs(arc[2]);
+		}
+		else{
+			for(int i=0; i<6; i++){
+				if(axisPresent[i])steps = Math.max(steps, Math.abs(delta[i]));
+			}
+		}
+		executing = true;
+		executingPriority = priority;
+		execDelta = delta.clone();
+		execArc = (arc != null)? arc.clone() : null;
+		execSteps = steps;
+		execFirstStep = Math.min(bresenhamIter, steps);
+		execStart = now;
+		execStartSpeed = Math.max(currentSpeed, 1);
+		execEndSpeed = Math.max(endSpeed, 1);
+		execDuration = realTime? rampNanos(steps - execFirstStep) : 0;
+		if(firstMoveStart == 0)firstMoveStart = now;
+	}
+
+	/**
+	 * Time needed for a number of steps with linear speed change from execStartSpeed to execEndSpeed
+	 */
+	private long rampNanos(int steps){
+		double seconds = 2.0 * steps / (execStartSpeed + execEndSpeed);
+		return Math.max((long)(seconds * 1e9), steps * MIN_STEP_NANOS);
+	}
+
+	/**
+	 * Number of steps of the executed move done after some time
+	 */
+	private int stepsAfter(long elapsed){
+		int remainingSteps = execSteps - execFirstStep;
+		if(execDuration <= 0)return execSteps;
+		// constant acceleration: s = v0*t + a*t^2/2, time scaled to the modelled duration
+		double t = 2.0 * remainingSteps / (execStartSpeed + execEndSpeed) * elapsed / execDuration;
+		double a = (execEndSpeed*execEndSpeed - execStartSpeed*execStartSpeed) / (2.0 * Math.max(remainingSteps, 1));
+		double s = execStartSpeed*t + a*t*t/2;
+		return execFirstStep + (int)Math.max(0, Math.min(remainingSteps, Math.floor(s)));
+	}
+
+	/**
+	 * Ends execution of a move, either completed or stopped
+	 */
+	private void finishMove(int stepsDone, boolean completed){
+		int done = stepsDone - execFirstStep;
+		int linearFrom = 0;
+		if(execArc != null){
+			long[] shift = ArcStepper.shift(execArc[0], execArc[1], execArc[2] < 0, execFirstStep, stepsDone);
+			if(axisPresent[0])position[0] += shift[0];
+			if(axisPresent[1])position[1] += shift[1];
+			linearFrom = 2;
+		}
+		for(int i=linearFrom; i<6; i++){
+			if(axisPresent[i] && execSteps > 0){
+				position[i] += (long)execDelta[i] * stepsDone / execSteps
+				             - (long)execDelta[i] * execFirstStep / execSteps;
+			}
+		}
+		lastStepCount = done;
+		stepsExecuted += done;
+		executing = false;
+		currentSpeed = (int)execEndSpeed;
+		if(executingPriority){
+			send(completed? 'Q' : 'q');
+			bresenhamIter = savedBresenhamIter;
+			if(!completed)doPriorityMove = false;
+			if(!doPriorityMove)shortStatus();
+		}
+		else if(completed){
+			bresenhamIter = 0;
+			movesExecuted++;
+			lastMoveEnd = System.nanoTime();
+			send(moving? 'P' : 'p');
+			currentMove = (currentMove + 1) % BUFFER_LENGTH;
+		}
+		else{
+			bresenhamIter = stepsDone; // continuing after next "B"
+		}
+	}
+
+	// serial protocol /////////////////////////////////////////////////////////
+
+	/**
+	 * Reads all received bytes, executes complete commands
+	 */
+	private void handleSerial(){
+		int data;
+		while((data = input.read()) >= 0){
+			command[commandLength++] = (byte)data;
+			int needed = commandLength();
+			if(needed < 0 || commandLength >= needed){
+				execute();
+				commandLength = 0;
+			}
+			if(blinkEnd != 0)return;
+		}
+	}
+
+	private int numAxes(){
+		int n = 0;
+		for(boolean present: axisPresent)if(present)n++;
+		return n;
+	}
+
+	/**
+	 * Returns the length of the command in the buffer, a higher number when more bytes
+	 * are needed to tell, or -1 for a complete single-byte command
+	 */
+	private int commandLength(){
+		char c = (char)command[0];
+		if(configMode){
+			return (c == '.' || c == 'R')? -1 : 12;
+		}
+		if(zeroEnd != 0 || testingLimits)return -1;
+		switch(c){
+			case 'M':
+			case 'N':
+			case 'K':
+				return 2 + 2*numAxes();
+			case 'm':
+			case 'a':
+				if(commandLength < 2)return 2;
+				int mask = (c == 'a')? (command[1] & 0x3C) | 0x1C0 : command[1] & 0x3F;
+				int pos = 2;
+				for(int axis=0; axis<9; axis++){
+					if((mask & (1 << axis)) == 0)continue;
+					while(pos < commandLength && (command[pos] & 0x80) != 0)pos++;
+					if(pos >= commandLength)return commandLength + 1;
+					pos++;
+				}
+				return pos + 1;
+			case 'h':
+			case 'r':
+				return 2;
+			case 'E':
+				if(commandLength < 2)return 2;
+				return 2 + (command[1] & 0xFF);
+			default:
+				return -1;
+		}
+	}
+
+	private int int16(int index){
+		return (short)(((command[index] & 0xFF) << 8) | (command[index+1] & 0xFF));
+	}
+
+	private void readFixedMove(int[] delta){
+		int pos = 1;
+		for(int i=0; i<6; i++){
+			delta[i] = 0;
+			if(axisPresent[i]){
+				delta[i] = int16(pos);
+				pos += 2;
+			}
+		}
+	}
+
+	/**
+	 * Reads "m" frame, or "a" frame with arc data (linear axes Z-W, then start X, start Y, iterations)
+	 */
+	private void readCompactMove(int[] delta, int[] arc){
+		boolean isArc = command[0] == 'a';
+		int mask = isArc? (command[1] & 0x3C) | 0x1C0 : command[1] & 0x3F;
+		boolean clockwise = isArc && (command[1] & 0x80) != 0;
+		int pos = 2;
+		arc[0] = arc[1] = arc[2] = 0;
+		for(int i=0; i<9; i++){
+			if(i < 6)delta[i] = 0;
+			if((mask & (1 << i)) == 0)continue;
+			int value = 0;
+			int shift = 0;
+			while(true){
+				int b = command[pos++] & 0xFF;
+				if(shift < 16)value |= (b & 0x7F) << shift;
+				shift += 7;
+				if((b & 0x80) == 0)break;
+			}
+			value &= 0xFFFF;
+			int decoded = (short)((value >>> 1) ^ -(value & 1));
+			if(i >= 6)arc[i-6] = decoded;
+			else if(axisPresent[i])delta[i] = decoded;
+		}
+		if(clockwise)arc[2] = -arc[2];
+	}
+
+	private void execute(){
+		char c = (char)command[0];
+
+		if(configMode){
+			if(c == '.' || c == 'R'){
+				configMode = false;
+				return;
+			}
+			int axis = "XYZUVW".indexOf(c);
+			char flags = (char)command[1];
+			if(axis >= 0){
+				axisPresent[axis] = flags != '0';
+				zeroUp[axis] = flags == 'u' || flags == 'U';
+			}
+			send('c');
+			return;
+		}
+		if(zeroEnd != 0){
+			if(c == 'R' || c == '.'){
+				zeroEnd = 0;
+				stopping = true;
+			}
+			return;
+		}
+		if(testingLimits){
+			if(c == 'R' || c == '.')testingLimits = false;
+			return;
+		}
+
+		switch(c){
+			case 'I':
+				send("gilos");
+				break;
+			case 'R':
+				executing = false; // abandoning the current move
+				stopping = true;
+				send('R');
+				currentMove = stopMove = 0;
+				doPriorityMove = false;
+				currentSpeed = LOW_SPEED;
+				moving = false;
+				bresenhamIter = 0;
+				break;
+			case 's':
+				shortStatus();
+				break;
+			case 'S':
+				int axes = 0;
+				int zero = 0;
+				for(int i=0; i<6; i++){
+					if(axisPresent[i])axes |= 1 << i;
+					if(zeroUp[i])zero |= 1 << i;
+				}
+				send(FIRMWARE_VERSION);
+				send((byte)axes);
+				send((byte)zero);
+				send((byte)((moving? 1 : 0) | (stopping? 2 : 0)));
+				send((byte)(bresenhamIter >> 8));
+				send((byte)(bresenhamIter & 0xFF));
+				send((byte)remainingMoves());
+				break;
+			case '$':
+				send('b');
+				send((byte)((lastStepCount >> 8) & 0xFF));
+				send((byte)(lastStepCount & 0xFF));
+				lastStepCount = 0;
+				break;
+			case 'M':
+			case 'm':
+			case 'a':
+				if((stopMove+1) % BUFFER_LENGTH == currentMove){
+					send(moving? 'O' : 'o');
+					break;
+				}
+				if(c == 'M'){
+					readFixedMove(bufferDelta[stopMove]);
+					bufferArc[stopMove][2] = 0;
+				}
+				else readCompactMove(bufferDelta[stopMove], bufferArc[stopMove]);
+				bufferSpeed[stopMove] = command[commandLength-1] & 0xFF;
+				bufferReceived[stopMove] = System.nanoTime();
+				stopMove = (stopMove+1) % BUFFER_LENGTH;
+				shortStatus();
+				break;
+			case 'N':
+			case 'K':
+				readFixedMove(priorityDelta);
+				prioritySpeed = command[commandLength-1] & 0xFF;
+				doPriorityMove = true;
+				send('G');
+				break;
+			case 'B':
+				if(remainingMoves() > 0)moving = true;
+				shortStatus();
+				break;
+			case '.':
+				stopping = true;
+				doPriorityMove = false;
+				shortStatus();
+				break;
+			case '0':
+				stopping = true;
+				zeroEnd = System.nanoTime() + ZERO_TIME*1_000_000;
+				break;
+			case 'l':
+				stopping = true;
+				blinkEnd = System.nanoTime() + BLINK_TIME*1_000_000;
+				break;
+			case 'L':
+				stopping = true;
+				testingLimits = true;
+				send("limit");
+				break;
+			case 'C':
+				configMode = true;
+				break;
+			case 'o': // chuck
+			case 'c':
+			case 'r': // spindle speed
+				break;
+			case 'H':
+				send('H');
+				send((byte)BAUD_RATES.length);
+				for(int rate: BAUD_RATES){
+					send((byte)(rate >> 24));
+					send((byte)(rate >> 16));
+					send((byte)(rate >> 8));
+					send((byte)rate);
+				}
+				break;
+			case 'h':
+				int index = command[1] & 0xFF;
+				if(index < BAUD_RATES.length){
+					send('h');
+					setBaudRate(BAUD_RATES[index]);
+					baudPending = index != 0;
+					baudSwitchTime = System.nanoTime();
+				}
+				else send('?');
+				break;
+			case 'k':
+				baudPending = false;
+				send('k');
+				break;
+			case 'E':
+				output.write(Arrays.copyOfRange(command, 2, commandLength), commandLength-2);
+				break;
+			case 'p':
+			case 'P':
+				for(int i=0; i<6; i++){
+					if(!axisPresent[i])continue;
+					send((c == 'p')? "xyzuvw".charAt(i) : "XYZUVW".charAt(i));
+					send((byte)(position[i] >> 24));
+					send((byte)(position[i] >> 16));
+					send((byte)(position[i] >> 8));
+					send((byte)position[i]);
+				}
+				break;
+			default:
+				send('?');
+		}
+	}
+
+	private void sleepNanos(long nanos){
+		try{
+			Thread.sleep(nanos / 1_000_000, (int)(nanos % 1_000_000));
+		}
+		catch(InterruptedException e){
+			running = false;
+		}
+	}
+
+	// statistics //////////////////////////////////////////////////////////////
+
+	public long movesExecuted(){
+		return movesExecuted;
+	}
+
+	/**
+	 * Average number of buffered moves executed per second, from the start of the first one
+	 */
+	public double movesPerSecond(){
+		double seconds = (lastMoveEnd - firstMoveStart) * 1e-9;
+		return (seconds > 0)? movesExecuted / seconds : 0;
+	}
+
+	/**
+	 * Average time between receiving a move and starting its execution
+	 */
+	public double averageLatencyMillis(){
+		return (movesExecuted > 0)? latencySum * 1e-6 / movesExecuted : 0;
+	}
+
+	/**
+	 * Number of times the move buffer ran empty while the machine was moving
+	 */
+	public long underruns(){
+		return underruns;
+	}
+
+	public String toString(){
+		return String.format(
+			"simulator: %d moves, %d steps, %.1f moves/s, latency avg %.1f ms max %.1f ms, %d underruns, %d Bd",
+			movesExecuted, stepsExecuted, movesPerSecond(),
+			averageLatencyMillis(), latencyMax * 1e-6, underruns, baudRate
+		);
+	}
+
+}
+
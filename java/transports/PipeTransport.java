@@ -0,0 +1,20 @@
+package transports;
+
+/**
+ * In-memory pipe to a simulated machine which does not wait for anything:
+ * bytes arrive immediately and moves finish as soon as they start.
+ * Throughput is then limited only by the driver itself, which is what
+ * benchmarking and profiling of the protocol code needs.
+ */
+public class PipeTransport extends SimulatorTransport {
+
+	public PipeTransport(){
+		super(false);
+	}
+
+	public String getName(){
+		return "pipe";
+	}
+
+}
+
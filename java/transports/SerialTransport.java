@@ -0,0 +1,92 @@
+package transports;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+
+/**
+ * Connection to a machine via a serial port (Fazecast jSerialComm)
+ */
+public class SerialTransport extends Transport {
+
+	private final SerialPort port;
+
+	public SerialTransport(SerialPort port){
+		this.port = port;
+	}
+
+	/**
+	 * Lists all serial ports of the computer
+	 */
+	public static Transport[] getAvailable(){
+		SerialPort[] ports = SerialPort.getCommPorts();
+		Transport[] transports = new Transport[ports.length];
+		for(int i=0; i<ports.length; i++){
+			transports[i] = new SerialTransport(ports[i]);
+		}
+		return transports;
+	}
+
+	public String getName(){
+		return port.getSystemPortName();
+	}
+
+	public boolean open(int baudRate, int readTimeout){
+		return port.openPort()
+			&& port.setComPortParameters(
+				baudRate,
+				8, // data bits
+				SerialPort.ONE_STOP_BIT,
+				SerialPort.NO_PARITY
+			)
+			&& port.setComPortTimeouts(
+				SerialPort.TIMEOUT_READ_SEMI_BLOCKING,
+				readTimeout,
+				0 // write timeout
+			)
+			&& port.isOpen();
+	}
+
+	public boolean isOpen(){
+		return port.isOpen();
+	}
+
+	public void close(){
+		port.closePort();
+	}
+
+	public boolean setBaudRate(int baudRate){
+		return port.setBaudRate(baudRate);
+	}
+
+	public int bytesAvailable(){
+		return port.bytesAvailable();
+	}
+
+	public int read(byte[] buffer, int len){
+		return port.readBytes(buffer, len);
+	}
+
+	public int write(byte[] buffer, int len){
+		return port.writeBytes(buffer, len);
+	}
+
+	public boolean setDataListener(Runnable listener){
+		return port.addDataListener(new SerialPortDataListener(){
+			public int getListeningEvents(){
+				return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+			}
+			public void serialEvent(SerialPortEvent event){
+				if(event.getEventType() == SerialPort.LISTENING_EVENT_DATA_AVAILABLE){
+					listener.run();
+				}
+			}
+		});
+	}
+
+	public void removeDataListener(){
+		port.removeDataListener();
+	}
+
+}
+
@@ -0,0 +1,192 @@
+package transports;
+
+/**
+ * One direction of a simulated serial line.
+ * A byte becomes readable after its transmission time at the current line speed
+ * (10 bits per byte with start and stop bit). Bytes sent while the speeds
+ * of sender and receiver differ arrive corrupted, like on a real line.
+ * An unthrottled line ignores line speed and delivers bytes immediately.
+ */
+class SimulatedLine {
+
+	private static final int CAPACITY = 1 << 16;
+	private static final int MASK = CAPACITY - 1;
+
+	private final byte[] data = new byte[CAPACITY];
+	private final long[] due = new long[CAPACITY]; // System.nanoTime() when each byte is received
+
+	// total numbers of bytes ever read, written, and announced to the listener
+	private long head = 0;
+	private long tail = 0;
+	private long notified = 0;
+
+	private long lineFreeAt = 0; // end of transmission of the last byte written
+	private int senderBaudRate;
+	private int receiverBaudRate;
+	private final boolean throttled;
+
+	private Runnable listener;
+	private Thread listenerThread;
+
+	SimulatedLine(int baudRate){
+		senderBaudRate = receiverBaudRate = baudRate;
+		throttled = true;
+	}
+
+	/**
+	 * Creates a line without transmission delay
+	 */
+	SimulatedLine(){
+		senderBaudRate = receiverBaudRate = 0;
+		throttled = false;
+	}
+
+	synchronized void setSenderBaudRate(int baudRate){
+		senderBaudRate = baudRate;
+	}
+
+	synchronized void setReceiverBaudRate(int baudRate){
+		receiverBaudRate = baudRate;
+	}
+
+	/**
+	 * Queues bytes for transmission, returns the number of bytes accepted
+	 */
+	synchronized int write(byte[] buffer, int len){
+		long byteNanos = throttled? 10_000_000_000L / senderBaudRate : 0;
+		boolean corrupt = throttled && senderBaudRate != receiverBaudRate;
+		long now = System.nanoTime();
+		int n = (int)Math.min(len, CAPACITY - (tail - head));
+		for(int i=0; i<n; i++){
+			lineFreeAt = Math.max(lineFreeAt, now) + byteNanos;
+			int index = (int)(tail & MASK);
+			data[index] = corrupt? (byte)(buffer[i] ^ 0x55) : buffer[i];
+			due[index] = lineFreeAt;
+			tail++;
+		}
+		notifyAll();
+		return n;
+	}
+
+	/**
+	 * Number of bytes already received
+	 */
+	synchronized int available(){
+		long now = System.nanoTime();
+		long i = head;
+		while(i < tail && due[(int)(i & MASK)] - now <= 0)i++;
+		return (int)(i - head);
+	}
+
+	/**
+	 * Reads up to len received bytes, waits up to timeoutNanos for the first one
+	 */
+	synchronized int read(byte[] buffer, int len, long timeoutNanos){
+		long deadline = System.nanoTime() + timeoutNanos;
+		while(available() == 0){
+			if(!waitUntil(deadline))break;
+		}
+		int n = Math.min(len, available());
+		for(int i=0; i<n; i++){
+			buffer[i] = data[(int)(head & MASK)];
+			head++;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads a single received byte, returns -1 if there is none
+	 */
+	synchronized int read(){
+		if(available() == 0)return -1;
+		int value = data[(int)(head & MASK)] & 0xFF;
+		head++;
+		return value;
+	}
+
+	/**
+	 * Waits until a byte is received or until a deadline (System.nanoTime())
+	 */
+	synchronized void waitForData(long deadline){
+		while(available() == 0){
+			if(!waitUntil(deadline))return;
+		}
+	}
+
+	/**
+	 * Waits for a write, or until the next byte in transmission is received, or until the deadline.
+	 * Returns false when the deadline has passed.
+	 */
+	private boolean waitUntil(long deadline){
+		long now = System.nanoTime();
+		long wakeUp = deadline;
+		if(head < tail)wakeUp = Math.min(wakeUp, due[(int)(head & MASK)]);
+		long nanos = wakeUp - now;
+		if(deadline - now <= 0)return false;
+		if(nanos > 0){
+			try{
+				wait(nanos / 1_000_000, (int)(nanos % 1_000_000));
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Registers a callback run by a separate thread whenever bytes are received
+	 */
+	synchronized void setListener(Runnable newListener){
+		removeListener();
+		listener = newListener;
+		notified = tail;
+		listenerThread = new Thread(this::deliver, "SimulatedLine listener");
+		listenerThread.setDaemon(true);
+		listenerThread.start();
+	}
+
+	synchronized void removeListener(){
+		listener = null;
+		if(listenerThread != null)listenerThread.interrupt();
+		listenerThread = null;
+		notifyAll();
+	}
+
+	private void deliver(){
+		Thread self = Thread.currentThread();
+		while(true){
+			Runnable callback;
+			synchronized(this){
+				if(listenerThread != self)return;
+				notified = Math.max(notified, head);
+				if(notified == tail){
+					try{
+						wait();
+					}
+					catch(InterruptedException e){
+						return;
+					}
+					continue;
+				}
+				long nanos = due[(int)(notified & MASK)] - System.nanoTime();
+				if(nanos > 0){
+					try{
+						wait(nanos / 1_000_000, (int)(nanos % 1_000_000));
+					}
+					catch(InterruptedException e){
+						return;
+					}
+					continue;
+				}
+				long now = System.nanoTime();
+				while(notified < tail && due[(int)(notified & MASK)] - now <= 0)notified++;
+				callback = listener;
+			}
+			if(callback != null)callback.run();
+		}
+	}
+
+}
+
@@ -0,0 +1,93 @@
+package transports;
+
+/**
+ * Connection to a simulated machine running in the same process.
+ * Opening the transport "restarts" the simulated Arduino, like opening a serial port does.
+ * Line speed is modelled, so that throughput can be measured realistically.
+ */
+public class SimulatorTransport extends Transport {
+
+	private final boolean realTime;
+
+	private SimulatedLine toMachine;
+	private SimulatedLine fromMachine;
+	private GilosSimulator simulator;
+	private long readTimeoutNanos;
+
+	public SimulatorTransport(){
+		this(true);
+	}
+
+	/**
+	 * @param realTime false to run without line and motion delays
+	 */
+	protected SimulatorTransport(boolean realTime){
+		this.realTime = realTime;
+	}
+
+	public String getName(){
+		return "simulator";
+	}
+
+	public synchronized boolean open(int baudRate, int readTimeout){
+		close();
+		toMachine = realTime? new SimulatedLine(baudRate) : new SimulatedLine();
+		fromMachine = realTime? new SimulatedLine(baudRate) : new SimulatedLine();
+		readTimeoutNanos = readTimeout * 1_000_000L;
+		simulator = new GilosSimulator(toMachine, fromMachine, realTime);
+		simulator.start();
+		return true;
+	}
+
+	public synchronized boolean isOpen(){
+		return simulator != null;
+	}
+
+	public synchronized void close(){
+		if(simulator == null)return;
+		fromMachine.removeListener();
+		simulator.stop();
+		System.out.println(simulator);
+		simulator = null;
+	}
+
+	/**
+	 * Returns the simulated machine, e.g. to read its statistics
+	 */
+	public synchronized GilosSimulator getSimulator(){
+		return simulator;
+	}
+
+	public synchronized boolean setBaudRate(int baudRate){
+		if(simulator == null)return false;
+		toMachine.setSenderBaudRate(baudRate);
+		fromMachine.setReceiverBaudRate(baudRate);
+		return true;
+	}
+
+	public int bytesAvailable(){
+		SimulatedLine line = fromMachine;
+		return (line == null)? -1 : line.available();
+	}
+
+	public int read(byte[] buffer, int len){
+		SimulatedLine line = fromMachine;
+		return (line == null)? -1 : line.read(buffer, len, readTimeoutNanos);
+	}
+
+	public int write(byte[] buffer, int len){
+		SimulatedLine line = toMachine;
+		return (line == null)? -1 : line.write(buffer, len);
+	}
+
+	public synchronized boolean setDataListener(Runnable listener){
+		if(fromMachine == null)return false;
+		fromMachine.setListener(listener);
+		return true;
+	}
+
+	public synchronized void removeDataListener(){
+		if(fromMachine != null)fromMachine.removeListener();
+	}
+
+}
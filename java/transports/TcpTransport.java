@@ -0,0 +1,131 @@
+package transports;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Connection to a machine via TCP, through a serial-over-LAN bridge
+ * forwarding raw bytes to the serial port (e.g. ser2net in raw mode).
+ * Line speed is set up on the bridge and cannot be changed from here.
+ */
+public class TcpTransport extends Transport {
+
+	private static final int CONNECT_TIMEOUT = 3000; // ms
+
+	private final String host;
+	private final int port;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	public TcpTransport(String host, int port){
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Parses "host:port"
+	 */
+	public static TcpTransport parse(String address){
+		int colon = address.lastIndexOf(':');
+		if(colon < 0)throw new IllegalArgumentException("Port missing in TCP address "+address);
+		return new TcpTransport(address.substring(0, colon), Integer.parseInt(address.substring(colon+1)));
+	}
+
+	public String getName(){
+		return host+":"+port;
+	}
+
+	public synchronized boolean open(int baudRate, int readTimeout){
+		close();
+		try{
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true); // commands are short, do not wait to fill packets
+			socket.setSoTimeout(readTimeout);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			return true;
+		}
+		catch(IOException e){
+			System.out.println("   "+getName()+": "+e.getMessage());
+			close();
+			return false;
+		}
+	}
+
+	public synchronized boolean isOpen(){
+		return socket != null && socket.isConnected() && !socket.isClosed();
+	}
+
+	public synchronized void close(){
+		if(socket == null)return;
+		try{
+			socket.close();
+		}
+		catch(IOException e){}
+		socket = null;
+		in = null;
+		out = null;
+	}
+
+	public boolean setBaudRate(int baudRate){
+		return false;
+	}
+
+	public boolean canChangeBaudRate(){
+		return false;
+	}
+
+	public int bytesAvailable(){
+		InputStream stream = in;
+		if(stream == null)return -1;
+		try{
+			return stream.available();
+		}
+		catch(IOException e){
+			return -1;
+		}
+	}
+
+	public int read(byte[] buffer, int len){
+		InputStream stream = in;
+		if(stream == null)return -1;
+		try{
+			return stream.read(buffer, 0, len);
+		}
+		catch(SocketTimeoutException e){
+			return 0;
+		}
+		catch(IOException e){
+			return -1;
+		}
+	}
+
+	public int write(byte[] buffer, int len){
+		OutputStream stream = out;
+		if(stream == null)return -1;
+		try{
+			stream.write(buffer, 0, len);
+			return len;
+		}
+		catch(IOException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Not supported, data are polled
+	 */
+	public boolean setDataListener(Runnable listener){
+		return false;
+	}
+
+	public void removeDataListener(){}
+
+}
+
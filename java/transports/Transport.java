@@ -0,0 +1,86 @@
+package transports;
+
+/**
+ * Base class for byte streams connecting the driver to a machine
+ * (a serial port, or a replacement for testing without hardware).
+ * Data format is always 8 data bits, 1 stop bit, no parity.
+ */
+public abstract class Transport {
+
+	/**
+	 * Returns a name to be displayed in GUI and remembered in config
+	 */
+	public abstract String getName();
+
+	/**
+	 * Opens the connection, with reads blocking until some data arrive or until readTimeout elapses
+	 * @return Whether the connection is ready for use
+	 */
+	public abstract boolean open(int baudRate, int readTimeout);
+
+	public abstract boolean isOpen();
+
+	public abstract void close();
+
+	/**
+	 * Changes line speed of an open connection
+	 */
+	public abstract boolean setBaudRate(int baudRate);
+
+	/**
+	 * Whether line speed can be negotiated with the firmware
+	 */
+	public boolean canChangeBaudRate(){
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes which can be read without blocking
+	 */
+	public abstract int bytesAvailable();
+
+	/**
+	 * Reads up to len bytes. Blocks until at least one byte is available, or until the read timeout.
+	 * @return Number of bytes read, -1 on error
+	 */
+	public abstract int read(byte[] buffer, int len);
+
+	/**
+	 * Writes len bytes
+	 * @return Number of bytes written, -1 on error
+	 */
+	public abstract int write(byte[] buffer, int len);
+
+	/**
+	 * Registers a callback to be run (on another thread) whenever new data arrive.
+	 * Only one listener can be registered at a time.
+	 * @return false if the transport does not support listeners, data have to be polled then
+	 */
+	public abstract boolean setDataListener(Runnable listener);
+
+	public abstract void removeDataListener();
+
+	/**
+	 * Lists transports to be probed for a machine, chosen by the cnc.transport property:
+	 * "serial" (all serial ports, default), "simulator" (simulated machine),
+	 * "pipe" (simulated machine at full speed), "tcp:host:port" (serial-over-LAN bridge)
+	 */
+	public static Transport[] getAvailable(){
+		String kind = System.getProperty("cnc.transport", "serial");
+		if(kind.equals("simulator")){
+			return new Transport[]{new SimulatorTransport()};
+		}
+		if(kind.equals("pipe")){
+			return new Transport[]{new PipeTransport()};
+		}
+		if(kind.startsWith("tcp:")){
+			return new Transport[]{TcpTransport.parse(kind.substring(4))};
+		}
+		if(!kind.equals("serial")){
+			System.err.println("Unknown transport "+kind+", using serial ports");
+		}
+		return SerialTransport.getAvailable();
+	}
+
+}
+